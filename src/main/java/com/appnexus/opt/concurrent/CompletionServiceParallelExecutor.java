@@ -0,0 +1,110 @@
+package com.appnexus.opt.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * This class adapts a {@link CompletionService} to a {@link IParallelExecutor}, for callers that already manage their own pool.
+ * A call waits on the futures of its own tasks, then takes as many completions off the queue so that it does not grow. Which
+ * completions it takes does not matter to the calls, but anything else that reads the queue of the completion service may miss
+ * its own, and nested calls block the threads of the pool while they wait, so the completion service must not be shared or
+ * nested; share a {@link ForkJoinParallelExecutor} instead to run several trainings at once. Task exceptions are rethrown after
+ * all tasks of the call have completed
+ */
+public class CompletionServiceParallelExecutor implements IParallelExecutor {
+    private final CompletionService<Boolean> completionService;
+    private final int numThreads;
+
+    /**
+     * @param completionService completion service
+     * @param numThreads        number of threads of the pool behind the completion service
+     */
+    public CompletionServiceParallelExecutor(CompletionService<Boolean> completionService, int numThreads) {
+        this.completionService = completionService;
+        this.numThreads = numThreads;
+    }
+
+    @Override
+    public int getParallelism() {
+        return this.numThreads;
+    }
+
+    @Override
+    public void parallelFor(int numTasks, IntConsumer body) {
+        List<Future<Boolean>> futures = new ArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; ++t) {
+            int taskIdx = t;
+            futures.add(this.completionService.submit(() -> {
+                body.accept(taskIdx);
+                return true;
+            }));
+        }
+        awaitAll(futures);
+    }
+
+    @Override
+    public <T> T parallelReduce(int numTasks, IntFunction<T> task, BinaryOperator<T> combiner) {
+        if (numTasks < 1) {
+            throw new IllegalArgumentException("numTasks must be positive");
+        }
+        List<T> results = new ArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; ++t) {
+            results.add(null);
+        }
+        parallelFor(numTasks, t -> results.set(t, task.apply(t)));
+        T result = results.get(0);
+        for (int t = 1; t < numTasks; ++t) {
+            result = combiner.apply(result, results.get(t));
+        }
+        return result;
+    }
+
+    /**
+     * Wait until all futures of a call are done, then take as many completions off the queue
+     */
+    private void awaitAll(List<Future<Boolean>> futures) {
+        Throwable failure = null;
+        boolean interrupted = false;
+        int done = 0;
+        while (done < futures.size()) {
+            try {
+                futures.get(done).get();
+                done++;
+            } catch (InterruptedException e) {
+                interrupted = true; // keep waiting, the tasks of this call still use the caller's data
+            } catch (ExecutionException e) {
+                done++;
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        int taken = 0;
+        while (taken < futures.size()) {
+            try {
+                this.completionService.take(); // all tasks are done, so this only waits for their completions to be queued
+                taken++;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("parallel task failed", failure);
+        }
+    }
+}
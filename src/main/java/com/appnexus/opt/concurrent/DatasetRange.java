@@ -21,6 +21,16 @@ public class DatasetRange {
         this.dataset = dataset;
     }
 
+    /**
+     * class specifying a range of rows with start and end indices, for data sets that are not held in an array of objects
+     *
+     * @param startIdx start index
+     * @param endIdx   end index
+     */
+    public DatasetRange(int startIdx, int endIdx) {
+        this(startIdx, endIdx, null);
+    }
+
     public int getStartIdx() {
         return this.startIdx;
     }
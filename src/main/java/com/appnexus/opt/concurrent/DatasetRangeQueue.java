@@ -0,0 +1,29 @@
+package com.appnexus.opt.concurrent;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class hands out dataset ranges to worker threads one at a time. Splitting the data into many more ranges than threads and
+ * letting every thread pull the next range when it is done balances the load dynamically: threads that finish early simply take
+ * more ranges
+ */
+public class DatasetRangeQueue {
+    private final DatasetRange[] datasetRanges;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param datasetRanges ranges to hand out, in order
+     */
+    public DatasetRangeQueue(List<DatasetRange> datasetRanges) {
+        this.datasetRanges = datasetRanges.toArray(new DatasetRange[0]);
+    }
+
+    /**
+     * @return next range that no thread has taken yet, or null if every range has been taken
+     */
+    public DatasetRange next() {
+        int idx = this.next.getAndIncrement();
+        return idx < this.datasetRanges.length ? this.datasetRanges[idx] : null;
+    }
+}
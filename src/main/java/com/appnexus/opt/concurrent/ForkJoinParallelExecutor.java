@@ -0,0 +1,106 @@
+package com.appnexus.opt.concurrent;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * This class implements a {@link IParallelExecutor} on a {@link ForkJoinPool}. The tasks of a call are split recursively and
+ * joined by the pool, so calls from several trainings, or from inside another task, do not interfere with each other
+ */
+public class ForkJoinParallelExecutor implements IParallelExecutor {
+    private final ForkJoinPool pool;
+
+    /**
+     * Run on the common pool
+     */
+    public ForkJoinParallelExecutor() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool pool to run on
+     */
+    public ForkJoinParallelExecutor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    @Override
+    public void parallelFor(int numTasks, IntConsumer body) {
+        if (numTasks > 0) {
+            this.pool.invoke(new ForAction(0, numTasks, body));
+        }
+    }
+
+    @Override
+    public <T> T parallelReduce(int numTasks, IntFunction<T> task, BinaryOperator<T> combiner) {
+        if (numTasks < 1) {
+            throw new IllegalArgumentException("numTasks must be positive");
+        }
+        return this.pool.invoke(new ReduceTask<>(0, numTasks, task, combiner));
+    }
+
+    private static class ForAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int startIdx;
+        private final int endIdx;
+        private final IntConsumer body;
+
+        ForAction(int startIdx, int endIdx, IntConsumer body) {
+            this.startIdx = startIdx;
+            this.endIdx = endIdx;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.endIdx - this.startIdx == 1) {
+                this.body.accept(this.startIdx);
+                return;
+            }
+            int midIdx = (this.startIdx + this.endIdx) >>> 1;
+            invokeAll(new ForAction(this.startIdx, midIdx, this.body), new ForAction(midIdx, this.endIdx, this.body));
+        }
+    }
+
+    private static class ReduceTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final int startIdx;
+        private final int endIdx;
+        private final IntFunction<T> task;
+        private final BinaryOperator<T> combiner;
+
+        ReduceTask(int startIdx, int endIdx, IntFunction<T> task, BinaryOperator<T> combiner) {
+            this.startIdx = startIdx;
+            this.endIdx = endIdx;
+            this.task = task;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected T compute() {
+            if (this.endIdx - this.startIdx == 1) {
+                return this.task.apply(this.startIdx);
+            }
+            int midIdx = (this.startIdx + this.endIdx) >>> 1;
+            ReduceTask<T> right = new ReduceTask<>(midIdx, this.endIdx, this.task, this.combiner);
+            right.fork();
+            T left = new ReduceTask<>(this.startIdx, midIdx, this.task, this.combiner).compute();
+            return this.combiner.apply(left, right.join());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.appnexus.opt.concurrent;
+
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * This interface runs the parallel phases of the multi-threaded trainers. Every call waits for exactly the tasks it started, so
+ * several trainings can share one executor, and the first exception thrown by a task is rethrown to the caller
+ */
+public interface IParallelExecutor {
+
+    /**
+     * @return number of tasks the executor can run at the same time, i.e. the number of tasks to split a phase into
+     */
+    int getParallelism();
+
+    /**
+     * Run body(0) to body(numTasks - 1) in parallel and wait for all of them
+     *
+     * @param numTasks number of tasks
+     * @param body     task body, called with the task index
+     */
+    void parallelFor(int numTasks, IntConsumer body);
+
+    /**
+     * Run task(0) to task(numTasks - 1) in parallel and combine their results
+     *
+     * @param numTasks number of tasks, at least 1
+     * @param task     task, called with the task index
+     * @param combiner associative function combining two results
+     * @param <T>      result type
+     * @return combined result of all tasks
+     */
+    <T> T parallelReduce(int numTasks, IntFunction<T> task, BinaryOperator<T> combiner);
+}
@@ -1,5 +1,6 @@
 package com.appnexus.opt.concurrent;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -49,6 +50,35 @@ public class MultiThreadingUtil {
         return datasetRanges;
     }
 
+    /**
+     * Split items 0 to n - 1 into numThreads contiguous ranges of about equal total cost. Some ranges may be empty if single items
+     * are very expensive
+     *
+     * @param cumulativeCost prefix sums of the item costs, cumulativeCost[0] == 0 and cumulativeCost[i + 1] - cumulativeCost[i] is
+     *                       the cost of item i
+     * @param numThreads     number of threads
+     * @return exactly numThreads dataset ranges indicating indices by which to partition the items
+     */
+    public static List<DatasetRange> splitIntoBalancedRanges(long[] cumulativeCost, int numThreads) {
+        List<DatasetRange> datasetRanges = new LinkedList<>();
+        int n = cumulativeCost.length - 1;
+        long totalCost = cumulativeCost[n];
+        int startIdx = 0;
+        for (int numDatasetRange = 0; numDatasetRange < numThreads; ++numDatasetRange) {
+            int endIdx = n;
+            if (numDatasetRange != numThreads - 1) {
+                // first item at which the running cost reaches the share of the ranges so far
+                long target = (long) ((double) totalCost * (numDatasetRange + 1) / numThreads);
+                int idx = Arrays.binarySearch(cumulativeCost, startIdx, n + 1, target);
+                endIdx = idx >= 0 ? idx : -(idx + 1);
+                endIdx = Math.max(startIdx, Math.min(n, endIdx));
+            }
+            datasetRanges.add(new DatasetRange(startIdx, endIdx));
+            startIdx = endIdx;
+        }
+        return datasetRanges;
+    }
+
     /**
      * @param completionService completion service
      * @param task              task
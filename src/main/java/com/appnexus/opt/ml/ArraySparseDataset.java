@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This class implements a {@link SparseDataset} held in five contiguous arrays: the row pointers, the column indices and values of all
+ * nonzero entries, and the per-row success counts and weights. A large training set is a handful of large arrays instead of one
+ * {@link SparseObservation} and one {@link SparseArray} per row. Without a value array the data set is binary and every stored value is 1.0
+ */
+public class ArraySparseDataset extends SparseDataset {
+    private final int[] rowPtr;
+    private final int[] indices;
+    private final double[] values; // null for binary data
+    private final double[] y;
+    private final int[] weight;
+
+    /**
+     * @param rowPtr  row i occupies positions rowPtr[i] to rowPtr[i + 1] - 1 of indices and values
+     * @param indices feature indices of all nonzero entries
+     * @param values  feature values of all nonzero entries, or null if every value is 1.0
+     * @param y       number of success events per row
+     * @param weight  number of trials per row
+     */
+    public ArraySparseDataset(int[] rowPtr, int[] indices, double[] values, double[] y, int[] weight) {
+        if (rowPtr.length != y.length + 1 || y.length != weight.length) {
+            throw new IllegalArgumentException("rowPtr must have one more element than y and weight");
+        }
+        if ((values != null && indices.length != values.length) || rowPtr[rowPtr.length - 1] != indices.length) {
+            throw new IllegalArgumentException("indices and values must hold rowPtr[numRows] entries");
+        }
+        this.rowPtr = rowPtr;
+        this.indices = indices;
+        this.values = values;
+        this.y = y;
+        this.weight = weight;
+    }
+
+    @Override
+    public int getNumRows() {
+        return this.y.length;
+    }
+
+    @Override
+    public int getNnz() {
+        return this.indices.length;
+    }
+
+    @Override
+    public int getRowStart(int i) {
+        return this.rowPtr[i];
+    }
+
+    @Override
+    public int getRowEnd(int i) {
+        return this.rowPtr[i + 1];
+    }
+
+    @Override
+    public int getIndex(int k) {
+        return this.indices[k];
+    }
+
+    @Override
+    public double getValue(int k) {
+        return this.values == null ? 1.0 : this.values[k];
+    }
+
+    @Override
+    public boolean isBinary() {
+        return this.values == null;
+    }
+
+    @Override
+    public double getY(int i) {
+        return this.y[i];
+    }
+
+    @Override
+    public int getWeight(int i) {
+        return this.weight[i];
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the ways {@link CoordinateDescentTrainerMT} runs the coordinate updates of a sweep over the betas
+ */
+public enum BetasUpdateParallelism {
+    /**
+     * Update the betas one after the other on the calling thread
+     */
+    SEQUENTIAL,
+    /**
+     * Colour the features so that features that occur in a common row have different colours, then update the betas of one
+     * colour class at a time, concurrently. Their updates are exactly independent, so every class gives the betas of a
+     * sequential pass over it; only the order of the coordinates within a sweep differs from {@link #SEQUENTIAL}, and training
+     * converges to the same betas within the tolerance. Pays off for sparse data with many features, where colour classes are
+     * large
+     */
+    FEATURE_COLORING
+}
@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the ways the coordinate descent trainers compute the covariance part of the Cj term, sum_k
+ * weightedCovarianceMatrix[j][k] * beta[k], for every coordinate update
+ */
+public enum BetasUpdateStrategy {
+    /**
+     * Recompute the sum from the covariance matrix row for every coordinate, O(p) per coordinate
+     */
+    RECOMPUTE,
+    /**
+     * Keep the running vector Cov . beta and add delta * Cov[:, j] to it only when beta j changes. Coordinates that stay at zero
+     * cost O(1), so a sweep costs O(p * changed coordinates). The vector is rebuilt on every full sweep to keep rounding errors
+     * from accumulating
+     */
+    INCREMENTAL
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the ways the coordinate descent trainers compute the Cj term of every coordinate update
+ */
+public enum CoordinateDescentMode {
+    /**
+     * Choose {@link #NAIVE} or {@link #COVARIANCE} per training call from the number of rows, features and nonzeros
+     */
+    AUTO,
+    /**
+     * Build the mi weighted covariance matrix of the features once and read the Cj terms from it. Best when there are many more
+     * rows than features
+     */
+    COVARIANCE,
+    /**
+     * Keep the residual of every row and update it along the column of a feature when its beta changes, O(nnz of column j) per
+     * coordinate and no p x p memory. Best for many features and very sparse data
+     */
+    NAIVE
+}
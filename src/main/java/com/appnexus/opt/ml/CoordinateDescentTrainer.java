@@ -16,14 +16,21 @@
 
 package com.appnexus.opt.ml;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-
 /**
  * This class implements a {@link IModelTrainer} that uses Coordinate Descent method to train Logistic Regression models
  */
 public class CoordinateDescentTrainer implements IModelTrainer {
     private static final double PROB_EPSILON = 1e-15;
+    private static final int DEFAULT_TRAINING_METRICS_PERIOD = 10;
+
+    private CovarianceStorage covarianceStorage = CovarianceStorage.DENSE;
+    private boolean activeSetIteration = true;
+    private BetasUpdateStrategy betasUpdateStrategy = BetasUpdateStrategy.INCREMENTAL;
+    private CoordinateDescentMode coordinateDescentMode = CoordinateDescentMode.AUTO;
+    private TrainingMetricsPolicy trainingMetricsPolicy = TrainingMetricsPolicy.EVERY_ITERATION;
+    private int trainingMetricsPeriod = DEFAULT_TRAINING_METRICS_PERIOD;
+    private boolean iterationSnapshots;
+    private IIterationListener iterationListener;
 
     /**
      * Calculate the Cj term. This is re-computed after calculating every 'j'th beta
@@ -52,60 +59,168 @@ public class CoordinateDescentTrainer implements IModelTrainer {
      * @return weighted covariance matrix of observation data
      */
     static double[][] getWeightedCovarianceMatrix(int size, SparseObservation[] observations, double[] mi) {
-        double[][] weightedCovarianceMatrix = new double[size][size];
-        for (int i = 0; i < observations.length; ++i) {
-            /*
-             * compute sum of Xj * Xk where j < k note: matrix is symmetrical
-             */
-            for (SparseArray.Entry xRowj : observations[i].getX()) {
-                int j = xRowj.i + 1;
-                for (SparseArray.Entry xRowk : observations[i].getX()) {
-                    int k = xRowk.i + 1;
-                    if (j < k) {
-                        double value = mi[i] * xRowj.x * xRowk.x;
-                        weightedCovarianceMatrix[j][k] += value;
-                        weightedCovarianceMatrix[k][j] += value;
-                    }
-                }
-            }
-            /*
-             * add in the entries of the matrix for the 0th row and the 0th column (i.e. beta 0) note: beta0 will always have an X value of 1 since it's "always present"
-             */
-            for (SparseArray.Entry xRowj : observations[i].getX()) {
-                int j = xRowj.i + 1;
-                if (j != 0) {
-                    double value = mi[i] * xRowj.x * 1;
-                    weightedCovarianceMatrix[j][0] += value;
-                    weightedCovarianceMatrix[0][j] += value;
+        return getWeightedCovarianceMatrix(size, SparseDataset.fromObservations(observations), mi);
+    }
 
-                }
-            }
-        }
+    /**
+     * Calculate mi weighted covariance matrix
+     *
+     * @param size    dimensions of the square matrix
+     * @param dataset sparse data set
+     * @param mi      weights
+     * @return weighted covariance matrix of observation data
+     */
+    static double[][] getWeightedCovarianceMatrix(int size, SparseDataset dataset, double[] mi) {
+        return ((DenseWeightedCovarianceMatrix) getWeightedCovarianceMatrix(CovarianceStorage.DENSE, size, dataset, mi))
+            .getMatrix();
+    }
+
+    /**
+     * Calculate mi weighted covariance matrix
+     *
+     * @param storage storage type of the matrix
+     * @param size    dimensions of the square matrix
+     * @param dataset sparse data set
+     * @param mi      weights
+     * @return weighted covariance matrix of observation data, ready to be read
+     */
+    static IWeightedCovarianceMatrix getWeightedCovarianceMatrix(CovarianceStorage storage, int size,
+        SparseDataset dataset, double[] mi) {
+        IWeightedCovarianceMatrix weightedCovarianceMatrix = storage.create(size);
+        weightedCovarianceMatrix.addRows(dataset, 0, dataset.getNumRows(), mi);
+        weightedCovarianceMatrix.compact();
         return weightedCovarianceMatrix;
     }
 
+    public CovarianceStorage getCovarianceStorage() {
+        return covarianceStorage;
+    }
+
+    /**
+     * @param covarianceStorage storage of the weighted covariance matrix, {@link CovarianceStorage#DENSE} by default
+     */
+    public void setCovarianceStorage(CovarianceStorage covarianceStorage) {
+        this.covarianceStorage = covarianceStorage;
+    }
+
+    public boolean isActiveSetIteration() {
+        return activeSetIteration;
+    }
+
+    /**
+     * @param activeSetIteration true (the default) to cycle over the nonzero betas between full sweeps, false to update every beta
+     *                           on every iteration
+     */
+    public void setActiveSetIteration(boolean activeSetIteration) {
+        this.activeSetIteration = activeSetIteration;
+    }
+
+    public BetasUpdateStrategy getBetasUpdateStrategy() {
+        return betasUpdateStrategy;
+    }
+
+    /**
+     * @param betasUpdateStrategy how to compute the covariance part of the Cj term, {@link BetasUpdateStrategy#INCREMENTAL} by
+     *                            default
+     */
+    public void setBetasUpdateStrategy(BetasUpdateStrategy betasUpdateStrategy) {
+        this.betasUpdateStrategy = betasUpdateStrategy;
+    }
+
+    public CoordinateDescentMode getCoordinateDescentMode() {
+        return coordinateDescentMode;
+    }
+
+    /**
+     * @param coordinateDescentMode covariance or naive updates, or {@link CoordinateDescentMode#AUTO} to choose per training
+     *                              call; {@link CoordinateDescentMode#AUTO} by default
+     */
+    public void setCoordinateDescentMode(CoordinateDescentMode coordinateDescentMode) {
+        this.coordinateDescentMode = coordinateDescentMode;
+    }
+
+    public TrainingMetricsPolicy getTrainingMetricsPolicy() {
+        return trainingMetricsPolicy;
+    }
+
+    /**
+     * @param trainingMetricsPolicy when to compute the training entropy, {@link TrainingMetricsPolicy#EVERY_ITERATION} by
+     *                              default. The entropy is a full pass over the data per iteration, so
+     *                              {@link TrainingMetricsPolicy#FINAL_ONLY} or {@link TrainingMetricsPolicy#NONE} are cheaper
+     *                              when the per-iteration entropies are not read
+     */
+    public void setTrainingMetricsPolicy(TrainingMetricsPolicy trainingMetricsPolicy) {
+        this.trainingMetricsPolicy = trainingMetricsPolicy;
+    }
+
+    public int getTrainingMetricsPeriod() {
+        return trainingMetricsPeriod;
+    }
+
+    /**
+     * @param trainingMetricsPeriod iterations between training entropies with {@link TrainingMetricsPolicy#PERIODIC}, 10 by
+     *                              default
+     */
+    public void setTrainingMetricsPeriod(int trainingMetricsPeriod) {
+        if (trainingMetricsPeriod < 1) {
+            throw new IllegalArgumentException("trainingMetricsPeriod must be positive");
+        }
+        this.trainingMetricsPeriod = trainingMetricsPeriod;
+    }
+
+    public boolean isIterationSnapshots() {
+        return iterationSnapshots;
+    }
+
+    /**
+     * @param iterationSnapshots true to record a copy of the betas in the metadata of every iteration, false (the default) to
+     *                           leave {@link LRIterationMetadata#getBetas()} null. Snapshots cost iterations * p doubles per
+     *                           training
+     */
+    public void setIterationSnapshots(boolean iterationSnapshots) {
+        this.iterationSnapshots = iterationSnapshots;
+    }
+
+    public IIterationListener getIterationListener() {
+        return iterationListener;
+    }
+
+    /**
+     * @param iterationListener listener to deliver the metadata of every iteration to, or null (the default) to collect it in
+     *                          {@link LRResult#getMetaDataList()}
+     */
+    public void setIterationListener(IIterationListener iterationListener) {
+        this.iterationListener = iterationListener;
+    }
+
     @Override
     public LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights,
         double[] oldBetasWithBeta0, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance,
         int maxIterations) {
+        return trainNewBetasWithBeta0(SparseDataset.fromObservations(observations), totalWeights, oldBetasWithBeta0,
+            alpha, lambda, lambdaScaleFactors, tolerance, maxIterations);
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseDataset dataset, double totalWeights, double[] oldBetasWithBeta0,
+        double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations) {
         LRResult lrResult = new LRResult();
-        ArrayList<LRIterationMetadata> metadataList = new ArrayList<>();
-        lrResult.setMetaDataList(metadataList);
         long trainingTimeStartMillis = System.currentTimeMillis();
 
         /*
          * Calculate mi (current weight) and zi (current target) terms for each observation
          */
         long miZiCalcStartMillis = trainingTimeStartMillis;
-        double[] mi = new double[observations.length];
-        double[] zi = new double[observations.length];
-        for (int i = 0; i < observations.length; ++i) {
-            double betasDotXi = LRUtil.betasDotXi(observations[i].getX(), oldBetasWithBeta0);
+        int numRows = dataset.getNumRows();
+        double[] mi = new double[numRows];
+        double[] zi = new double[numRows];
+        for (int i = 0; i < numRows; ++i) {
+            double betasDotXi = LRUtil.betasDotXi(dataset, i, oldBetasWithBeta0);
             double prob = LRUtil.calcProb(betasDotXi);
             double probBounded = Math.min(1.0 - PROB_EPSILON, Math.max(PROB_EPSILON, prob));
-            double wi = observations[i].getWeight();
+            double wi = dataset.getWeight(i);
             mi[i] = wi * probBounded * (1 - probBounded);
-            zi[i] = betasDotXi + (observations[i].getY() - wi * prob) / mi[i];
+            zi[i] = betasDotXi + (dataset.getY(i) - wi * prob) / mi[i];
         }
         long miZiCalcEndMillis = System.currentTimeMillis();
         lrResult.setMiZiCalcMillis(miZiCalcEndMillis - miZiCalcStartMillis);
@@ -116,110 +231,100 @@ public class CoordinateDescentTrainer implements IModelTrainer {
         long ajCj1CalcStartMillis = miZiCalcEndMillis;
         double[] aj = new double[oldBetasWithBeta0.length];
         double[] cjStaticTerm = new double[oldBetasWithBeta0.length];
-        for (int i = 0; i < observations.length; ++i) {
+        boolean binary = dataset.isBinary();
+        for (int i = 0; i < numRows; ++i) {
             aj[0] += mi[i]; // a-term for intercept
             cjStaticTerm[0] += mi[i] * zi[i]; // c-term first part for intercept
-            for (SparseArray.Entry xj : observations[i].getX()) {
-                int j = xj.i;
-                double xij = xj.x;
+            if (binary) {
+                double miZi = mi[i] * zi[i];
+                for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                    int j = dataset.getIndex(k);
+                    aj[j + 1] += mi[i]; // a-terms, xij == 1
+                    cjStaticTerm[j + 1] += miZi; // c-terms first part, xij == 1
+                }
+                continue;
+            }
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                int j = dataset.getIndex(k);
+                double xij = dataset.getValue(k);
                 aj[j + 1] += mi[i] * xij * xij; // a-terms
                 cjStaticTerm[j + 1] += mi[i] * xij * zi[i]; // c-terms first part
             }
         }
-        for (int j = 0; j < oldBetasWithBeta0.length; ++j) {
-            aj[j] /= totalWeights;
-            cjStaticTerm[j] /= totalWeights;
-        }
+        VectorKernels.get().divide(aj, totalWeights);
+        VectorKernels.get().divide(cjStaticTerm, totalWeights);
         long ajCj1CalcEndMillis = System.currentTimeMillis();
         lrResult.setAjCj1CalcMillis(ajCj1CalcEndMillis - ajCj1CalcStartMillis);
 
+        // Pre-processing: compute weighted covariance matrix, or the column index in naive mode
+        long weightedCovarianceCalcStartMillis = System.currentTimeMillis();
+        CoordinateDescentMode mode = this.coordinateDescentMode == CoordinateDescentMode.AUTO ?
+            CoordinateDescentUtil.chooseMode(dataset, oldBetasWithBeta0.length, this.covarianceStorage) :
+            this.coordinateDescentMode;
+        lrResult.setCoordinateDescentMode(mode);
+        CoordinateDescentUtil.ICjTerm cjTerm;
+        if (mode == CoordinateDescentMode.NAIVE) {
+            cjTerm = CoordinateDescentUtil.naiveCjTerm(dataset, dataset.getColumnIndex(oldBetasWithBeta0.length - 1), mi,
+                zi, aj, totalWeights);
+        } else {
+            IWeightedCovarianceMatrix weightedCovarianceMatrix = getWeightedCovarianceMatrix(this.covarianceStorage,
+                oldBetasWithBeta0.length, dataset, mi);
+            cjTerm = CoordinateDescentUtil.covarianceCjTerm(weightedCovarianceMatrix, cjStaticTerm, aj, totalWeights,
+                this.betasUpdateStrategy);
+        }
+        long weightedCovarianceCalcEndMillis = System.currentTimeMillis();
+        lrResult.setWeightedCovarCalcMillis(weightedCovarianceCalcEndMillis - weightedCovarianceCalcStartMillis);
+
         /*
          * Update and refine betas until convergence
          */
-        double[] scaledLambdaMulAlpha = new double[oldBetasWithBeta0.length - 1];
-        for (int i = 0; i < scaledLambdaMulAlpha.length; ++i) {
-            scaledLambdaMulAlpha[i] = lambda * alpha * lambdaScaleFactors[i];
-        }
-        double[] scaledLambdaMulOneMinusAlpha = new double[oldBetasWithBeta0.length - 1];
-        for (int i = 0; i < scaledLambdaMulOneMinusAlpha.length; ++i) {
-            scaledLambdaMulOneMinusAlpha[i] = lambda * (1 - alpha) * lambdaScaleFactors[i];
-        }
-        double[] newBetasWithBeta0;
-        double maxAbsDifferencePct;
-        double trainingEntropy;
-        int iterations = 0;
-        // Pre-processing: compute weighted covariance matrix
+        long betasUpdateStartMillis = weightedCovarianceCalcEndMillis;
+        CoordinateDescentUtil.updateBetas(lrResult, cjTerm, aj, oldBetasWithBeta0, totalWeights, alpha, lambda,
+            lambdaScaleFactors, tolerance, maxIterations, this.activeSetIteration, this.trainingMetricsPolicy,
+            this.trainingMetricsPeriod, betas -> LREvalUtil.getEntropy(dataset, betas),
+            this.iterationSnapshots, this.iterationListener, null, null);
+        long betasUpdateEndMillis = System.currentTimeMillis();
+        lrResult.setBetasUpdateMillis(betasUpdateEndMillis - betasUpdateStartMillis);
+        lrResult.setTrainingTimeMillis(betasUpdateEndMillis - trainingTimeStartMillis);
+        return lrResult;
+    }
+
+    /**
+     * Train from sufficient statistics alone, starting from the betas they were accumulated at. Gives the betas of training on all
+     * rows the statistics were accumulated from with {@link CovarianceStorage#SPARSE} storage, which the statistics use regardless
+     * of {@link #getCovarianceStorage()}. The training entropy needs the rows and is recorded as NaN, the quadratic objective of
+     * {@link TrainingMetricsPolicy#QUADRATIC_OBJECTIVE} is available
+     *
+     * @param statistics         sufficient statistics of the training rows
+     * @param alpha              elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda             regularization parameter
+     * @param lambdaScaleFactors scale factors for different regularization on different predictors
+     * @param tolerance          max error between successive iterations
+     * @param maxIterations      max iterations
+     * @return trained betas
+     */
+    public LRResult trainNewBetasWithBeta0(SufficientStatistics statistics, double alpha, double lambda,
+        double[] lambdaScaleFactors, double tolerance, int maxIterations) {
+        LRResult lrResult = new LRResult();
+        long trainingTimeStartMillis = System.currentTimeMillis();
+        double totalWeights = statistics.getTotalWeights();
+        double[] aj = statistics.getNormalizedAj();
+        double[] cjStaticTerm = statistics.getNormalizedCjStaticTerm();
         long weightedCovarianceCalcStartMillis = System.currentTimeMillis();
-        double[][] weightedCovarianceMatrix = getWeightedCovarianceMatrix(oldBetasWithBeta0.length, observations, mi);
+        lrResult.setAjCj1CalcMillis(weightedCovarianceCalcStartMillis - trainingTimeStartMillis);
+        lrResult.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+        CoordinateDescentUtil.ICjTerm cjTerm = CoordinateDescentUtil.covarianceCjTerm(
+            statistics.getWeightedCovarianceMatrix(), cjStaticTerm, aj, totalWeights, this.betasUpdateStrategy);
         long weightedCovarianceCalcEndMillis = System.currentTimeMillis();
         lrResult.setWeightedCovarCalcMillis(weightedCovarianceCalcEndMillis - weightedCovarianceCalcStartMillis);
-        // Update betas
+
         long betasUpdateStartMillis = weightedCovarianceCalcEndMillis;
-        do {
-            long startLoop = System.currentTimeMillis();
-            newBetasWithBeta0 = Arrays.copyOf(oldBetasWithBeta0, oldBetasWithBeta0.length);
-            for (int j = 0; j < newBetasWithBeta0.length; ++j) {
-                if (aj[j] == 0) {
-                    newBetasWithBeta0[j] = 0;
-                } else {
-                    double denominator = j == 0 ? aj[0] : aj[j] + scaledLambdaMulOneMinusAlpha[j - 1];
-                    if (denominator != 0) {
-                        double cj = calculateCj2(j, weightedCovarianceMatrix, newBetasWithBeta0, cjStaticTerm[j],
-                            totalWeights);
-                        if (j == 0) {
-                            newBetasWithBeta0[0] = cj / denominator;
-                        } else if (cj < -scaledLambdaMulAlpha[j - 1]) {
-                            newBetasWithBeta0[j] = (cj + scaledLambdaMulAlpha[j - 1]) / denominator;
-                        } else if (cj > scaledLambdaMulAlpha[j - 1]) {
-                            newBetasWithBeta0[j] = (cj - scaledLambdaMulAlpha[j - 1]) / denominator;
-                        } else {
-                            newBetasWithBeta0[j] = 0;
-                        }
-                    }
-                }
-            }
-            ++iterations;
-
-            /*
-             * Calculate convergence error
-             */
-            maxAbsDifferencePct = LRUtil.getMaxAbsDifferencePct(oldBetasWithBeta0, newBetasWithBeta0);
-            trainingEntropy = LREvalUtil.getEntropy(observations, newBetasWithBeta0);
-            long endLoop = System.currentTimeMillis();
-
-            /*
-             * Record Metrics
-             */
-            LRIterationMetadata iterationMetadata = new LRIterationMetadata();
-            iterationMetadata.setAlpha(alpha);
-            iterationMetadata.setLambda(lambda);
-            iterationMetadata.setIteration(iterations);
-            iterationMetadata.setMaxAbsDifferencePct(maxAbsDifferencePct);
-            iterationMetadata.setTrainingEntropy(trainingEntropy);
-            iterationMetadata.setBetas(newBetasWithBeta0);
-            iterationMetadata.setTrainingTimeMillis(endLoop - startLoop);
-
-            metadataList.add(iterationMetadata);
-
-            /*
-             * Set New betas to old for next Iteration
-             */
-            oldBetasWithBeta0 = Arrays.copyOf(newBetasWithBeta0, newBetasWithBeta0.length);
-        } while (!LRUtil.hasConverged(maxAbsDifferencePct, tolerance) && iterations < maxIterations);
+        CoordinateDescentUtil.updateBetas(lrResult, cjTerm, aj, statistics.getBetasWithBeta0(), totalWeights, alpha, lambda,
+            lambdaScaleFactors, tolerance, maxIterations, this.activeSetIteration, this.trainingMetricsPolicy,
+            this.trainingMetricsPeriod, betas -> Double.NaN, this.iterationSnapshots, this.iterationListener, null, null);
         long betasUpdateEndMillis = System.currentTimeMillis();
         lrResult.setBetasUpdateMillis(betasUpdateEndMillis - betasUpdateStartMillis);
-        long trainingTimeEndMillis = System.currentTimeMillis();
-
-        /*
-         * Create LRResult
-         */
-        lrResult.setAlpha(alpha);
-        lrResult.setLambda(lambda);
-        lrResult.setIteration(iterations);
-        lrResult.setMaxAbsDifferencePct(maxAbsDifferencePct);
-        lrResult.setTrainingEntropy(trainingEntropy);
-        lrResult.setBetasWithBeta0(newBetasWithBeta0);
-        lrResult.setTrainingTimeMillis(trainingTimeEndMillis - trainingTimeStartMillis);
+        lrResult.setTrainingTimeMillis(betasUpdateEndMillis - trainingTimeStartMillis);
         return lrResult;
     }
 }
@@ -16,202 +16,314 @@
 
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.CompletionServiceParallelExecutor;
 import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.DatasetRangeQueue;
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import com.appnexus.opt.concurrent.IParallelExecutor;
 import com.appnexus.opt.concurrent.MultiThreadingUtil;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a {@link IModelTrainer} that uses Coordinate Descent method to train Logistic Regression models
  */
 public class CoordinateDescentTrainerMT implements IModelTrainer {
     private static final double PROB_EPSILON = 1e-15;
+    private static final int DEFAULT_TRAINING_METRICS_PERIOD = 10;
+    // rows per block of the fused pass, small enough for the rows and their mi / zi to stay in cache between its steps
+    private static final int FUSED_PASS_BLOCK_ROWS = 1024;
+    private static final int DEFAULT_CHUNKS_PER_THREAD = 8;
 
-    private CompletionService<Boolean> completionService;
+    private IParallelExecutor parallelExecutor;
     private int numTrainingThreads;
+    private CovarianceStorage covarianceStorage = CovarianceStorage.DENSE;
+    private boolean activeSetIteration = true;
+    private BetasUpdateStrategy betasUpdateStrategy = BetasUpdateStrategy.INCREMENTAL;
+    private CoordinateDescentMode coordinateDescentMode = CoordinateDescentMode.AUTO;
+    private CovarianceConstruction covarianceConstruction = CovarianceConstruction.OWNER_COMPUTES;
+    private int chunksPerThread = DEFAULT_CHUNKS_PER_THREAD;
+    private TrainingMetricsPolicy trainingMetricsPolicy = TrainingMetricsPolicy.EVERY_ITERATION;
+    private int trainingMetricsPeriod = DEFAULT_TRAINING_METRICS_PERIOD;
+    private boolean iterationSnapshots;
+    private IIterationListener iterationListener;
+    private BetasUpdateParallelism betasUpdateParallelism = BetasUpdateParallelism.SEQUENTIAL;
 
-    public CoordinateDescentTrainerMT(CompletionService<Boolean> completionService, int numTrainingThreads) {
-        this.completionService = completionService;
-        this.numTrainingThreads = numTrainingThreads;
+    /**
+     * Train on the common {@link java.util.concurrent.ForkJoinPool}
+     */
+    public CoordinateDescentTrainerMT() {
+        this(new ForkJoinParallelExecutor());
+    }
+
+    /**
+     * @param parallelExecutor executor to run the parallel phases on, may be shared by several trainers
+     */
+    public CoordinateDescentTrainerMT(IParallelExecutor parallelExecutor) {
+        this.parallelExecutor = parallelExecutor;
+        this.numTrainingThreads = parallelExecutor.getParallelism();
     }
 
     /**
-     * Calculate the Cj term. This is re-computed after calculating every 'j'th beta
+     * Train on a caller's completion service, see {@link CompletionServiceParallelExecutor}. The completion service must not be
+     * shared with other trainers or anything else that reads its queue, and the trainer must not be called from a task of the
+     * same completion service, since its threads would block waiting on the tasks queued behind them
      *
-     * @param j                        index of the 'j'th beta starting from beta0
-     * @param weightedCovarianceMatrix mi weighted covariance matrix with diagonal terms zeroed out
-     * @param currentBetasWithBeta0    current betas with beta0
-     * @param cjStaticTerm             cjStaticTerm[0] += mi[i] * zi[i] / W; AND cjStaticTerm[j + 1] += mi[i] * xij * zi[i] / W; // c-terms first part
-     * @param totalWeights             sum of all weights / total trials
+     * @param completionService  completion service, used by this trainer only
+     * @param numTrainingThreads number of threads of the pool behind the completion service
      */
-    static double calculateCj2(int j, double[][] weightedCovarianceMatrix, double[] currentBetasWithBeta0,
-        double cjStaticTerm, double totalWeights) {
-        double residual = 0;
-        for (int k = 0; k < currentBetasWithBeta0.length; ++k) {
-            residual += weightedCovarianceMatrix[j][k] * currentBetasWithBeta0[k];
-        }
-        return cjStaticTerm - residual / totalWeights;
+    public CoordinateDescentTrainerMT(CompletionService<Boolean> completionService, int numTrainingThreads) {
+        this(new CompletionServiceParallelExecutor(completionService, numTrainingThreads));
     }
 
-    @Override
-    public LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights,
-        double[] oldBetasWithBeta0, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance,
-        int maxIterations) {
-        LRResult lrResult = new LRResult();
-        ArrayList<LRIterationMetadata> metadataList = new ArrayList<>();
-        lrResult.setMetaDataList(metadataList);
+    public IParallelExecutor getParallelExecutor() {
+        return parallelExecutor;
+    }
 
-        // retrieve datasetRanges
-        List<DatasetRange> datasetRanges = MultiThreadingUtil
-            .splitDatasetIntoRanges(observations, this.numTrainingThreads);
+    public CovarianceStorage getCovarianceStorage() {
+        return covarianceStorage;
+    }
 
-        /*
-          Calculate mi (current weight), zi (current target) terms
-         */
-        long start = System.currentTimeMillis();
-        long miZiCalcStartMillis = start; // split train-time metrics
+    /**
+     * @param covarianceStorage storage of the weighted covariance matrix, {@link CovarianceStorage#DENSE} by default
+     */
+    public void setCovarianceStorage(CovarianceStorage covarianceStorage) {
+        this.covarianceStorage = covarianceStorage;
+    }
 
-        double[] mi = new double[observations.length];
-        double[] zi = new double[observations.length];
+    public boolean isActiveSetIteration() {
+        return activeSetIteration;
+    }
 
-        for (DatasetRange datasetRange : datasetRanges) {
-            MiZiTask miZiTask = new MiZiTask(datasetRange, oldBetasWithBeta0, mi, zi);
-            MultiThreadingUtil.submitTask(this.completionService, miZiTask);
-        }
+    /**
+     * @param activeSetIteration true (the default) to cycle over the nonzero betas between full sweeps, false to update every beta
+     *                           on every iteration
+     */
+    public void setActiveSetIteration(boolean activeSetIteration) {
+        this.activeSetIteration = activeSetIteration;
+    }
 
-        MultiThreadingUtil.waitForThreadCompletion(this.completionService, this.numTrainingThreads);
+    public BetasUpdateStrategy getBetasUpdateStrategy() {
+        return betasUpdateStrategy;
+    }
 
-        long miZiCalcEndMillis = System.currentTimeMillis(); // split train-time metrics
-        lrResult.setMiZiCalcMillis(miZiCalcEndMillis - miZiCalcStartMillis); // split train-time metrics
+    /**
+     * @param betasUpdateStrategy how to compute the covariance part of the Cj term, {@link BetasUpdateStrategy#INCREMENTAL} by
+     *                            default
+     */
+    public void setBetasUpdateStrategy(BetasUpdateStrategy betasUpdateStrategy) {
+        this.betasUpdateStrategy = betasUpdateStrategy;
+    }
 
-        /*
-          Calculate a-term and c-term parts
-         */
-        long ajCj1CalcStartMillis = miZiCalcEndMillis; // split train-time metrics
-        // aj and cj
-        List<double[]> ajList = new LinkedList<>();
-        List<double[]> cj_1List = new LinkedList<>();
-
-        for (int i = 0; i < datasetRanges.size(); i++) {
-            ajList.add(new double[oldBetasWithBeta0.length]);
-            cj_1List.add(new double[oldBetasWithBeta0.length]);
-            AjCjTask ajCjTask = new AjCjTask(datasetRanges.get(i), mi, zi, ajList.get(i), cj_1List.get(i),
-                totalWeights);
-            MultiThreadingUtil.submitTask(this.completionService, ajCjTask);
+    public CoordinateDescentMode getCoordinateDescentMode() {
+        return coordinateDescentMode;
+    }
+
+    /**
+     * @param coordinateDescentMode covariance or naive updates, or {@link CoordinateDescentMode#AUTO} to choose per training
+     *                              call; {@link CoordinateDescentMode#AUTO} by default
+     */
+    public void setCoordinateDescentMode(CoordinateDescentMode coordinateDescentMode) {
+        this.coordinateDescentMode = coordinateDescentMode;
+    }
+
+    public CovarianceConstruction getCovarianceConstruction() {
+        return covarianceConstruction;
+    }
+
+    /**
+     * @param covarianceConstruction how to split the construction of the covariance matrix across threads,
+     *                               {@link CovarianceConstruction#OWNER_COMPUTES} by default
+     */
+    public void setCovarianceConstruction(CovarianceConstruction covarianceConstruction) {
+        this.covarianceConstruction = covarianceConstruction;
+    }
+
+    public int getChunksPerThread() {
+        return chunksPerThread;
+    }
+
+    /**
+     * @param chunksPerThread number of cost-balanced chunks per thread that the work of a pass is split into; threads pull the
+     *                        next chunk when they are done with one, so threads that finish early take more chunks. 1 splits
+     *                        the work statically into one balanced range per thread. 8 by default
+     */
+    public void setChunksPerThread(int chunksPerThread) {
+        if (chunksPerThread < 1) {
+            throw new IllegalArgumentException("chunksPerThread must be positive");
         }
+        this.chunksPerThread = chunksPerThread;
+    }
+
+    public TrainingMetricsPolicy getTrainingMetricsPolicy() {
+        return trainingMetricsPolicy;
+    }
 
-        MultiThreadingUtil.waitForThreadCompletion(this.completionService, this.numTrainingThreads);
+    /**
+     * @param trainingMetricsPolicy when to compute the training entropy, {@link TrainingMetricsPolicy#EVERY_ITERATION} by
+     *                              default. The entropy is a full pass over the data per iteration, so
+     *                              {@link TrainingMetricsPolicy#FINAL_ONLY} or {@link TrainingMetricsPolicy#NONE} are cheaper
+     *                              when the per-iteration entropies are not read
+     */
+    public void setTrainingMetricsPolicy(TrainingMetricsPolicy trainingMetricsPolicy) {
+        this.trainingMetricsPolicy = trainingMetricsPolicy;
+    }
 
-        // combine results
+    public int getTrainingMetricsPeriod() {
+        return trainingMetricsPeriod;
+    }
 
-        double[] aj = new double[oldBetasWithBeta0.length];
-        double[] cj_1 = new double[oldBetasWithBeta0.length];
-        for (int i = 0; i < ajList.size(); i++) {
-            // aj (add all results)
-            double[] ajI = ajList.get(i);
-            Arrays.setAll(aj, idx -> ajI[idx] + aj[idx]);
-            // cj_1 (add all results)
-            double[] cj_1I = cj_1List.get(i);
-            Arrays.setAll(cj_1, idx -> cj_1I[idx] + cj_1[idx]);
+    /**
+     * @param trainingMetricsPeriod iterations between training entropies with {@link TrainingMetricsPolicy#PERIODIC}, 10 by
+     *                              default
+     */
+    public void setTrainingMetricsPeriod(int trainingMetricsPeriod) {
+        if (trainingMetricsPeriod < 1) {
+            throw new IllegalArgumentException("trainingMetricsPeriod must be positive");
         }
+        this.trainingMetricsPeriod = trainingMetricsPeriod;
+    }
+
+    public boolean isIterationSnapshots() {
+        return iterationSnapshots;
+    }
+
+    /**
+     * @param iterationSnapshots true to record a copy of the betas in the metadata of every iteration, false (the default) to
+     *                           leave {@link LRIterationMetadata#getBetas()} null. Snapshots cost iterations * p doubles per
+     *                           training
+     */
+    public void setIterationSnapshots(boolean iterationSnapshots) {
+        this.iterationSnapshots = iterationSnapshots;
+    }
+
+    public IIterationListener getIterationListener() {
+        return iterationListener;
+    }
 
-        long ajCj1CalcEndMillis = System.currentTimeMillis(); // split train-time metrics
-        lrResult.setAjCj1CalcMillis(ajCj1CalcEndMillis - ajCj1CalcStartMillis); // split train-time metrics
+    /**
+     * @param iterationListener listener to deliver the metadata of every iteration to, or null (the default) to collect it in
+     *                          {@link LRResult#getMetaDataList()}
+     */
+    public void setIterationListener(IIterationListener iterationListener) {
+        this.iterationListener = iterationListener;
+    }
+
+    public BetasUpdateParallelism getBetasUpdateParallelism() {
+        return betasUpdateParallelism;
+    }
+
+    /**
+     * @param betasUpdateParallelism how to run the coordinate updates of a sweep, {@link BetasUpdateParallelism#SEQUENTIAL} by
+     *                               default
+     */
+    public void setBetasUpdateParallelism(BetasUpdateParallelism betasUpdateParallelism) {
+        this.betasUpdateParallelism = betasUpdateParallelism;
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights,
+        double[] oldBetasWithBeta0, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance,
+        int maxIterations) {
+        return trainNewBetasWithBeta0(SparseDataset.fromObservations(observations), totalWeights, oldBetasWithBeta0,
+            alpha, lambda, lambdaScaleFactors, tolerance, maxIterations);
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseDataset dataset, double totalWeights, double[] oldBetasWithBeta0,
+        double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations) {
+        LRResult lrResult = new LRResult();
+
+        long start = System.currentTimeMillis();
+        CoordinateDescentMode mode = this.coordinateDescentMode == CoordinateDescentMode.AUTO ?
+            CoordinateDescentUtil.chooseMode(dataset, oldBetasWithBeta0.length, this.covarianceStorage) :
+            this.coordinateDescentMode;
+        lrResult.setCoordinateDescentMode(mode);
+        boolean covariance = mode == CoordinateDescentMode.COVARIANCE;
+        boolean ownerComputes = this.covarianceConstruction == CovarianceConstruction.OWNER_COMPUTES;
+        boolean rowRangesCovariance = covariance && !ownerComputes;
+
+        // retrieve chunks of rows balanced by their cost in this pass
+        DatasetRangeQueue rowChunks = new DatasetRangeQueue(MultiThreadingUtil
+            .splitIntoBalancedRanges(dataset.getCumulativeRowCost(rowRangesCovariance),
+                this.numTrainingThreads * this.chunksPerThread));
 
         /*
-          update and refine betas
+          Calculate mi (current weight), zi (current target), a-term and c-term parts and the weighted covariance matrix in one
+          pass over the rows
          */
-        double[] scaledLambdaMulAlpha = new double[oldBetasWithBeta0.length - 1];
-        for (int i = 0; i < scaledLambdaMulAlpha.length; ++i) {
-            scaledLambdaMulAlpha[i] = lambda * alpha * lambdaScaleFactors[i];
-        }
-        double[] scaledLambdaMulOneMinusAlpha = new double[oldBetasWithBeta0.length - 1];
-        for (int i = 0; i < scaledLambdaMulOneMinusAlpha.length; ++i) {
-            scaledLambdaMulOneMinusAlpha[i] = lambda * (1 - alpha) * lambdaScaleFactors[i];
+        double[] mi = new double[dataset.getNumRows()];
+        double[] zi = new double[dataset.getNumRows()];
+        FusedPassTask[] fusedPassTasks = new FusedPassTask[this.numTrainingThreads];
+        for (int t = 0; t < this.numTrainingThreads; ++t) {
+            fusedPassTasks[t] = new FusedPassTask(dataset, rowChunks, oldBetasWithBeta0, mi, zi,
+                rowRangesCovariance ? this.covarianceStorage.create(oldBetasWithBeta0.length) : null);
         }
-        double[] newBetasWithBeta0 = null;
-        double maxAbsDifferencePct = 0;
-        double trainingEntropy = 0;
-        int iters = 0;
+        this.parallelExecutor.parallelFor(this.numTrainingThreads, t -> fusedPassTasks[t].run());
 
-        // Pre-processing for cj_2
-        long weightedCovarCalcStartMillis = System.currentTimeMillis(); // split train-time metrics
-        double[][] weightedCovar = this.getWeightedCovarianceMatrix(oldBetasWithBeta0.length, observations, mi);
-        long weightedCovarCalcEndMillis = System.currentTimeMillis(); // split train-time metrics
-        lrResult.setWeightedCovarCalcMillis(
-            weightedCovarCalcEndMillis - weightedCovarCalcStartMillis); // split train-time metrics
-
-        long betasUpdateStartMillis = weightedCovarCalcEndMillis; // split train-time metrics
-        do {
-            long startLoop = System.currentTimeMillis();
-            newBetasWithBeta0 = Arrays.copyOf(oldBetasWithBeta0, oldBetasWithBeta0.length);
-            for (int j = 0; j < newBetasWithBeta0.length; ++j) {
-                if (aj[j] == 0) {
-                    newBetasWithBeta0[j] = 0;
+        // combine results, the phase timings are those of the slowest thread
+        long combineStartNanos = System.nanoTime();
+        double[] aj = new double[oldBetasWithBeta0.length];
+        double[] cj_1 = new double[oldBetasWithBeta0.length];
+        IWeightedCovarianceMatrix weightedCovar = null;
+        long miZiCalcNanos = 0;
+        long ajCj1CalcNanos = 0;
+        long weightedCovarCalcNanos = 0;
+        IVectorKernels kernels = VectorKernels.get();
+        for (FusedPassTask fusedPassTask : fusedPassTasks) {
+            kernels.addScaled(1, fusedPassTask.aj, 0, aj, 0, aj.length);
+            kernels.addScaled(1, fusedPassTask.cj_1, 0, cj_1, 0, cj_1.length);
+            if (fusedPassTask.weightedCovarianceMatrix != null) {
+                if (weightedCovar == null) {
+                    weightedCovar = fusedPassTask.weightedCovarianceMatrix;
                 } else {
-                    double denominator = j == 0 ? aj[0] : aj[j] + scaledLambdaMulOneMinusAlpha[j - 1];
-                    if (denominator != 0) {
-                        double cj = calculateCj2(j, weightedCovar, newBetasWithBeta0, cj_1[j], totalWeights);
-                        if (j == 0) {
-                            newBetasWithBeta0[0] = cj / denominator;
-                        } else if (cj < -scaledLambdaMulAlpha[j - 1]) {
-                            newBetasWithBeta0[j] =
-                                denominator == 0 ? 0 : (cj + scaledLambdaMulAlpha[j - 1]) / denominator;
-                        } else if (cj > scaledLambdaMulAlpha[j - 1]) {
-                            newBetasWithBeta0[j] =
-                                denominator == 0 ? 0 : (cj - scaledLambdaMulAlpha[j - 1]) / denominator;
-                        } else {
-                            newBetasWithBeta0[j] = 0;
-                        }
-                    }
+                    weightedCovar.addAll(fusedPassTask.weightedCovarianceMatrix);
                 }
             }
-            ++iters;
-            /*
-              Calculate convergence error
-             */
-            maxAbsDifferencePct = LRUtil.getMaxAbsDifferencePct(oldBetasWithBeta0, newBetasWithBeta0);
-            trainingEntropy = LREvalUtil.getEntropy(observations, newBetasWithBeta0);
-            long endLoop = System.currentTimeMillis();
-
-            /*
-              Record Metrics
-             */
-            // create metadata
-            LRIterationMetadata iterationMetadata = new LRIterationMetadata();
-            iterationMetadata.setAlpha(alpha);
-            iterationMetadata.setLambda(lambda);
-            iterationMetadata.setIteration(iters);
-            iterationMetadata.setMaxAbsDifferencePct(maxAbsDifferencePct);
-            iterationMetadata.setTrainingEntropy(trainingEntropy);
-            iterationMetadata.setBetas(newBetasWithBeta0);
-            iterationMetadata.setTrainingTimeMillis(endLoop - startLoop);
-
-            metadataList.add(iterationMetadata);
-            /*
-              Set New betas to old for next Iteration
-             */
-            oldBetasWithBeta0 = Arrays.copyOf(newBetasWithBeta0, newBetasWithBeta0.length);
-        } while (!LRUtil.hasConverged(maxAbsDifferencePct, tolerance) && iters < maxIterations);
+            miZiCalcNanos = Math.max(miZiCalcNanos, fusedPassTask.miZiCalcNanos);
+            ajCj1CalcNanos = Math.max(ajCj1CalcNanos, fusedPassTask.ajCj1CalcNanos);
+            weightedCovarCalcNanos = Math.max(weightedCovarCalcNanos, fusedPassTask.weightedCovarCalcNanos);
+        }
+        // normalize everything
+        kernels.divide(aj, totalWeights);
+        kernels.divide(cj_1, totalWeights);
+
+        // Pre-processing for cj_2
+        CoordinateDescentUtil.ICjTerm cjTerm;
+        if (covariance) {
+            if (ownerComputes) {
+                weightedCovar = computeWeightedCovarianceMatrix(this.covarianceStorage, oldBetasWithBeta0.length, dataset,
+                    mi);
+            }
+            weightedCovar.compact();
+            cjTerm = CoordinateDescentUtil.covarianceCjTerm(weightedCovar, cj_1, aj, totalWeights,
+                this.betasUpdateStrategy);
+        } else {
+            // the column index is built once per data set, its time is recorded as covariance time
+            cjTerm = CoordinateDescentUtil.naiveCjTerm(dataset, dataset.getColumnIndex(oldBetasWithBeta0.length - 1), mi,
+                zi, aj, totalWeights);
+        }
+        weightedCovarCalcNanos += System.nanoTime() - combineStartNanos;
+        lrResult.setMiZiCalcMillis(TimeUnit.NANOSECONDS.toMillis(miZiCalcNanos)); // split train-time metrics
+        lrResult.setAjCj1CalcMillis(TimeUnit.NANOSECONDS.toMillis(ajCj1CalcNanos)); // split train-time metrics
+        lrResult.setWeightedCovarCalcMillis(TimeUnit.NANOSECONDS.toMillis(weightedCovarCalcNanos)); // split train-time metrics
+
+        /*
+          update and refine betas
+         */
+        long betasUpdateStartMillis = System.currentTimeMillis(); // split train-time metrics
+        // the colouring is built once per data set, its time is recorded as betas update time
+        FeatureColoring featureColoring = this.betasUpdateParallelism == BetasUpdateParallelism.FEATURE_COLORING ?
+            dataset.getFeatureColoring(oldBetasWithBeta0.length - 1) : null;
+        CoordinateDescentUtil.updateBetas(lrResult, cjTerm, aj, oldBetasWithBeta0, totalWeights, alpha, lambda,
+            lambdaScaleFactors, tolerance, maxIterations, this.activeSetIteration, this.trainingMetricsPolicy,
+            this.trainingMetricsPeriod, betas -> LREvalUtil.getEntropy(dataset, betas, this.parallelExecutor),
+            this.iterationSnapshots, this.iterationListener, featureColoring, this.parallelExecutor);
         long betasUpdateEndMillis = System.currentTimeMillis(); // split train-time metrics
         lrResult.setBetasUpdateMillis(betasUpdateEndMillis - betasUpdateStartMillis); // split train-time metrics
 
         long trainingTimeMillis = System.currentTimeMillis() - start;
-        /**
-         * Create LRResult
-         */
-
-        lrResult.setAlpha(alpha);
-        lrResult.setLambda(lambda);
-        lrResult.setIteration(iters);
-        lrResult.setMaxAbsDifferencePct(maxAbsDifferencePct);
-        lrResult.setTrainingEntropy(trainingEntropy);
-        lrResult.setBetasWithBeta0(newBetasWithBeta0);
         lrResult.setTrainingTimeMillis(trainingTimeMillis);
 
         return lrResult;
@@ -226,149 +338,172 @@ public class CoordinateDescentTrainerMT implements IModelTrainer {
      * @return covarianceMatrix
      */
     double[][] getWeightedCovarianceMatrix(int size, SparseObservation[] observations, double[] mi) {
+        return getWeightedCovarianceMatrix(size, SparseDataset.fromObservations(observations), mi);
+    }
 
-        List<double[][]> covarianceMatrixResults = new LinkedList<>();
-
-        // retrieve datasetRanges
-        List<DatasetRange> datasetRanges = MultiThreadingUtil
-            .splitDatasetIntoRanges(observations, this.numTrainingThreads);
+    /**
+     * Calculate mi weighted covariance matrix
+     *
+     * @param size    Width / Height of the square matrix
+     * @param dataset sparse data set
+     * @param mi      Current Weights
+     * @return covarianceMatrix
+     */
+    double[][] getWeightedCovarianceMatrix(int size, SparseDataset dataset, double[] mi) {
+        return ((DenseWeightedCovarianceMatrix) getWeightedCovarianceMatrix(CovarianceStorage.DENSE, size, dataset, mi))
+            .getMatrix();
+    }
 
-        for (int i = 0; i < datasetRanges.size(); i++) {
-            covarianceMatrixResults.add(new double[size][size]);
-            WeightedCovarianceMatrixTask weightedCovarianceMatrixTask = new WeightedCovarianceMatrixTask(
-                datasetRanges.get(i), mi, covarianceMatrixResults.get(i));
-            MultiThreadingUtil.submitTask(this.completionService, weightedCovarianceMatrixTask);
+    /**
+     * Calculate mi weighted covariance matrix. Every thread accumulates the chunks of rows it pulls into its own matrix, the
+     * matrices are then added up
+     *
+     * @param storage storage type of the matrix
+     * @param size    Width / Height of the square matrix
+     * @param dataset sparse data set
+     * @param mi      Current Weights
+     * @return covarianceMatrix, ready to be read
+     */
+    IWeightedCovarianceMatrix getWeightedCovarianceMatrix(CovarianceStorage storage, int size, SparseDataset dataset,
+        double[] mi) {
+        if (this.covarianceConstruction == CovarianceConstruction.OWNER_COMPUTES) {
+            IWeightedCovarianceMatrix covarianceMatrix = computeWeightedCovarianceMatrix(storage, size, dataset, mi);
+            covarianceMatrix.compact();
+            return covarianceMatrix;
         }
 
-        MultiThreadingUtil.waitForThreadCompletion(this.completionService, this.numTrainingThreads);
+        // retrieve chunks of rows balanced by nnz^2
+        DatasetRangeQueue rowChunks = new DatasetRangeQueue(MultiThreadingUtil
+            .splitIntoBalancedRanges(dataset.getCumulativeRowCost(true), this.numTrainingThreads * this.chunksPerThread));
 
-        double[][] covarianceMatrix = new double[size][size];
-        for (double[][] covarianceMatrixResult : covarianceMatrixResults) {
-            // TODO, VVAL-249: maybe find a better way to do this
-            for (int i = 0; i < covarianceMatrixResult.length; i++) {
-                for (int j = 0; j < covarianceMatrixResult[i].length; j++) {
-                    covarianceMatrix[i][j] += covarianceMatrixResult[i][j];
-                }
+        IWeightedCovarianceMatrix covarianceMatrix = this.parallelExecutor.parallelReduce(this.numTrainingThreads, t -> {
+            IWeightedCovarianceMatrix covarianceMatrixResult = storage.create(size);
+            for (DatasetRange chunk = rowChunks.next(); chunk != null; chunk = rowChunks.next()) {
+                covarianceMatrixResult.addRows(dataset, chunk.getStartIdx(), chunk.getEndIdx(), mi);
             }
-        }
+            return covarianceMatrixResult;
+        }, (left, right) -> {
+            left.addAll(right);
+            return left;
+        });
+        covarianceMatrix.compact();
         return covarianceMatrix;
     }
 
     /**
-     * Calculate Mi and Zi coefficients for each training observation
+     * Calculate mi weighted covariance matrix with every thread computing the chunks of matrix rows it pulls. The chunks are
+     * balanced by the number of products, sum over the rows i of feature j of nnz_i, that a matrix row needs
+     *
+     * @param storage storage type of the matrix
+     * @param size    Width / Height of the square matrix
+     * @param dataset sparse data set
+     * @param mi      Current Weights
+     * @return covarianceMatrix, not yet compacted
      */
-    class MiZiTask implements Callable<Boolean> {
-        private DatasetRange datasetRange;
-        private double[] oldBetasWithBeta0;
-        private double[] mi;
-        private double[] zi;
-
-        MiZiTask(DatasetRange datasetRange, double[] oldBetasWithBeta0, double[] mi, double[] zi) {
-            this.datasetRange = datasetRange;
-            this.oldBetasWithBeta0 = oldBetasWithBeta0;
-            this.mi = mi;
-            this.zi = zi;
+    IWeightedCovarianceMatrix computeWeightedCovarianceMatrix(CovarianceStorage storage, int size, SparseDataset dataset,
+        double[] mi) {
+        SparseColumnIndex columnIndex = dataset.getColumnIndex(size - 1);
+        long[] cumulativeCost = new long[size + 1];
+        cumulativeCost[1] = dataset.getNnz(); // intercept row
+        for (int j = 1; j < size; ++j) {
+            long cost = 0;
+            for (int p = columnIndex.getColumnStart(j - 1); p < columnIndex.getColumnEnd(j - 1); ++p) {
+                cost += dataset.getRowNnz(columnIndex.getRow(p));
+            }
+            cumulativeCost[j + 1] = cumulativeCost[j] + cost;
         }
+        DatasetRangeQueue matrixRowChunks = new DatasetRangeQueue(MultiThreadingUtil
+            .splitIntoBalancedRanges(cumulativeCost, this.numTrainingThreads * this.chunksPerThread));
 
-        @Override
-        public Boolean call() {
-            for (int i = this.datasetRange.getStartIdx(); i < this.datasetRange.getEndIdx(); ++i) {
-                SparseObservation o = (SparseObservation) this.datasetRange.getDataset()[i];
-                double betasDotXi = LRUtil.betasDotXi(o.getX(), this.oldBetasWithBeta0);
-                double prob = LRUtil.calcProb(betasDotXi);
-                double probBounded = Math.min(1.0 - PROB_EPSILON, Math.max(PROB_EPSILON, prob));
-                double wi = o.getWeight();
-                // fill in mi and zi
-                this.mi[i] = wi * probBounded * (1 - probBounded);
-                this.zi[i] = betasDotXi + (o.getY() - wi * prob) / this.mi[i];
+        IWeightedCovarianceMatrix covarianceMatrix = storage.create(size);
+        this.parallelExecutor.parallelFor(this.numTrainingThreads, t -> {
+            for (DatasetRange chunk = matrixRowChunks.next(); chunk != null; chunk = matrixRowChunks.next()) {
+                covarianceMatrix.computeRows(dataset, columnIndex, chunk.getStartIdx(), chunk.getEndIdx(), mi);
             }
-            return true;
-        }
+        });
+        return covarianceMatrix;
     }
 
-
     /**
-     * Calculate Aj and Cj coefficients for each weight
+     * Calculate Mi and Zi coefficients, the unnormalized Aj and Cj coefficients and the weighted covariance matrix of a range of
+     * training observations in one pass, over the chunks of rows the task pulls from a shared queue. Rows are processed in blocks that stay in cache between the three steps, which are
+     * timed separately
      */
-    class AjCjTask implements Callable<Boolean> {
-        private DatasetRange datasetRange;
+    class FusedPassTask implements Runnable {
+        private SparseDataset dataset;
+        private DatasetRangeQueue rowChunks;
+        private double[] oldBetasWithBeta0;
         private double[] mi;
         private double[] zi;
         private double[] aj;
         private double[] cj_1;
-        private double totalWeights;
-
-        AjCjTask(DatasetRange datasetRange, double[] mi, double[] zi, double[] aj, double[] cj_1, double totalWeights) {
-            this.datasetRange = datasetRange;
+        private IWeightedCovarianceMatrix weightedCovarianceMatrix; // null in naive mode
+        private long miZiCalcNanos;
+        private long ajCj1CalcNanos;
+        private long weightedCovarCalcNanos;
+
+        FusedPassTask(SparseDataset dataset, DatasetRangeQueue rowChunks, double[] oldBetasWithBeta0, double[] mi,
+            double[] zi, IWeightedCovarianceMatrix weightedCovarianceMatrix) {
+            this.dataset = dataset;
+            this.rowChunks = rowChunks;
+            this.oldBetasWithBeta0 = oldBetasWithBeta0;
             this.mi = mi;
             this.zi = zi;
-            this.aj = aj;
-            this.cj_1 = cj_1;
-            this.totalWeights = totalWeights;
+            this.aj = new double[oldBetasWithBeta0.length];
+            this.cj_1 = new double[oldBetasWithBeta0.length];
+            this.weightedCovarianceMatrix = weightedCovarianceMatrix;
         }
 
-        public Boolean call() {
-            for (int i = this.datasetRange.getStartIdx(); i < this.datasetRange.getEndIdx(); ++i) {
-                SparseObservation o = (SparseObservation) this.datasetRange.getDataset()[i];
-                this.aj[0] += this.mi[i]; // a-term for intercept
-                this.cj_1[0] += this.mi[i] * this.zi[i]; // c-term first part for intercept
-                for (SparseArray.Entry xj : o.getX()) {
-                    int j = xj.i;
-                    double xij = xj.x;
-                    this.aj[j + 1] += this.mi[i] * xij * xij; // a-terms
-                    this.cj_1[j + 1] += this.mi[i] * xij * this.zi[i]; // c-terms first part
-                }
-            }
-            // normalize everything
-            for (int i = 0; i < this.aj.length; i++) {
-                this.aj[i] /= this.totalWeights;
-                this.cj_1[i] /= this.totalWeights;
+        @Override
+        public void run() {
+            for (DatasetRange chunk = this.rowChunks.next(); chunk != null; chunk = this.rowChunks.next()) {
+                processChunk(chunk);
             }
-            return true;
         }
-    }
-
-
-    /**
-     * Calculate covariance matrix of training observations weighted by Mi
-     */
-    class WeightedCovarianceMatrixTask implements Callable<Boolean> {
-        private DatasetRange datasetRange;
-        private double[] mi;
-        private double[][] weightedCovarianceMatrix;
 
-        WeightedCovarianceMatrixTask(DatasetRange datasetRange, double[] mi, double[][] weightedCovarianceMatrix) {
-            this.datasetRange = datasetRange;
-            this.mi = mi;
-            this.weightedCovarianceMatrix = weightedCovarianceMatrix;
-        }
-
-        @Override
-        public Boolean call() {
-            for (int i = this.datasetRange.getStartIdx(); i < this.datasetRange.getEndIdx(); ++i) {
-                SparseObservation o = (SparseObservation) this.datasetRange.getDataset()[i];
-                for (SparseArray.Entry xRowj : o.getX()) {
-                    int j = xRowj.i + 1;
-                    for (SparseArray.Entry xRowk : o.getX()) {
-                        int k = xRowk.i + 1;
-                        if (j < k) {
-                            double value = this.mi[i] * xRowj.x * xRowk.x;
-                            this.weightedCovarianceMatrix[j][k] += value;
-                            this.weightedCovarianceMatrix[k][j] += value;
+        private void processChunk(DatasetRange chunk) {
+            boolean binary = this.dataset.isBinary();
+            for (int blockStart = chunk.getStartIdx(); blockStart < chunk.getEndIdx(); blockStart += FUSED_PASS_BLOCK_ROWS) {
+                int blockEnd = Math.min(blockStart + FUSED_PASS_BLOCK_ROWS, chunk.getEndIdx());
+                long miZiStartNanos = System.nanoTime();
+                for (int i = blockStart; i < blockEnd; ++i) {
+                    double betasDotXi = LRUtil.betasDotXi(this.dataset, i, this.oldBetasWithBeta0);
+                    double prob = LRUtil.calcProb(betasDotXi);
+                    double probBounded = Math.min(1.0 - PROB_EPSILON, Math.max(PROB_EPSILON, prob));
+                    double wi = this.dataset.getWeight(i);
+                    // fill in mi and zi
+                    this.mi[i] = wi * probBounded * (1 - probBounded);
+                    this.zi[i] = betasDotXi + (this.dataset.getY(i) - wi * prob) / this.mi[i];
+                }
+                long ajCjStartNanos = System.nanoTime();
+                for (int i = blockStart; i < blockEnd; ++i) {
+                    this.aj[0] += this.mi[i]; // a-term for intercept
+                    double miZi = this.mi[i] * this.zi[i];
+                    this.cj_1[0] += miZi; // c-term first part for intercept
+                    if (binary) {
+                        for (int k = this.dataset.getRowStart(i); k < this.dataset.getRowEnd(i); ++k) {
+                            int j = this.dataset.getIndex(k);
+                            this.aj[j + 1] += this.mi[i]; // a-terms, xij == 1
+                            this.cj_1[j + 1] += miZi; // c-terms first part, xij == 1
                         }
+                        continue;
                     }
-                }
-                for (SparseArray.Entry xRowj : o.getX()) {
-                    int j = xRowj.i + 1;
-                    if (j != 0) {
-                        double value = this.mi[i] * xRowj.x * 1; // multiply by 1?
-                        this.weightedCovarianceMatrix[j][0] += value;
-                        this.weightedCovarianceMatrix[0][j] += value;
-
+                    for (int k = this.dataset.getRowStart(i); k < this.dataset.getRowEnd(i); ++k) {
+                        int j = this.dataset.getIndex(k);
+                        double xij = this.dataset.getValue(k);
+                        this.aj[j + 1] += this.mi[i] * xij * xij; // a-terms
+                        this.cj_1[j + 1] += this.mi[i] * xij * this.zi[i]; // c-terms first part
                     }
                 }
+                long weightedCovarStartNanos = System.nanoTime();
+                if (this.weightedCovarianceMatrix != null) {
+                    this.weightedCovarianceMatrix.addRows(this.dataset, blockStart, blockEnd, this.mi);
+                }
+                long endNanos = System.nanoTime();
+                this.miZiCalcNanos += ajCjStartNanos - miZiStartNanos;
+                this.ajCj1CalcNanos += weightedCovarStartNanos - ajCjStartNanos;
+                this.weightedCovarCalcNanos += endNanos - weightedCovarStartNanos;
             }
-            return true;
         }
     }
 }
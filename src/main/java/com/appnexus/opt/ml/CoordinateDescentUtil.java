@@ -0,0 +1,644 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.IParallelExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * This class provides the beta update loop shared by {@link CoordinateDescentTrainer} and {@link CoordinateDescentTrainerMT}. The
+ * trainers differ only in how they compute the aj, cj and covariance terms from the data. The loop reads the Cj term of every
+ * coordinate update from an {@link ICjTerm}, backed either by the weighted covariance matrix or by per-row residuals
+ */
+class CoordinateDescentUtil {
+    /**
+     * Number of naive sweeps the construction of the covariance matrix is weighed against in {@link #chooseMode}
+     */
+    static final int NAIVE_SWEEPS_ESTIMATE = 10;
+    /**
+     * Colour classes with fewer betas to update are updated on the calling thread
+     */
+    static final int MIN_PARALLEL_UPDATES = 64;
+    /**
+     * Minimum number of covariance matrix entries that a batch of changed betas has to add to Cov . beta to be split across
+     * threads
+     */
+    private static final int MIN_PARALLEL_COVARIANCE_WORK = 1 << 16;
+
+    private CoordinateDescentUtil() {
+    }
+
+    /**
+     * Calculate the Cj term. This is re-computed after calculating every 'j'th beta
+     *
+     * @param j                        index of the 'j'th beta starting from beta0
+     * @param weightedCovarianceMatrix mi weighted covariance matrix with diagonal terms zeroed out
+     * @param currentBetasWithBeta0    current betas with beta0
+     * @param cjStaticTerm             cjStaticTerm[0] += mi[i] * zi[i] / W; AND cjStaticTerm[j + 1] += mi[i] * xij * zi[i] / W; // c-terms first part
+     * @param totalWeights             sum of all weights / total trials
+     */
+    static double calculateCj2(int j, IWeightedCovarianceMatrix weightedCovarianceMatrix,
+        double[] currentBetasWithBeta0, double cjStaticTerm, double totalWeights) {
+        return cjStaticTerm - weightedCovarianceMatrix.dotRow(j, currentBetasWithBeta0) / totalWeights;
+    }
+
+    /**
+     * Estimate whether the naive mode is cheaper than the covariance mode for a data set. The covariance mode pays once for
+     * sum_i nnz_i^2 pair updates plus the initialization of a dense or packed matrix, and then O(p) per changed coordinate. The
+     * naive mode pays for a transpose and then O(nnz) per sweep. Naive mode is chosen when there are more features than rows or
+     * when the covariance matrix would cost more than {@link #NAIVE_SWEEPS_ESTIMATE} naive sweeps
+     *
+     * @param dataset           data set
+     * @param size              number of betas including beta0
+     * @param covarianceStorage storage the covariance mode would use
+     * @return {@link CoordinateDescentMode#NAIVE} or {@link CoordinateDescentMode#COVARIANCE}
+     */
+    static CoordinateDescentMode chooseMode(SparseDataset dataset, int size, CovarianceStorage covarianceStorage) {
+        if (size - 1 > dataset.getNumRows()) {
+            return CoordinateDescentMode.NAIVE;
+        }
+        double covarianceCost = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            double rowNnz = dataset.getRowNnz(i);
+            covarianceCost += rowNnz * rowNnz;
+        }
+        if (covarianceStorage == CovarianceStorage.DENSE) {
+            covarianceCost += (double) size * size;
+        } else if (covarianceStorage == CovarianceStorage.PACKED) {
+            covarianceCost += (double) size * size / 2;
+        }
+        double naiveCost = (double) NAIVE_SWEEPS_ESTIMATE * (dataset.getNnz() + dataset.getNumRows());
+        return covarianceCost > naiveCost ? CoordinateDescentMode.NAIVE : CoordinateDescentMode.COVARIANCE;
+    }
+
+    /**
+     * @param betasWithBeta0     betas
+     * @param cjStaticTerm       c-terms first part
+     * @param aj                 a-terms
+     * @param covarianceDotBetas weighted covariance matrix times betas
+     * @param totalWeights       sum of all weights / total trials
+     * @return -cjStaticTerm . betas + betas . (aj * betas + covarianceDotBetas / W) / 2
+     */
+    private static double quadraticLoss(double[] betasWithBeta0, double[] cjStaticTerm, double[] aj,
+        double[] covarianceDotBetas, double totalWeights) {
+        double loss = 0;
+        for (int j = 0; j < betasWithBeta0.length; ++j) {
+            double beta = betasWithBeta0[j];
+            if (beta != 0) {
+                loss += beta * (0.5 * (aj[j] * beta + covarianceDotBetas[j] / totalWeights) - cjStaticTerm[j]);
+            }
+        }
+        return loss;
+    }
+
+    /**
+     * @param weightedCovarianceMatrix mi weighted covariance matrix with diagonal terms zeroed out
+     * @param cjStaticTerm             c-terms first part
+     * @param aj                       a-terms
+     * @param totalWeights             sum of all weights / total trials
+     * @param betasUpdateStrategy      how to compute the covariance part of the Cj term
+     * @return Cj term read from the covariance matrix
+     */
+    static ICjTerm covarianceCjTerm(IWeightedCovarianceMatrix weightedCovarianceMatrix, double[] cjStaticTerm,
+        double[] aj, double totalWeights, BetasUpdateStrategy betasUpdateStrategy) {
+        if (betasUpdateStrategy == BetasUpdateStrategy.RECOMPUTE) {
+            return new ICjTerm() {
+                @Override
+                public double get(int j, double[] betasWithBeta0) {
+                    return calculateCj2(j, weightedCovarianceMatrix, betasWithBeta0, cjStaticTerm[j], totalWeights);
+                }
+
+                @Override
+                public double getQuadraticLoss(double[] betasWithBeta0) {
+                    double[] covarianceDotBetas = new double[betasWithBeta0.length];
+                    for (int k = 0; k < betasWithBeta0.length; ++k) {
+                        if (betasWithBeta0[k] != 0) {
+                            weightedCovarianceMatrix.addScaledRow(k, betasWithBeta0[k], covarianceDotBetas);
+                        }
+                    }
+                    return quadraticLoss(betasWithBeta0, cjStaticTerm, aj, covarianceDotBetas, totalWeights);
+                }
+            };
+        }
+        double[] covarianceDotBetas = new double[cjStaticTerm.length];
+        return new ICjTerm() {
+            @Override
+            public void startFullSweep(double[] betasWithBeta0) {
+                Arrays.fill(covarianceDotBetas, 0);
+                for (int k = 0; k < betasWithBeta0.length; ++k) {
+                    if (betasWithBeta0[k] != 0) {
+                        weightedCovarianceMatrix.addScaledRow(k, betasWithBeta0[k], covarianceDotBetas);
+                    }
+                }
+            }
+
+            @Override
+            public double get(int j, double[] betasWithBeta0) {
+                return cjStaticTerm[j] - covarianceDotBetas[j] / totalWeights;
+            }
+
+            @Override
+            public void betaChanged(int j, double delta) {
+                weightedCovarianceMatrix.addScaledRow(j, delta, covarianceDotBetas);
+            }
+
+            @Override
+            public void betasChanged(int[] js, double[] deltas, int count, IParallelExecutor parallelExecutor) {
+                int size = covarianceDotBetas.length;
+                if ((long) count * size < MIN_PARALLEL_COVARIANCE_WORK) {
+                    ICjTerm.super.betasChanged(js, deltas, count, parallelExecutor);
+                    return;
+                }
+                // every task owns a range of Cov . beta and adds its part of all changed rows
+                int numTasks = parallelExecutor.getParallelism();
+                parallelExecutor.parallelFor(numTasks, t -> {
+                    int startIdx = (int) ((long) size * t / numTasks);
+                    int endIdx = (int) ((long) size * (t + 1) / numTasks);
+                    for (int c = 0; c < count; ++c) {
+                        weightedCovarianceMatrix.addScaledRow(js[c], deltas[c], covarianceDotBetas, startIdx, endIdx);
+                    }
+                });
+            }
+
+            @Override
+            public double getQuadraticLoss(double[] betasWithBeta0) {
+                return quadraticLoss(betasWithBeta0, cjStaticTerm, aj, covarianceDotBetas, totalWeights);
+            }
+        };
+    }
+
+    /**
+     * The naive Cj term keeps the residual ri = zi - betas . xi of every row and reads cj = (1 / W) * sum_i mi * xij * ri + aj *
+     * betaj along column j, which equals the covariance form without building the p x p matrix
+     *
+     * @param dataset      data set
+     * @param columnIndex  column-major transpose of the data set
+     * @param mi           weights
+     * @param zi           working response
+     * @param aj           a-terms
+     * @param totalWeights sum of all weights / total trials
+     * @return Cj term read from per-row residuals
+     */
+    static ICjTerm naiveCjTerm(SparseDataset dataset, SparseColumnIndex columnIndex, double[] mi, double[] zi,
+        double[] aj, double totalWeights) {
+        double[] residual = new double[dataset.getNumRows()];
+        return new ICjTerm() {
+            @Override
+            public void startFullSweep(double[] betasWithBeta0) {
+                for (int i = 0; i < residual.length; ++i) {
+                    residual[i] = zi[i] - LRUtil.betasDotXi(dataset, i, betasWithBeta0);
+                }
+            }
+
+            @Override
+            public double get(int j, double[] betasWithBeta0) {
+                double sum = 0;
+                if (j == 0) {
+                    for (int i = 0; i < residual.length; ++i) {
+                        sum += mi[i] * residual[i];
+                    }
+                } else if (columnIndex.isBinary()) {
+                    for (int p = columnIndex.getColumnStart(j - 1); p < columnIndex.getColumnEnd(j - 1); ++p) {
+                        int i = columnIndex.getRow(p);
+                        sum += mi[i] * residual[i];
+                    }
+                } else {
+                    for (int p = columnIndex.getColumnStart(j - 1); p < columnIndex.getColumnEnd(j - 1); ++p) {
+                        int i = columnIndex.getRow(p);
+                        sum += mi[i] * columnIndex.getValue(p) * residual[i];
+                    }
+                }
+                return sum / totalWeights + aj[j] * betasWithBeta0[j];
+            }
+
+            @Override
+            public void betaChanged(int j, double delta) {
+                if (j == 0) {
+                    for (int i = 0; i < residual.length; ++i) {
+                        residual[i] -= delta;
+                    }
+                    return;
+                }
+                for (int p = columnIndex.getColumnStart(j - 1); p < columnIndex.getColumnEnd(j - 1); ++p) {
+                    residual[columnIndex.getRow(p)] -= delta * columnIndex.getValue(p);
+                }
+            }
+
+            @Override
+            public void betasChanged(int[] js, double[] deltas, int count, IParallelExecutor parallelExecutor) {
+                if (count < MIN_PARALLEL_UPDATES) {
+                    ICjTerm.super.betasChanged(js, deltas, count, parallelExecutor);
+                    return;
+                }
+                // the features of a colour class occur in disjoint rows, so the tasks update disjoint residuals
+                int numTasks = parallelExecutor.getParallelism();
+                parallelExecutor.parallelFor(numTasks, t -> {
+                    for (int c = count * t / numTasks; c < count * (t + 1) / numTasks; ++c) {
+                        betaChanged(js[c], deltas[c]);
+                    }
+                });
+            }
+
+            @Override
+            public double getQuadraticLoss(double[] betasWithBeta0) {
+                // (1 / 2W) * sum_i mi * (ri^2 - zi^2), the zi^2 part does not depend on the betas
+                double loss = 0;
+                for (int i = 0; i < residual.length; ++i) {
+                    loss += mi[i] * (residual[i] * residual[i] - zi[i] * zi[i]);
+                }
+                return loss / (2 * totalWeights);
+            }
+        };
+    }
+
+    /**
+     * Update and refine betas until convergence and fill in the trained betas and the metadata of every iteration
+     * <p>
+     * With active set iteration, every full sweep over all betas is followed by sweeps over only the nonzero betas (and beta0)
+     * until they converge. A full sweep then checks whether any zero beta has to become nonzero. Training stops once a full sweep
+     * converges, so the result satisfies the same convergence criterion as plain cycling, while a sparse model costs O(active
+     * set * p) instead of O(p^2) per sweep
+     *
+     * @param lrResult                 result to fill in
+     * @param cjTerm                   Cj term of every coordinate update
+     * @param aj                       a-terms
+     * @param oldBetasWithBeta0        betas to start from
+     * @param totalWeights             sum of all weights / total trials
+     * @param alpha                    elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda                   regularization parameter
+     * @param lambdaScaleFactors       scale factors for different regularization on different predictors
+     * @param tolerance                max error between successive iterations
+     * @param maxIterations            max iterations
+     * @param activeSetIteration       true to cycle over the nonzero betas between full sweeps
+     * @param metricsPolicy            when to compute the training entropy
+     * @param metricsPeriod            iterations between training entropies with {@link TrainingMetricsPolicy#PERIODIC}
+     * @param trainingEntropy          training entropy of betas
+     * @param iterationSnapshots       true to record a copy of the betas in the metadata of every iteration
+     * @param iterationListener        listener to deliver the metadata of every iteration to, or null to collect it in the
+     *                                 metadata list of the result
+     * @param featureColoring          colouring of the features to update the betas of one colour class at a time concurrently,
+     *                                 or null to update the betas one after the other
+     * @param parallelExecutor         parallel executor of the colour classes, unused without a colouring
+     */
+    static void updateBetas(LRResult lrResult, ICjTerm cjTerm, double[] aj, double[] oldBetasWithBeta0,
+        double totalWeights, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations,
+        boolean activeSetIteration, TrainingMetricsPolicy metricsPolicy, int metricsPeriod,
+        ToDoubleFunction<double[]> trainingEntropy, boolean iterationSnapshots, IIterationListener iterationListener,
+        FeatureColoring featureColoring, IParallelExecutor parallelExecutor) {
+        List<LRIterationMetadata> metadataList = lrResult.getMetaDataList();
+        if (metadataList == null && iterationListener == null) {
+            metadataList = new ArrayList<>();
+            lrResult.setMetaDataList(metadataList);
+        }
+        double[] scaledLambdaMulAlpha = new double[oldBetasWithBeta0.length - 1];
+        for (int i = 0; i < scaledLambdaMulAlpha.length; ++i) {
+            scaledLambdaMulAlpha[i] = lambda * alpha * lambdaScaleFactors[i];
+        }
+        double[] scaledLambdaMulOneMinusAlpha = new double[oldBetasWithBeta0.length - 1];
+        for (int i = 0; i < scaledLambdaMulOneMinusAlpha.length; ++i) {
+            scaledLambdaMulOneMinusAlpha[i] = lambda * (1 - alpha) * lambdaScaleFactors[i];
+        }
+        int[] activeSet = new int[oldBetasWithBeta0.length];
+        int activeSetSize = 0;
+        ColoredSweep coloredSweep = featureColoring == null ? null :
+            new ColoredSweep(featureColoring, cjTerm, aj, scaledLambdaMulAlpha, scaledLambdaMulOneMinusAlpha,
+                parallelExecutor);
+        boolean fullSweep = true;
+        boolean done;
+        // two buffers swapped every iteration, the betas to start from are not modified
+        oldBetasWithBeta0 = Arrays.copyOf(oldBetasWithBeta0, oldBetasWithBeta0.length);
+        double[] newBetasWithBeta0 = new double[oldBetasWithBeta0.length];
+        double maxAbsDifferencePct;
+        double finalEntropy;
+        int iterations = 0;
+        do {
+            long startLoop = System.currentTimeMillis();
+            System.arraycopy(oldBetasWithBeta0, 0, newBetasWithBeta0, 0, oldBetasWithBeta0.length);
+            if (fullSweep) {
+                cjTerm.startFullSweep(newBetasWithBeta0);
+            }
+            int sweepSize = fullSweep ? newBetasWithBeta0.length : activeSetSize;
+            if (coloredSweep != null) {
+                coloredSweep.sweep(newBetasWithBeta0, fullSweep ? null : activeSet, sweepSize);
+            } else {
+                for (int a = 0; a < sweepSize; ++a) {
+                    int j = fullSweep ? a : activeSet[a];
+                    double previousBeta = newBetasWithBeta0[j];
+                    newBetasWithBeta0[j] = getNewBeta(j, newBetasWithBeta0, cjTerm, aj, scaledLambdaMulAlpha,
+                        scaledLambdaMulOneMinusAlpha);
+                    if (newBetasWithBeta0[j] != previousBeta) {
+                        cjTerm.betaChanged(j, newBetasWithBeta0[j] - previousBeta);
+                    }
+                }
+            }
+            ++iterations;
+
+            /*
+             * Calculate convergence error and choose the betas to update in the next iteration
+             */
+            maxAbsDifferencePct = LRUtil.getMaxAbsDifferencePct(oldBetasWithBeta0, newBetasWithBeta0);
+            boolean converged = LRUtil.hasConverged(maxAbsDifferencePct, tolerance);
+            boolean sweptAll = fullSweep;
+            done = converged && fullSweep;
+            if (activeSetIteration && !done) {
+                if (fullSweep) {
+                    activeSetSize = 0;
+                    int numOfUpdatableBetas = 0;
+                    for (int j = 0; j < newBetasWithBeta0.length; ++j) {
+                        if (j == 0 || newBetasWithBeta0[j] != 0) {
+                            activeSet[activeSetSize++] = j;
+                        }
+                        if (aj[j] != 0) {
+                            ++numOfUpdatableBetas;
+                        }
+                    }
+                    // betas with aj == 0 are always zero, cycling over all other betas is a full sweep
+                    fullSweep = activeSetSize >= numOfUpdatableBetas;
+                } else {
+                    // active set has converged, check the zero betas
+                    fullSweep = converged;
+                }
+            }
+            boolean last = done || iterations >= maxIterations;
+
+            /*
+             * Calculate metrics, the entropy of the trained betas is computed unless the policy is NONE
+             */
+            double iterationEntropy = Double.NaN;
+            double quadraticObjective = Double.NaN;
+            if (metricsPolicy == TrainingMetricsPolicy.EVERY_ITERATION
+                || (metricsPolicy == TrainingMetricsPolicy.PERIODIC && iterations % metricsPeriod == 0)
+                || (last && metricsPolicy != TrainingMetricsPolicy.NONE)) {
+                iterationEntropy = trainingEntropy.applyAsDouble(newBetasWithBeta0);
+            }
+            if (metricsPolicy == TrainingMetricsPolicy.QUADRATIC_OBJECTIVE) {
+                quadraticObjective = cjTerm.getQuadraticLoss(newBetasWithBeta0)
+                    + getPenalty(newBetasWithBeta0, scaledLambdaMulAlpha, scaledLambdaMulOneMinusAlpha);
+            }
+            finalEntropy = iterationEntropy;
+            long endLoop = System.currentTimeMillis();
+
+            /*
+             * Record Metrics
+             */
+            LRIterationMetadata iterationMetadata = new LRIterationMetadata();
+            iterationMetadata.setAlpha(alpha);
+            iterationMetadata.setLambda(lambda);
+            iterationMetadata.setIteration(iterations);
+            iterationMetadata.setMaxAbsDifferencePct(maxAbsDifferencePct);
+            iterationMetadata.setTrainingEntropy(iterationEntropy);
+            iterationMetadata.setQuadraticObjective(quadraticObjective);
+            if (iterationSnapshots) {
+                iterationMetadata.setBetas(Arrays.copyOf(newBetasWithBeta0, newBetasWithBeta0.length));
+            }
+            iterationMetadata.setTrainingTimeMillis(endLoop - startLoop);
+            iterationMetadata.setActiveSetSize(sweepSize);
+            iterationMetadata.setFullSweep(sweptAll);
+            if (iterationListener != null) {
+                iterationListener.iterationCompleted(iterationMetadata);
+            } else {
+                metadataList.add(iterationMetadata);
+            }
+
+            /*
+             * Swap the buffers, the new betas are the old betas of the next iteration
+             */
+            double[] swap = oldBetasWithBeta0;
+            oldBetasWithBeta0 = newBetasWithBeta0;
+            newBetasWithBeta0 = swap;
+        } while (!done && iterations < maxIterations);
+
+        lrResult.setAlpha(alpha);
+        lrResult.setLambda(lambda);
+        lrResult.setIteration(iterations);
+        lrResult.setMaxAbsDifferencePct(maxAbsDifferencePct);
+        lrResult.setTrainingEntropy(finalEntropy);
+        lrResult.setBetasWithBeta0(oldBetasWithBeta0);
+    }
+
+    /**
+     * Coordinate update of one beta. Reads the betas and the state of the Cj term without modifying them
+     *
+     * @param j                            index of the beta starting from beta0
+     * @param betasWithBeta0               current betas
+     * @param cjTerm                       Cj term of every coordinate update
+     * @param aj                           a-terms
+     * @param scaledLambdaMulAlpha         lambda * alpha * scale factor of every feature
+     * @param scaledLambdaMulOneMinusAlpha lambda * (1 - alpha) * scale factor of every feature
+     * @return new value of beta j
+     */
+    private static double getNewBeta(int j, double[] betasWithBeta0, ICjTerm cjTerm, double[] aj,
+        double[] scaledLambdaMulAlpha, double[] scaledLambdaMulOneMinusAlpha) {
+        if (aj[j] == 0) {
+            return 0;
+        }
+        double denominator = j == 0 ? aj[0] : aj[j] + scaledLambdaMulOneMinusAlpha[j - 1];
+        if (denominator == 0) {
+            return betasWithBeta0[j];
+        }
+        double cj = cjTerm.get(j, betasWithBeta0);
+        if (j == 0) {
+            return cj / denominator;
+        } else if (cj < -scaledLambdaMulAlpha[j - 1]) {
+            return (cj + scaledLambdaMulAlpha[j - 1]) / denominator;
+        } else if (cj > scaledLambdaMulAlpha[j - 1]) {
+            return (cj - scaledLambdaMulAlpha[j - 1]) / denominator;
+        }
+        return 0;
+    }
+
+    /**
+     * @param betasWithBeta0               betas
+     * @param scaledLambdaMulAlpha         lambda * alpha * scale factor of every feature
+     * @param scaledLambdaMulOneMinusAlpha lambda * (1 - alpha) * scale factor of every feature
+     * @return elastic-net penalty of the betas, without beta0
+     */
+    private static double getPenalty(double[] betasWithBeta0, double[] scaledLambdaMulAlpha,
+        double[] scaledLambdaMulOneMinusAlpha) {
+        double penalty = 0;
+        for (int j = 1; j < betasWithBeta0.length; ++j) {
+            double beta = betasWithBeta0[j];
+            if (beta != 0) {
+                penalty += scaledLambdaMulAlpha[j - 1] * Math.abs(beta) + 0.5 * scaledLambdaMulOneMinusAlpha[j - 1] * beta * beta;
+            }
+        }
+        return penalty;
+    }
+
+    /**
+     * Sweep over the betas one colour class at a time. Beta0 is updated first on the calling thread. The new betas of a colour
+     * class are then computed concurrently from the same state, as none of them depends on another, and the changes are written
+     * and reported to the Cj term as one batch
+     */
+    private static class ColoredSweep {
+        private final FeatureColoring featureColoring;
+        private final ICjTerm cjTerm;
+        private final double[] aj;
+        private final double[] scaledLambdaMulAlpha;
+        private final double[] scaledLambdaMulOneMinusAlpha;
+        private final IParallelExecutor parallelExecutor;
+        private final int[] classStart; // of the members of the current sweep
+        private final int[] members;
+        private final double[] newBetas;
+        private final int[] changedBetas;
+        private final double[] deltas;
+
+        ColoredSweep(FeatureColoring featureColoring, ICjTerm cjTerm, double[] aj, double[] scaledLambdaMulAlpha,
+            double[] scaledLambdaMulOneMinusAlpha, IParallelExecutor parallelExecutor) {
+            this.featureColoring = featureColoring;
+            this.cjTerm = cjTerm;
+            this.aj = aj;
+            this.scaledLambdaMulAlpha = scaledLambdaMulAlpha;
+            this.scaledLambdaMulOneMinusAlpha = scaledLambdaMulOneMinusAlpha;
+            this.parallelExecutor = parallelExecutor;
+            int numOfFeatures = featureColoring.getNumOfFeatures();
+            this.classStart = new int[featureColoring.getNumColors() + 1];
+            this.members = new int[numOfFeatures];
+            this.newBetas = new double[numOfFeatures];
+            this.changedBetas = new int[numOfFeatures];
+            this.deltas = new double[numOfFeatures];
+        }
+
+        /**
+         * @param betasWithBeta0 current betas, updated in place
+         * @param betas          indices of the betas to update, starting with beta0, or null for all betas
+         * @param numOfBetas     number of betas to update
+         */
+        void sweep(double[] betasWithBeta0, int[] betas, int numOfBetas) {
+            update(betasWithBeta0, 0);
+            int[] sweepMembers;
+            int numColors = this.featureColoring.getNumColors();
+            if (betas == null) {
+                sweepMembers = this.featureColoring.getMembers();
+                for (int c = 0; c <= numColors; ++c) {
+                    this.classStart[c] = this.featureColoring.getClassStart(c);
+                }
+            } else {
+                // group the betas of the active set by colour
+                Arrays.fill(this.classStart, 0);
+                for (int a = 1; a < numOfBetas; ++a) {
+                    ++this.classStart[this.featureColoring.getColor(betas[a]) + 1];
+                }
+                for (int c = 0; c < numColors; ++c) {
+                    this.classStart[c + 1] += this.classStart[c];
+                }
+                for (int a = 1; a < numOfBetas; ++a) {
+                    this.members[this.classStart[this.featureColoring.getColor(betas[a])]++] = betas[a];
+                }
+                // every start has moved to the end of its class
+                System.arraycopy(this.classStart, 0, this.classStart, 1, numColors);
+                this.classStart[0] = 0;
+                sweepMembers = this.members;
+            }
+            for (int c = 0; c < numColors; ++c) {
+                int startIdx = this.classStart[c];
+                int endIdx = this.classStart[c + 1];
+                if (endIdx - startIdx < MIN_PARALLEL_UPDATES) {
+                    for (int a = startIdx; a < endIdx; ++a) {
+                        update(betasWithBeta0, sweepMembers[a]);
+                    }
+                } else {
+                    updateConcurrently(betasWithBeta0, sweepMembers, startIdx, endIdx);
+                }
+            }
+        }
+
+        private void update(double[] betasWithBeta0, int j) {
+            double previousBeta = betasWithBeta0[j];
+            betasWithBeta0[j] = getNewBeta(j, betasWithBeta0, this.cjTerm, this.aj, this.scaledLambdaMulAlpha,
+                this.scaledLambdaMulOneMinusAlpha);
+            if (betasWithBeta0[j] != previousBeta) {
+                this.cjTerm.betaChanged(j, betasWithBeta0[j] - previousBeta);
+            }
+        }
+
+        private void updateConcurrently(double[] betasWithBeta0, int[] sweepMembers, int startIdx, int endIdx) {
+            int numOfBetas = endIdx - startIdx;
+            int numTasks = this.parallelExecutor.getParallelism();
+            this.parallelExecutor.parallelFor(numTasks, t -> {
+                for (int a = startIdx + numOfBetas * t / numTasks; a < startIdx + numOfBetas * (t + 1) / numTasks; ++a) {
+                    this.newBetas[a] = getNewBeta(sweepMembers[a], betasWithBeta0, this.cjTerm, this.aj,
+                        this.scaledLambdaMulAlpha, this.scaledLambdaMulOneMinusAlpha);
+                }
+            });
+            int numChanged = 0;
+            for (int a = startIdx; a < endIdx; ++a) {
+                int j = sweepMembers[a];
+                if (this.newBetas[a] != betasWithBeta0[j]) {
+                    this.changedBetas[numChanged] = j;
+                    this.deltas[numChanged++] = this.newBetas[a] - betasWithBeta0[j];
+                    betasWithBeta0[j] = this.newBetas[a];
+                }
+            }
+            this.cjTerm.betasChanged(this.changedBetas, this.deltas, numChanged, this.parallelExecutor);
+        }
+    }
+
+    /**
+     * This interface declares the Cj term of the coordinate update of beta j, the quantity that is soft-thresholded by lambda *
+     * alpha. Implementations may keep state that follows the betas, so every change of a beta must be reported
+     */
+    interface ICjTerm {
+
+        /**
+         * Called before every full sweep, to rebuild any state from the current betas
+         *
+         * @param betasWithBeta0 current betas
+         */
+        default void startFullSweep(double[] betasWithBeta0) {
+        }
+
+        /**
+         * @param j              index of the beta starting from beta0
+         * @param betasWithBeta0 current betas
+         * @return Cj term of beta j
+         */
+        double get(int j, double[] betasWithBeta0);
+
+        /**
+         * @param j     index of the beta starting from beta0
+         * @param delta new beta j - old beta j
+         */
+        default void betaChanged(int j, double delta) {
+        }
+
+        /**
+         * Report the changes of a batch of betas whose coordinate updates are independent, i.e. the betas of features that never
+         * occur in a common row, possibly splitting the work across the tasks of a parallel executor
+         *
+         * @param js               indices of the changed betas, none of them beta0
+         * @param deltas           new beta - old beta of every changed beta
+         * @param count            number of changed betas
+         * @param parallelExecutor parallel executor
+         */
+        default void betasChanged(int[] js, double[] deltas, int count, IParallelExecutor parallelExecutor) {
+            for (int c = 0; c < count; ++c) {
+                betaChanged(js[c], deltas[c]);
+            }
+        }
+
+        /**
+         * @param betasWithBeta0 current betas, every change of which has been reported
+         * @return (1 / 2W) * sum_i mi * (zi - betas . xi)^2, the loss of the quadratic approximation, up to a constant that does
+         * not depend on the betas
+         */
+        double getQuadraticLoss(double[] betasWithBeta0);
+    }
+}
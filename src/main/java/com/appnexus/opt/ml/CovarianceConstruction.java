@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the ways {@link CoordinateDescentTrainerMT} splits the construction of the weighted covariance matrix across
+ * threads
+ */
+public enum CovarianceConstruction {
+    /**
+     * Every thread adds its range of observations to its own copy of the matrix during the single pass over the data, the copies
+     * are summed afterwards. Memory grows with threads * matrix size
+     */
+    ROW_RANGES,
+    /**
+     * Every thread owns a range of matrix rows, balanced by the number of products they need, and computes them by walking the
+     * columns of its features. Threads never write the same cell, so there is a single matrix and no reduction step
+     */
+    OWNER_COMPUTES
+}
@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the available storage types for the {@link IWeightedCovarianceMatrix}
+ */
+public enum CovarianceStorage {
+    /**
+     * Full size x size array. Fastest to read, 8 * size^2 bytes
+     */
+    DENSE {
+        @Override
+        public IWeightedCovarianceMatrix create(int size) {
+            return new DenseWeightedCovarianceMatrix(size);
+        }
+    },
+    /**
+     * Strictly upper triangle packed into one array, half the memory of {@link #DENSE}
+     */
+    PACKED {
+        @Override
+        public IWeightedCovarianceMatrix create(int size) {
+            return new PackedWeightedCovarianceMatrix(size);
+        }
+    },
+    /**
+     * Only the pairs of features that co-occur in some row, in compressed-sparse-row form. Memory and the cost of reading a row
+     * scale with the number of co-occurring pairs instead of size^2
+     */
+    SPARSE {
+        @Override
+        public IWeightedCovarianceMatrix create(int size) {
+            return new SparseWeightedCovarianceMatrix(size);
+        }
+    };
+
+    /**
+     * @param size width / height of the square matrix
+     * @return new empty matrix
+     */
+    public abstract IWeightedCovarianceMatrix create(int size);
+}
@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class holds the result of a {@link LRCrossValidation}: the models of every fold and, per lambda, the mean and standard error
+ * over the folds of the held-out entropy (normalized by the number of trials), bias and prediction ratio
+ */
+public class CrossValidationResult {
+    private final double[] lambdaGrid;
+    private final List<LinkedList<LRResult>> foldResults;
+    private final double[][] entropy;
+    private final double[][] bias;
+    private final double[][] predRatio;
+    private final int bestLambdaIdx;
+    private final int oneStdErrLambdaIdx;
+
+    /**
+     * @param lambdaGrid  regularization parameters
+     * @param foldResults per fold, the models across the lambda grid
+     * @param entropy     per fold and lambda, the held-out entropy
+     * @param bias        per fold and lambda, the held-out bias
+     * @param predRatio   per fold and lambda, the held-out prediction ratio
+     */
+    public CrossValidationResult(double[] lambdaGrid, List<LinkedList<LRResult>> foldResults, double[][] entropy,
+        double[][] bias, double[][] predRatio) {
+        this.lambdaGrid = lambdaGrid;
+        this.foldResults = foldResults;
+        this.entropy = entropy;
+        this.bias = bias;
+        this.predRatio = predRatio;
+
+        double[] meanEntropy = getMeanEntropy();
+        int bestLambdaIdx = 0;
+        for (int l = 1; l < lambdaGrid.length; ++l) {
+            if (meanEntropy[l] < meanEntropy[bestLambdaIdx]) {
+                bestLambdaIdx = l;
+            }
+        }
+        // the most regularized lambda within one standard error of the best one
+        double threshold = meanEntropy[bestLambdaIdx] + getStdErrEntropy()[bestLambdaIdx];
+        int oneStdErrLambdaIdx = bestLambdaIdx;
+        for (int l = 0; l < lambdaGrid.length; ++l) {
+            if (meanEntropy[l] <= threshold && lambdaGrid[l] > lambdaGrid[oneStdErrLambdaIdx]) {
+                oneStdErrLambdaIdx = l;
+            }
+        }
+        this.bestLambdaIdx = bestLambdaIdx;
+        this.oneStdErrLambdaIdx = oneStdErrLambdaIdx;
+    }
+
+    private static double[] mean(double[][] perFold) {
+        double[] mean = new double[perFold[0].length];
+        for (double[] fold : perFold) {
+            for (int l = 0; l < mean.length; ++l) {
+                mean[l] += fold[l] / perFold.length;
+            }
+        }
+        return mean;
+    }
+
+    private static double[] stdErr(double[][] perFold) {
+        double[] mean = mean(perFold);
+        double[] stdErr = new double[mean.length];
+        for (double[] fold : perFold) {
+            for (int l = 0; l < mean.length; ++l) {
+                stdErr[l] += (fold[l] - mean[l]) * (fold[l] - mean[l]);
+            }
+        }
+        for (int l = 0; l < mean.length; ++l) {
+            stdErr[l] = Math.sqrt(stdErr[l] / (perFold.length - 1) / perFold.length);
+        }
+        return stdErr;
+    }
+
+    public double[] getLambdaGrid() {
+        return lambdaGrid;
+    }
+
+    /**
+     * @return per fold, the models across the lambda grid
+     */
+    public List<LinkedList<LRResult>> getFoldResults() {
+        return foldResults;
+    }
+
+    /**
+     * @return per fold and lambda, the held-out entropy normalized by the number of trials
+     */
+    public double[][] getEntropy() {
+        return entropy;
+    }
+
+    /**
+     * @return per fold and lambda, the held-out bias
+     */
+    public double[][] getBias() {
+        return bias;
+    }
+
+    /**
+     * @return per fold and lambda, the held-out prediction ratio
+     */
+    public double[][] getPredRatio() {
+        return predRatio;
+    }
+
+    public double[] getMeanEntropy() {
+        return mean(this.entropy);
+    }
+
+    public double[] getStdErrEntropy() {
+        return stdErr(this.entropy);
+    }
+
+    public double[] getMeanBias() {
+        return mean(this.bias);
+    }
+
+    public double[] getStdErrBias() {
+        return stdErr(this.bias);
+    }
+
+    public double[] getMeanPredRatio() {
+        return mean(this.predRatio);
+    }
+
+    public double[] getStdErrPredRatio() {
+        return stdErr(this.predRatio);
+    }
+
+    /**
+     * @return index in the lambda grid of the lambda with the lowest mean held-out entropy
+     */
+    public int getBestLambdaIdx() {
+        return bestLambdaIdx;
+    }
+
+    /**
+     * @return lambda with the lowest mean held-out entropy
+     */
+    public double getBestLambda() {
+        return this.lambdaGrid[this.bestLambdaIdx];
+    }
+
+    /**
+     * @return index in the lambda grid of the largest lambda whose mean held-out entropy is within one standard error of the best
+     */
+    public int getOneStdErrLambdaIdx() {
+        return oneStdErrLambdaIdx;
+    }
+
+    /**
+     * @return largest lambda whose mean held-out entropy is within one standard error of the best
+     */
+    public double getOneStdErrLambda() {
+        return this.lambdaGrid[this.oneStdErrLambdaIdx];
+    }
+}
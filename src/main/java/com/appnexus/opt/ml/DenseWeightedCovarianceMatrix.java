@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This class implements a {@link IWeightedCovarianceMatrix} stored as a full two dimensional array
+ */
+public class DenseWeightedCovarianceMatrix implements IWeightedCovarianceMatrix {
+    private final double[][] matrix;
+
+    public DenseWeightedCovarianceMatrix(int size) {
+        this.matrix = new double[size][size];
+    }
+
+    /**
+     * @return the underlying array, not a copy
+     */
+    public double[][] getMatrix() {
+        return this.matrix;
+    }
+
+    @Override
+    public int getSize() {
+        return this.matrix.length;
+    }
+
+    @Override
+    public double get(int j, int k) {
+        return this.matrix[j][k];
+    }
+
+    @Override
+    public double dotRow(int j, double[] vector) {
+        return VectorKernels.get().dot(this.matrix[j], 0, vector, 0, vector.length);
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target) {
+        addScaledRow(j, scale, target, 0, target.length);
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target, int startIdx, int endIdx) {
+        VectorKernels.get().addScaled(scale, this.matrix[j], startIdx, target, startIdx, endIdx - startIdx);
+    }
+
+    @Override
+    public void addRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi) {
+        double[][] weightedCovarianceMatrix = this.matrix;
+        if (dataset.isBinary()) {
+            addBinaryRows(dataset, startIdx, endIdx, mi);
+            return;
+        }
+        for (int i = startIdx; i < endIdx; ++i) {
+            int start = dataset.getRowStart(i);
+            int end = dataset.getRowEnd(i);
+            /*
+             * compute sum of Xj * Xk where j < k note: matrix is symmetrical
+             */
+            for (int a = start; a < end; ++a) {
+                int j = dataset.getIndex(a) + 1;
+                double xij = dataset.getValue(a);
+                for (int b = start; b < end; ++b) {
+                    int k = dataset.getIndex(b) + 1;
+                    if (j < k) {
+                        double value = mi[i] * xij * dataset.getValue(b);
+                        weightedCovarianceMatrix[j][k] += value;
+                        weightedCovarianceMatrix[k][j] += value;
+                    }
+                }
+            }
+            /*
+             * add in the entries of the matrix for the 0th row and the 0th column (i.e. beta 0) note: beta0 will always have an X value of 1 since it's "always present"
+             */
+            for (int a = start; a < end; ++a) {
+                int j = dataset.getIndex(a) + 1;
+                double value = mi[i] * dataset.getValue(a);
+                weightedCovarianceMatrix[j][0] += value;
+                weightedCovarianceMatrix[0][j] += value;
+            }
+        }
+    }
+
+    /**
+     * Every stored value of a binary data set is 1.0, so each co-occurring pair of features contributes mi[i] without loading or
+     * multiplying feature values
+     */
+    private void addBinaryRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi) {
+        double[][] weightedCovarianceMatrix = this.matrix;
+        for (int i = startIdx; i < endIdx; ++i) {
+            int start = dataset.getRowStart(i);
+            int end = dataset.getRowEnd(i);
+            double m = mi[i];
+            for (int a = start; a < end; ++a) {
+                int j = dataset.getIndex(a) + 1;
+                double[] covarianceRowj = weightedCovarianceMatrix[j];
+                for (int b = start; b < end; ++b) {
+                    int k = dataset.getIndex(b) + 1;
+                    if (j < k) {
+                        covarianceRowj[k] += m;
+                        weightedCovarianceMatrix[k][j] += m;
+                    }
+                }
+                // intercept row and column
+                covarianceRowj[0] += m;
+                weightedCovarianceMatrix[0][j] += m;
+            }
+        }
+    }
+
+    @Override
+    public void computeRows(SparseDataset dataset, SparseColumnIndex columnIndex, int startRow, int endRow,
+        double[] mi) {
+        for (int j = startRow; j < endRow; ++j) {
+            double[] row = this.matrix[j];
+            if (j == 0) {
+                // intercept row, X value of beta0 is always 1
+                for (int f = 0; f < columnIndex.getNumOfFeatures(); ++f) {
+                    for (int p = columnIndex.getColumnStart(f); p < columnIndex.getColumnEnd(f); ++p) {
+                        row[f + 1] += mi[columnIndex.getRow(p)] * columnIndex.getValue(p);
+                    }
+                }
+                continue;
+            }
+            int feature = j - 1;
+            for (int p = columnIndex.getColumnStart(feature); p < columnIndex.getColumnEnd(feature); ++p) {
+                int i = columnIndex.getRow(p);
+                double mxij = mi[i] * columnIndex.getValue(p);
+                row[0] += mxij;
+                for (int b = dataset.getRowStart(i); b < dataset.getRowEnd(i); ++b) {
+                    int k = dataset.getIndex(b);
+                    if (k != feature) {
+                        row[k + 1] += mxij * dataset.getValue(b);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addAll(IWeightedCovarianceMatrix other) {
+        double[][] otherMatrix = ((DenseWeightedCovarianceMatrix) other).matrix;
+        IVectorKernels kernels = VectorKernels.get();
+        for (int i = 0; i < this.matrix.length; i++) {
+            kernels.addScaled(1, otherMatrix[i], 0, this.matrix[i], 0, this.matrix[i].length);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class holds a greedy colouring of the features of a {@link SparseDataset} in which two features that occur in a common row
+ * never share a colour. The coordinate updates of the features of one colour class are exactly independent: the Cj term of one
+ * does not depend on the betas of the others, and their residual updates touch disjoint rows. A colour class can therefore be
+ * updated concurrently and gives the same betas as updating its features one after the other
+ * <p>
+ * Features are indexed as betas, starting from 1 for feature 0; the intercept co-occurs with every feature and is not coloured
+ */
+class FeatureColoring {
+    private final int[] colors; // colour of beta j, -1 for the intercept
+    private final int[] classStart;
+    private final int[] members; // betas sorted by colour
+
+    /**
+     * Colour the features in index order, giving every feature the smallest colour none of its neighbours has. Finding the
+     * neighbours costs sum_i nnz_i^2, like the construction of the covariance matrix
+     *
+     * @param dataset       data set
+     * @param columnIndex   column-major transpose of the data set
+     * @param numOfFeatures number of features, greater than every feature index of the data set
+     */
+    FeatureColoring(SparseDataset dataset, SparseColumnIndex columnIndex, int numOfFeatures) {
+        int[] colors = new int[numOfFeatures + 1];
+        Arrays.fill(colors, -1);
+        // lastNeighbor[c] == j while colour c is taken by a neighbour of beta j
+        int[] lastNeighbor = new int[16];
+        Arrays.fill(lastNeighbor, -1);
+        int numColors = 0;
+        for (int j = 1; j <= numOfFeatures; ++j) {
+            for (int p = columnIndex.getColumnStart(j - 1); p < columnIndex.getColumnEnd(j - 1); ++p) {
+                int i = columnIndex.getRow(p);
+                for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                    int neighborColor = colors[dataset.getIndex(k) + 1];
+                    if (neighborColor >= 0) {
+                        lastNeighbor[neighborColor] = j;
+                    }
+                }
+            }
+            int color = 0;
+            while (color < numColors && lastNeighbor[color] == j) {
+                ++color;
+            }
+            if (color == numColors) {
+                if (numColors == lastNeighbor.length) {
+                    lastNeighbor = Arrays.copyOf(lastNeighbor, 2 * numColors);
+                    Arrays.fill(lastNeighbor, numColors, lastNeighbor.length, -1);
+                }
+                ++numColors;
+            }
+            colors[j] = color;
+        }
+
+        int[] classStart = new int[numColors + 1];
+        for (int j = 1; j <= numOfFeatures; ++j) {
+            ++classStart[colors[j] + 1];
+        }
+        for (int c = 0; c < numColors; ++c) {
+            classStart[c + 1] += classStart[c];
+        }
+        int[] next = Arrays.copyOf(classStart, numColors);
+        int[] members = new int[numOfFeatures];
+        for (int j = 1; j <= numOfFeatures; ++j) {
+            members[next[colors[j]]++] = j;
+        }
+        this.colors = colors;
+        this.classStart = classStart;
+        this.members = members;
+    }
+
+    /**
+     * @return number of features
+     */
+    int getNumOfFeatures() {
+        return this.members.length;
+    }
+
+    /**
+     * @return number of colour classes
+     */
+    int getNumColors() {
+        return this.classStart.length - 1;
+    }
+
+    /**
+     * @param j index of the beta starting from beta0
+     * @return colour of beta j, -1 for the intercept
+     */
+    int getColor(int j) {
+        return this.colors[j];
+    }
+
+    /**
+     * @param c colour, or {@link #getNumColors()}
+     * @return position of the first beta of colour c in {@link #getMembers()}, which is the position after the last beta of
+     * colour c - 1
+     */
+    int getClassStart(int c) {
+        return this.classStart[c];
+    }
+
+    /**
+     * @return indices of all betas but beta0, grouped by colour in increasing index order within every colour; not to be modified
+     */
+    int[] getMembers() {
+        return this.members;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class maps the feature ids that actually occur in a data set onto dense ids 0 to n - 1. The trainers size their beta
+ * vectors, aj/cj arrays and p x p covariance matrices by the largest feature id, so training on the remapped rows shrinks all of them
+ * when only a fraction of a (hashed) feature space is live. Trained betas are mapped back to the original id space afterwards
+ * <p>
+ * The mapping is monotonic, so remapped rows stay sorted by feature index
+ */
+public class FeatureIndexRemapper {
+    private final int numOfFeatures;
+    private final int[] compactToOriginal;
+    private final int[] originalToCompact; // -1 for features that are not mapped
+
+    /**
+     * @param numOfFeatures size of the original feature space
+     * @param originalIds   sorted, distinct original feature ids to keep; the i-th id becomes compact id i
+     */
+    public FeatureIndexRemapper(int numOfFeatures, int[] originalIds) {
+        this.numOfFeatures = numOfFeatures;
+        this.compactToOriginal = originalIds;
+        this.originalToCompact = new int[numOfFeatures];
+        Arrays.fill(this.originalToCompact, -1);
+        for (int c = 0; c < originalIds.length; ++c) {
+            if (c > 0 && originalIds[c] <= originalIds[c - 1]) {
+                throw new IllegalArgumentException("original feature ids must be sorted and distinct");
+            }
+            this.originalToCompact[originalIds[c]] = c;
+        }
+    }
+
+    /**
+     * Scan a data set and assign dense ids to the features that occur in it
+     *
+     * @param dataset       data set
+     * @param numOfFeatures size of the original feature space
+     * @return remapper for the features of the data set
+     */
+    public static FeatureIndexRemapper fromDataset(SparseDataset dataset, int numOfFeatures) {
+        boolean[] occurs = new boolean[numOfFeatures];
+        int numOccurring = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                int j = dataset.getIndex(k);
+                if (!occurs[j]) {
+                    occurs[j] = true;
+                    ++numOccurring;
+                }
+            }
+        }
+        int[] originalIds = new int[numOccurring];
+        for (int j = 0, c = 0; j < numOfFeatures; ++j) {
+            if (occurs[j]) {
+                originalIds[c++] = j;
+            }
+        }
+        return new FeatureIndexRemapper(numOfFeatures, originalIds);
+    }
+
+    /**
+     * @return size of the original feature space
+     */
+    public int getNumOfFeatures() {
+        return this.numOfFeatures;
+    }
+
+    /**
+     * @return number of mapped features, i.e. the numOfFeatures to train the remapped data set with
+     */
+    public int getNumOfCompactFeatures() {
+        return this.compactToOriginal.length;
+    }
+
+    /**
+     * @param originalId original feature id
+     * @return compact feature id, or -1 if the feature is not mapped
+     */
+    public int toCompact(int originalId) {
+        return this.originalToCompact[originalId];
+    }
+
+    /**
+     * @param compactId compact feature id
+     * @return original feature id
+     */
+    public int toOriginal(int compactId) {
+        return this.compactToOriginal[compactId];
+    }
+
+    /**
+     * Rewrite the rows of a data set with compact feature ids. Features that are not mapped are dropped
+     *
+     * @param dataset data set in the original id space
+     * @return data set in the compact id space
+     */
+    public ArraySparseDataset remap(SparseDataset dataset) {
+        SparseDataset.Builder builder = new SparseDataset.Builder(dataset.getNumRows(), dataset.getNnz());
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                int c = this.originalToCompact[dataset.getIndex(k)];
+                if (c >= 0) {
+                    builder.addFeature(c, dataset.getValue(k));
+                }
+            }
+            builder.endRow(dataset.getY(i), dataset.getWeight(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param betasWithBeta0 betas in the original id space, beta0 first
+     * @return betas in the compact id space, beta0 first
+     */
+    public double[] toCompactBetas(double[] betasWithBeta0) {
+        double[] compactBetasWithBeta0 = new double[this.compactToOriginal.length + 1];
+        compactBetasWithBeta0[0] = betasWithBeta0[0];
+        for (int c = 0; c < this.compactToOriginal.length; ++c) {
+            compactBetasWithBeta0[c + 1] = betasWithBeta0[this.compactToOriginal[c] + 1];
+        }
+        return compactBetasWithBeta0;
+    }
+
+    /**
+     * @param compactBetasWithBeta0 betas in the compact id space, beta0 first
+     * @return betas in the original id space, beta0 first; features that are not mapped get a beta of 0
+     */
+    public double[] toOriginalBetas(double[] compactBetasWithBeta0) {
+        double[] betasWithBeta0 = new double[this.numOfFeatures + 1];
+        betasWithBeta0[0] = compactBetasWithBeta0[0];
+        for (int c = 0; c < this.compactToOriginal.length; ++c) {
+            betasWithBeta0[this.compactToOriginal[c] + 1] = compactBetasWithBeta0[c + 1];
+        }
+        return betasWithBeta0;
+    }
+
+    /**
+     * @param lambdaScaleFactors scale factors per feature in the original id space
+     * @return scale factors per feature in the compact id space
+     */
+    public double[] toCompactLambdaScaleFactors(double[] lambdaScaleFactors) {
+        double[] compactLambdaScaleFactors = new double[this.compactToOriginal.length];
+        for (int c = 0; c < this.compactToOriginal.length; ++c) {
+            compactLambdaScaleFactors[c] = lambdaScaleFactors[this.compactToOriginal[c]];
+        }
+        return compactLambdaScaleFactors;
+    }
+
+    /**
+     * Map the betas of a result trained on remapped rows, and of its iteration metadata, back to the original id space
+     *
+     * @param lrResult result in the compact id space, updated in place
+     * @return the same result, now in the original id space
+     */
+    public LRResult toOriginalResult(LRResult lrResult) {
+        lrResult.setBetasWithBeta0(toOriginalBetas(lrResult.getBetasWithBeta0()));
+        if (lrResult.getMetaDataList() != null) {
+            for (LRIterationMetadata iterationMetadata : lrResult.getMetaDataList()) {
+                if (iterationMetadata.getBetas() != null) {
+                    iterationMetadata.setBetas(toOriginalBetas(iterationMetadata.getBetas()));
+                }
+            }
+        }
+        return lrResult;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists the ways {@link LRCrossValidation} assigns rows to folds
+ */
+public enum FoldAssignment {
+    /**
+     * Row i goes to fold i % numFolds. Use when the rows are not ordered by anything that matters for the model
+     */
+    INDEX,
+    /**
+     * Row i goes to the fold given by a hash of i and a seed, which scatters rows that are sorted, e.g. by time or by y, over all
+     * folds
+     */
+    HASH
+}
@@ -0,0 +1,240 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class implements the FTRL-Proximal online learner of logistic regression models (McMahan et al., Ad Click Prediction: a
+ * View from the Trenches). Every {@link #update(SparseObservation) update} with one observation costs O(nnz) of its row: the
+ * learner keeps two numbers per beta, the accumulated adjusted gradient z and the accumulated squared gradient n, in primitive
+ * arrays and computes the betas of the row from them when they are needed
+ * <p>
+ * The elastic-net penalty has the meaning it has for the batch trainers, lambda * scale factor * (alpha * |beta| + (1 - alpha) *
+ * beta^2 / 2) per unit of weight: the L1 and L2 strengths applied to the accumulated loss grow with the sum of the weights of all
+ * observations seen so far. Beta0 is not penalized. Observations are aggregated rows like everywhere in the library, y success
+ * events out of weight trials
+ * <p>
+ * A learner is not thread safe
+ */
+public class FtrlProximalLearner {
+    public static final double DEFAULT_LEARNING_RATE = 0.1;
+    public static final double DEFAULT_LEARNING_RATE_BETA = 1;
+
+    private final double alpha;
+    private final double lambda;
+    private final double[] scaledLambdaMulAlpha;
+    private final double[] scaledLambdaMulOneMinusAlpha;
+    private final double learningRate;
+    private final double learningRateBeta;
+    private final double[] z;
+    private final double[] n;
+    private double cumulativeWeight;
+    private long numOfUpdates;
+    private double[] rowBetas = new double[16]; // betas of the entries of the row being updated
+
+    /**
+     * Learner with the default learning rates, starting from all betas zero
+     *
+     * @param numOfFeatures      number of features
+     * @param alpha              elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda             regularization parameter
+     * @param lambdaScaleFactors scale factors for different regularization on different predictors
+     */
+    public FtrlProximalLearner(int numOfFeatures, double alpha, double lambda, double[] lambdaScaleFactors) {
+        this(numOfFeatures, alpha, lambda, lambdaScaleFactors, DEFAULT_LEARNING_RATE, DEFAULT_LEARNING_RATE_BETA, null);
+    }
+
+    /**
+     * @param numOfFeatures         number of features
+     * @param alpha                 elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda                regularization parameter
+     * @param lambdaScaleFactors    scale factors for different regularization on different predictors
+     * @param learningRate          per-coordinate learning rate learningRate / (learningRateBeta + sqrt(n)), the alpha of the
+     *                              FTRL-Proximal paper
+     * @param learningRateBeta      smoothing of the per-coordinate learning rate, the beta of the FTRL-Proximal paper
+     * @param initialBetasWithBeta0 betas to start from, or null to start from all betas zero
+     */
+    public FtrlProximalLearner(int numOfFeatures, double alpha, double lambda, double[] lambdaScaleFactors,
+        double learningRate, double learningRateBeta, double[] initialBetasWithBeta0) {
+        if (learningRate <= 0 || learningRateBeta <= 0) {
+            throw new IllegalArgumentException(
+                "learningRate and learningRateBeta must be positive: " + learningRate + ", " + learningRateBeta);
+        }
+        this.alpha = alpha;
+        this.lambda = lambda;
+        this.scaledLambdaMulAlpha = new double[numOfFeatures];
+        this.scaledLambdaMulOneMinusAlpha = new double[numOfFeatures];
+        for (int j = 0; j < numOfFeatures; ++j) {
+            this.scaledLambdaMulAlpha[j] = lambda * alpha * lambdaScaleFactors[j];
+            this.scaledLambdaMulOneMinusAlpha[j] = lambda * (1 - alpha) * lambdaScaleFactors[j];
+        }
+        this.learningRate = learningRate;
+        this.learningRateBeta = learningRateBeta;
+        this.z = new double[numOfFeatures + 1];
+        this.n = new double[numOfFeatures + 1];
+        if (initialBetasWithBeta0 != null) {
+            // with n = 0 and no weight seen yet, beta j = -z j * learningRate / learningRateBeta
+            for (int j = 0; j < this.z.length; ++j) {
+                this.z[j] = -initialBetasWithBeta0[j] * learningRateBeta / learningRate;
+            }
+        }
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public double getLambda() {
+        return lambda;
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    public double getLearningRateBeta() {
+        return learningRateBeta;
+    }
+
+    /**
+     * @return sum of the weights of all observations seen so far
+     */
+    public double getCumulativeWeight() {
+        return cumulativeWeight;
+    }
+
+    /**
+     * @return number of updates so far
+     */
+    public long getNumOfUpdates() {
+        return numOfUpdates;
+    }
+
+    /**
+     * @return number of features
+     */
+    public int getNumOfFeatures() {
+        return this.z.length - 1;
+    }
+
+    /**
+     * @param j index of the beta starting from beta0
+     * @return current beta j
+     */
+    public double getBeta(int j) {
+        double zj = this.z[j];
+        if (j == 0) {
+            return -zj / ((this.learningRateBeta + Math.sqrt(this.n[0])) / this.learningRate);
+        }
+        double l1 = this.scaledLambdaMulAlpha[j - 1] * this.cumulativeWeight;
+        if (Math.abs(zj) <= l1) {
+            return 0;
+        }
+        double l2 = this.scaledLambdaMulOneMinusAlpha[j - 1] * this.cumulativeWeight;
+        return -(zj - Math.signum(zj) * l1) / ((this.learningRateBeta + Math.sqrt(this.n[j])) / this.learningRate + l2);
+    }
+
+    /**
+     * @return current betas, O(p)
+     */
+    public double[] getBetasWithBeta0() {
+        double[] betasWithBeta0 = new double[this.z.length];
+        for (int j = 0; j < betasWithBeta0.length; ++j) {
+            betasWithBeta0[j] = getBeta(j);
+        }
+        return betasWithBeta0;
+    }
+
+    /**
+     * @param x feature vector
+     * @return probability of a success event for x under the current betas, O(nnz)
+     */
+    public double predict(SparseArray x) {
+        double betasDotXi = getBeta(0);
+        for (int k = 0; k < x.nnz(); ++k) {
+            betasDotXi += x.valueAt(k) * getBeta(x.indexAt(k) + 1);
+        }
+        return LRUtil.calcProb(betasDotXi);
+    }
+
+    /**
+     * Update the betas of the features of one observation with the gradient of its log loss
+     *
+     * @param observation observation
+     */
+    public void update(SparseObservation observation) {
+        SparseArray x = observation.getX();
+        this.cumulativeWeight += observation.getWeight();
+        double[] rowBetas = getRowBetas(x.nnz());
+        double beta0 = getBeta(0);
+        double betasDotXi = beta0;
+        for (int k = 0; k < x.nnz(); ++k) {
+            rowBetas[k] = getBeta(x.indexAt(k) + 1);
+            betasDotXi += x.valueAt(k) * rowBetas[k];
+        }
+        double gradientScale = observation.getWeight() * LRUtil.calcProb(betasDotXi) - observation.getY();
+        updateCoordinate(0, gradientScale, beta0);
+        for (int k = 0; k < x.nnz(); ++k) {
+            updateCoordinate(x.indexAt(k) + 1, gradientScale * x.valueAt(k), rowBetas[k]);
+        }
+        ++this.numOfUpdates;
+    }
+
+    /**
+     * Update the betas of the features of row i of a data set with the gradient of its log loss
+     *
+     * @param dataset data set
+     * @param i       row
+     */
+    public void update(SparseDataset dataset, int i) {
+        int start = dataset.getRowStart(i);
+        int rowNnz = dataset.getRowEnd(i) - start;
+        this.cumulativeWeight += dataset.getWeight(i);
+        double[] rowBetas = getRowBetas(rowNnz);
+        double beta0 = getBeta(0);
+        double betasDotXi = beta0;
+        for (int k = 0; k < rowNnz; ++k) {
+            rowBetas[k] = getBeta(dataset.getIndex(start + k) + 1);
+            betasDotXi += dataset.getValue(start + k) * rowBetas[k];
+        }
+        double gradientScale = dataset.getWeight(i) * LRUtil.calcProb(betasDotXi) - dataset.getY(i);
+        updateCoordinate(0, gradientScale, beta0);
+        for (int k = 0; k < rowNnz; ++k) {
+            updateCoordinate(dataset.getIndex(start + k) + 1, gradientScale * dataset.getValue(start + k), rowBetas[k]);
+        }
+        ++this.numOfUpdates;
+    }
+
+    private double[] getRowBetas(int rowNnz) {
+        if (this.rowBetas.length < rowNnz) {
+            this.rowBetas = Arrays.copyOf(this.rowBetas, Math.max(rowNnz, 2 * this.rowBetas.length));
+        }
+        return this.rowBetas;
+    }
+
+    /**
+     * @param j        index of the beta starting from beta0
+     * @param gradient gradient of the log loss of the observation with respect to beta j
+     * @param beta     beta j the gradient was computed at
+     */
+    private void updateCoordinate(int j, double gradient, double beta) {
+        double nj = this.n[j];
+        double sigma = (Math.sqrt(nj + gradient * gradient) - Math.sqrt(nj)) / this.learningRate;
+        this.z[j] += gradient - sigma * beta;
+        this.n[j] = nj + gradient * gradient;
+    }
+}
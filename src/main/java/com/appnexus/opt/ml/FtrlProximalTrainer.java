@@ -0,0 +1,211 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * This class implements a {@link IModelTrainer} that trains Logistic Regression models with epochs of
+ * {@link FtrlProximalLearner} updates over the observations, in their order. Training starts from the given betas and stops once
+ * the betas of two successive epochs are within the tolerance or after maxIterations epochs. It minimizes the same elastic-net
+ * penalized log loss as {@link CoordinateDescentTrainer}, but every epoch costs O(nnz) without building any p x p state, so it
+ * suits very wide data sets and models that are then kept fresh with the streaming learner
+ * <p>
+ * The learner scales the penalty by the weights it has seen so far, so the totalWeights argument of the training methods is not
+ * used. Every epoch is one iteration of the metadata
+ */
+public class FtrlProximalTrainer implements IModelTrainer {
+    private static final int DEFAULT_TRAINING_METRICS_PERIOD = 10;
+
+    private double learningRate = FtrlProximalLearner.DEFAULT_LEARNING_RATE;
+    private double learningRateBeta = FtrlProximalLearner.DEFAULT_LEARNING_RATE_BETA;
+    private TrainingMetricsPolicy trainingMetricsPolicy = TrainingMetricsPolicy.FINAL_ONLY;
+    private int trainingMetricsPeriod = DEFAULT_TRAINING_METRICS_PERIOD;
+    private boolean iterationSnapshots;
+    private IIterationListener iterationListener;
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    /**
+     * @param learningRate per-coordinate learning rate, the alpha of the FTRL-Proximal paper, 0.1 by default
+     */
+    public void setLearningRate(double learningRate) {
+        if (learningRate <= 0) {
+            throw new IllegalArgumentException("learningRate must be positive");
+        }
+        this.learningRate = learningRate;
+    }
+
+    public double getLearningRateBeta() {
+        return learningRateBeta;
+    }
+
+    /**
+     * @param learningRateBeta smoothing of the per-coordinate learning rate, the beta of the FTRL-Proximal paper, 1 by default
+     */
+    public void setLearningRateBeta(double learningRateBeta) {
+        if (learningRateBeta <= 0) {
+            throw new IllegalArgumentException("learningRateBeta must be positive");
+        }
+        this.learningRateBeta = learningRateBeta;
+    }
+
+    public TrainingMetricsPolicy getTrainingMetricsPolicy() {
+        return trainingMetricsPolicy;
+    }
+
+    /**
+     * @param trainingMetricsPolicy when to compute the training entropy, {@link TrainingMetricsPolicy#FINAL_ONLY} by default.
+     *                              There is no quadratic model, {@link TrainingMetricsPolicy#QUADRATIC_OBJECTIVE} computes the
+     *                              final entropy only
+     */
+    public void setTrainingMetricsPolicy(TrainingMetricsPolicy trainingMetricsPolicy) {
+        this.trainingMetricsPolicy = trainingMetricsPolicy;
+    }
+
+    public int getTrainingMetricsPeriod() {
+        return trainingMetricsPeriod;
+    }
+
+    /**
+     * @param trainingMetricsPeriod epochs between training entropies with {@link TrainingMetricsPolicy#PERIODIC}, 10 by default
+     */
+    public void setTrainingMetricsPeriod(int trainingMetricsPeriod) {
+        if (trainingMetricsPeriod < 1) {
+            throw new IllegalArgumentException("trainingMetricsPeriod must be positive");
+        }
+        this.trainingMetricsPeriod = trainingMetricsPeriod;
+    }
+
+    public boolean isIterationSnapshots() {
+        return iterationSnapshots;
+    }
+
+    /**
+     * @param iterationSnapshots true to record a copy of the betas in the metadata of every epoch, false (the default) to leave
+     *                           {@link LRIterationMetadata#getBetas()} null
+     */
+    public void setIterationSnapshots(boolean iterationSnapshots) {
+        this.iterationSnapshots = iterationSnapshots;
+    }
+
+    public IIterationListener getIterationListener() {
+        return iterationListener;
+    }
+
+    /**
+     * @param iterationListener listener to deliver the metadata of every epoch to, or null (the default) to collect it in
+     *                          {@link LRResult#getMetaDataList()}
+     */
+    public void setIterationListener(IIterationListener iterationListener) {
+        this.iterationListener = iterationListener;
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights,
+        double[] oldBetasWithBeta0, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance,
+        int maxIterations) {
+        FtrlProximalLearner learner = new FtrlProximalLearner(oldBetasWithBeta0.length - 1, alpha, lambda,
+            lambdaScaleFactors, this.learningRate, this.learningRateBeta, oldBetasWithBeta0);
+        return train(learner, observations.length, i -> learner.update(observations[i]),
+            betas -> LREvalUtil.getEntropy(observations, betas), oldBetasWithBeta0, tolerance, maxIterations);
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseDataset dataset, double totalWeights, double[] oldBetasWithBeta0,
+        double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations) {
+        FtrlProximalLearner learner = new FtrlProximalLearner(oldBetasWithBeta0.length - 1, alpha, lambda,
+            lambdaScaleFactors, this.learningRate, this.learningRateBeta, oldBetasWithBeta0);
+        return train(learner, dataset.getNumRows(), i -> learner.update(dataset, i),
+            betas -> LREvalUtil.getEntropy(dataset, betas), oldBetasWithBeta0, tolerance, maxIterations);
+    }
+
+    /**
+     * @param learner           learner to update
+     * @param numRows           number of observations
+     * @param update            update of the learner with observation i
+     * @param trainingEntropy   training entropy of betas
+     * @param oldBetasWithBeta0 betas the learner starts from
+     * @param tolerance         max error between successive epochs
+     * @param maxIterations     max epochs
+     * @return betas and the metadata of every epoch
+     */
+    private LRResult train(FtrlProximalLearner learner, int numRows, IntConsumer update,
+        ToDoubleFunction<double[]> trainingEntropy, double[] oldBetasWithBeta0, double tolerance, int maxIterations) {
+        long start = System.currentTimeMillis();
+        List<LRIterationMetadata> metadataList = this.iterationListener == null ? new ArrayList<>() : null;
+        double[] betasWithBeta0 = oldBetasWithBeta0;
+        double maxAbsDifferencePct;
+        double finalEntropy;
+        boolean converged;
+        int epochs = 0;
+        do {
+            long startEpoch = System.currentTimeMillis();
+            for (int i = 0; i < numRows; ++i) {
+                update.accept(i);
+            }
+            ++epochs;
+            double[] newBetasWithBeta0 = learner.getBetasWithBeta0();
+            maxAbsDifferencePct = LRUtil.getMaxAbsDifferencePct(betasWithBeta0, newBetasWithBeta0);
+            converged = LRUtil.hasConverged(maxAbsDifferencePct, tolerance);
+            betasWithBeta0 = newBetasWithBeta0;
+            boolean last = converged || epochs >= maxIterations;
+
+            double epochEntropy = Double.NaN;
+            if (this.trainingMetricsPolicy == TrainingMetricsPolicy.EVERY_ITERATION
+                || (this.trainingMetricsPolicy == TrainingMetricsPolicy.PERIODIC && epochs % this.trainingMetricsPeriod == 0)
+                || (last && this.trainingMetricsPolicy != TrainingMetricsPolicy.NONE)) {
+                epochEntropy = trainingEntropy.applyAsDouble(betasWithBeta0);
+            }
+            finalEntropy = epochEntropy;
+
+            LRIterationMetadata iterationMetadata = new LRIterationMetadata();
+            iterationMetadata.setAlpha(learner.getAlpha());
+            iterationMetadata.setLambda(learner.getLambda());
+            iterationMetadata.setIteration(epochs);
+            iterationMetadata.setMaxAbsDifferencePct(maxAbsDifferencePct);
+            iterationMetadata.setTrainingEntropy(epochEntropy);
+            iterationMetadata.setTrainingTimeMillis(System.currentTimeMillis() - startEpoch);
+            iterationMetadata.setActiveSetSize(betasWithBeta0.length);
+            if (this.iterationSnapshots) {
+                iterationMetadata.setBetas(Arrays.copyOf(betasWithBeta0, betasWithBeta0.length));
+            }
+            if (this.iterationListener != null) {
+                this.iterationListener.iterationCompleted(iterationMetadata);
+            } else {
+                metadataList.add(iterationMetadata);
+            }
+        } while (!converged && epochs < maxIterations);
+
+        LRResult lrResult = new LRResult();
+        lrResult.setAlpha(learner.getAlpha());
+        lrResult.setLambda(learner.getLambda());
+        lrResult.setIteration(epochs);
+        lrResult.setMaxAbsDifferencePct(maxAbsDifferencePct);
+        lrResult.setTrainingEntropy(finalEntropy);
+        lrResult.setBetasWithBeta0(betasWithBeta0);
+        lrResult.setMetaDataList(metadataList);
+        lrResult.setBetasUpdateMillis(System.currentTimeMillis() - start);
+        lrResult.setTrainingTimeMillis(System.currentTimeMillis() - start);
+        return lrResult;
+    }
+}
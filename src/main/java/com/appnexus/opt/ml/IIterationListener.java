@@ -0,0 +1,29 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This interface receives the metadata of every iteration of the coordinate descent trainers as soon as the iteration completes,
+ * instead of the metadata being collected in {@link LRResult#getMetaDataList()}. Trainers that run several trainings at once call
+ * it from several threads
+ */
+public interface IIterationListener {
+
+    /**
+     * @param iterationMetadata metadata of the completed iteration
+     */
+    void iterationCompleted(LRIterationMetadata iterationMetadata);
+}
@@ -36,4 +36,25 @@ public interface IModelTrainer {
      */
     LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights, double[] oldBetasWithBeta0,
         double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations);
+
+    /**
+     * Iterate through the rows of a data set once and train a set of Betas. Trainers that do not override this method
+     * receive the data set copied into an array of {@link SparseObservation}. {@link LR} built from an array of
+     * {@link SparseObservation} passes that array directly to such trainers
+     *
+     * @param dataset            Contains feature vectors without intercept term for beta0, weight of each feature vector and dependent variable
+     * @param totalWeights       Sum of all weights / total number of trials
+     * @param oldBetasWithBeta0  Betas from the last iteration
+     * @param alpha              elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda             regularization parameter
+     * @param lambdaScaleFactors scale factors for different regularization on different predictors
+     * @param tolerance          max error between successive iterations
+     * @param maxIterations      max iterations
+     * @return new Betas trained for this iteration
+     */
+    default LRResult trainNewBetasWithBeta0(SparseDataset dataset, double totalWeights, double[] oldBetasWithBeta0,
+        double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations) {
+        return trainNewBetasWithBeta0(dataset.toObservations(), totalWeights, oldBetasWithBeta0, alpha, lambda,
+            lambdaScaleFactors, tolerance, maxIterations);
+    }
 }
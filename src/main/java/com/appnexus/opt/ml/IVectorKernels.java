@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This interface declares the dense loops over double arrays that dominate training when p is large: the dot products of
+ * covariance matrix rows with the betas, the scaled row additions of the incremental Cj term, the merge and normalization of
+ * per-thread sums, and the convergence scans. Implementations are obtained from {@link VectorKernels#get()}
+ */
+interface IVectorKernels {
+
+    /**
+     * @param a       first vector
+     * @param aOffset position of the first element of a
+     * @param b       second vector
+     * @param bOffset position of the first element of b
+     * @param length  number of elements
+     * @return sum over i of a[aOffset + i] * b[bOffset + i]
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * y[yOffset + i] += scale * x[xOffset + i] for 0 <= i < length
+     *
+     * @param scale   multiplier
+     * @param x       vector to add
+     * @param xOffset position of the first element of x
+     * @param y       vector to add to
+     * @param yOffset position of the first element of y
+     * @param length  number of elements
+     */
+    void addScaled(double scale, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * a[i] /= divisor for every element
+     *
+     * @param a       vector
+     * @param divisor divisor
+     */
+    void divide(double[] a, double divisor);
+
+    /**
+     * @param a vector
+     * @return sum of the absolute values of the elements
+     */
+    double sumAbs(double[] a);
+
+    /**
+     * @param a first vector
+     * @param b second vector of the same length
+     * @return max over i of |a[i] - b[i]|, 0 for empty vectors
+     */
+    double maxAbsDifference(double[] a, double[] b);
+}
@@ -0,0 +1,102 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This interface declares the storage of the mi weighted covariance matrix of the training rows, including the intercept as row and
+ * column 0. The matrix is symmetric and its diagonal is zero. Implementations accumulate rows of a data set with
+ * {@link #addRows(SparseDataset, int, int, double[])}, are merged with {@link #addAll(IWeightedCovarianceMatrix)} and must be
+ * {@link #compact() compacted} before they are read
+ */
+public interface IWeightedCovarianceMatrix {
+
+    /**
+     * @return width / height of the square matrix
+     */
+    int getSize();
+
+    /**
+     * @param j row
+     * @param k column
+     * @return value at row j and column k
+     */
+    double get(int j, int k);
+
+    /**
+     * @param j      row
+     * @param vector vector of length {@link #getSize()}
+     * @return sum over k of matrix[j][k] * vector[k]
+     */
+    double dotRow(int j, double[] vector);
+
+    /**
+     * Add a multiple of row j to a vector. As the matrix is symmetric this is also column j
+     *
+     * @param j      row
+     * @param scale  multiplier
+     * @param target vector of length {@link #getSize()}, target[k] += scale * matrix[j][k]
+     */
+    void addScaledRow(int j, double scale, double[] target);
+
+    /**
+     * Add a multiple of columns startIdx to endIdx - 1 of row j to a vector. Concurrent calls for disjoint column ranges write
+     * disjoint parts of the vector
+     *
+     * @param j        row
+     * @param scale    multiplier
+     * @param target   vector of length {@link #getSize()}, target[k] += scale * matrix[j][k] for startIdx <= k < endIdx
+     * @param startIdx first column
+     * @param endIdx   column after the last column
+     */
+    void addScaledRow(int j, double scale, double[] target, int startIdx, int endIdx);
+
+    /**
+     * Add the mi weighted products of all pairs of distinct features of rows startIdx to endIdx - 1
+     *
+     * @param dataset  data set
+     * @param startIdx first row
+     * @param endIdx   row after the last row
+     * @param mi       weights of all rows of the data set
+     */
+    void addRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi);
+
+    /**
+     * Compute rows startRow to endRow - 1 of the matrix (row 0 is the intercept, row j + 1 is feature j) by walking the columns of
+     * the owned features. Every cell is written by the call that owns its row, so concurrent calls for disjoint row ranges need
+     * neither locks nor per-thread copies of the matrix. A matrix is built either with this method or with
+     * {@link #addRows(SparseDataset, int, int, double[])}, not both
+     *
+     * @param dataset     data set
+     * @param columnIndex column-major transpose of the data set
+     * @param startRow    first matrix row to compute
+     * @param endRow      matrix row after the last row to compute
+     * @param mi          weights of all rows of the data set
+     */
+    void computeRows(SparseDataset dataset, SparseColumnIndex columnIndex, int startRow, int endRow, double[] mi);
+
+    /**
+     * Add another matrix of the same storage type and size, e.g. one accumulated by another thread
+     *
+     * @param other matrix to add
+     */
+    void addAll(IWeightedCovarianceMatrix other);
+
+    /**
+     * Finish accumulation and convert to the form used for reading. Does nothing for storage that is read in place
+     */
+    default void compact() {
+    }
+}
@@ -16,14 +16,23 @@
 
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.IParallelExecutor;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * This class is the entry point into using the LR training functionality
  */
 public class LR {
-    private final SparseObservation[] observations; // contains x, y and weight but does not contain entries for beta0
+    private static final double PROB_EPSILON = 1e-15;
+
+    // the caller's rows if built from an array, handed as they are to trainers that only implement the array overload
+    private final SparseObservation[] observations;
+    private volatile SparseDataset dataset; // contains x, y and weight but does not contain entries for beta0
+    private final boolean trainsOnDataset;
     private final int numOfFeatures;
     private final double totalSuccesses;
     private final double totalWeights;
@@ -35,13 +44,34 @@ public class LR {
     private final int maxIterations;
     private final IModelTrainer modelTrainer;
 
+    /**
+     * The observations are kept as they are. Trainers that implement only
+     * {@link IModelTrainer#trainNewBetasWithBeta0(SparseObservation[], double, double[], double, double, double[], double, int)}
+     * train on this array, the others on a {@link SparseDataset} copy of it that is built on first use
+     */
     public LR(SparseObservation[] observations, int numOfFeatures, double[] initialBetasWithBeta0, double alpha,
         double[] lambdaGrid, double[] lambdaScaleFactors, double tolerance, int maxIterations,
         IModelTrainer modelTrainer) {
+        this(observations, null, numOfFeatures, initialBetasWithBeta0, alpha, lambdaGrid, lambdaScaleFactors, tolerance,
+            maxIterations, modelTrainer);
+    }
+
+    public LR(SparseDataset dataset, int numOfFeatures, double[] initialBetasWithBeta0, double alpha,
+        double[] lambdaGrid, double[] lambdaScaleFactors, double tolerance, int maxIterations,
+        IModelTrainer modelTrainer) {
+        this(null, dataset, numOfFeatures, initialBetasWithBeta0, alpha, lambdaGrid, lambdaScaleFactors, tolerance,
+            maxIterations, modelTrainer);
+    }
+
+    private LR(SparseObservation[] observations, SparseDataset dataset, int numOfFeatures,
+        double[] initialBetasWithBeta0, double alpha, double[] lambdaGrid, double[] lambdaScaleFactors, double tolerance,
+        int maxIterations, IModelTrainer modelTrainer) {
         this.observations = observations;
+        this.dataset = dataset;
+        this.trainsOnDataset = overridesDatasetTraining(modelTrainer);
         this.numOfFeatures = numOfFeatures;
-        this.totalSuccesses = getTotalSuccesses(this.observations);
-        this.totalWeights = getTotalWeights(this.observations);
+        this.totalSuccesses = observations != null ? getTotalSuccesses(observations) : getTotalSuccesses(dataset);
+        this.totalWeights = observations != null ? getTotalWeights(observations) : getTotalWeights(dataset);
         this.initialBetasWithBeta0 = getInitialBetasWithBeta0(initialBetasWithBeta0);
         this.alpha = alpha;
         this.lambdaGrid = lambdaGrid;
@@ -51,6 +81,38 @@ public class LR {
         this.modelTrainer = modelTrainer;
     }
 
+    /**
+     * @param modelTrainer model trainer
+     * @return true if the trainer implements training on a {@link SparseDataset} itself, false if it inherits the default that
+     * copies the data set into an array of {@link SparseObservation}
+     */
+    static boolean overridesDatasetTraining(IModelTrainer modelTrainer) {
+        try {
+            return modelTrainer.getClass()
+                .getMethod("trainNewBetasWithBeta0", SparseDataset.class, double.class, double[].class, double.class,
+                    double.class, double[].class, double.class, int.class).getDeclaringClass() != IModelTrainer.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return rows as a data set, converted from the observations on first use if LR was built from an array
+     */
+    private SparseDataset getDataset() {
+        SparseDataset rows = this.dataset;
+        if (rows == null) {
+            synchronized (this) {
+                rows = this.dataset;
+                if (rows == null) {
+                    rows = SparseDataset.fromObservations(this.observations);
+                    this.dataset = rows;
+                }
+            }
+        }
+        return rows;
+    }
+
     /**
      * @param observations observations
      * @return total success across observations
@@ -75,6 +137,30 @@ public class LR {
         return totalWeights;
     }
 
+    /**
+     * @param dataset data set
+     * @return total success across rows
+     */
+    static double getTotalSuccesses(SparseDataset dataset) {
+        double totalSuccesses = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            totalSuccesses += dataset.getY(i);
+        }
+        return totalSuccesses;
+    }
+
+    /**
+     * @param dataset data set
+     * @return total weights across rows
+     */
+    static double getTotalWeights(SparseDataset dataset) {
+        double totalWeights = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            totalWeights += dataset.getWeight(i);
+        }
+        return totalWeights;
+    }
+
     /**
      * @param initialBetasWithBeta0 initial betas with beta0
      * @return initial betas with beta0 (either guessed or unchanged)
@@ -105,26 +191,205 @@ public class LR {
      * @return beta results across lambda grid
      */
     public LinkedList<LRResult> calculateBetas(boolean warmStart) {
+        return calculateBetas(warmStart, false);
+    }
+
+    /**
+     * Train a model for every lambda of the grid. With strong rule screening, every lambda after the first is trained only on the
+     * features that pass the sequential strong rule at the previous solution, |gradient_j| >= alpha * scale_j * (2 * lambda -
+     * previousLambda). The data set is remapped to the kept features once per lambda. If a feature that was screened out violates
+     * the KKT conditions of the trained model, the model is trained again on all features, so the result is the one of training
+     * on all features. This pays off for decreasing lambda grids and alpha > 0, where most of the path is sparse and violations
+     * are rare
+     *
+     * @param warmStart           warm start flag
+     * @param strongRuleScreening strong rule screening flag
+     * @return beta results across lambda grid
+     */
+    public LinkedList<LRResult> calculateBetas(boolean warmStart, boolean strongRuleScreening) {
+        return calculateBetasPath(this.alpha, warmStart, strongRuleScreening);
+    }
+
+    /**
+     * Train a model for every alpha of alphaGrid and every lambda of the grid, sharing the data set, total weights and lambda
+     * scale factors across all fits. Without warm start and screening every fit is independent and all of them are scheduled
+     * at once; otherwise the lambda path of every alpha is trained in order, with the paths of the alphas running in parallel.
+     * The model trainer is called from several threads at once, so it must either be single-threaded or run its own phases on
+     * a {@link com.appnexus.opt.concurrent.ForkJoinParallelExecutor}, which can be the one passed here
+     *
+     * @param alphaGrid           elastic-net parameters
+     * @param warmStart           warm start flag, chains warm starts along the lambda path of every alpha
+     * @param strongRuleScreening strong rule screening flag, see {@link #calculateBetas(boolean, boolean)}
+     * @param parallelExecutor    executor to schedule the fits on
+     * @return for every alpha of alphaGrid, beta results across lambda grid
+     */
+    public List<LinkedList<LRResult>> calculateBetas(double[] alphaGrid, boolean warmStart, boolean strongRuleScreening,
+        IParallelExecutor parallelExecutor) {
+        List<LinkedList<LRResult>> lrResultLists = new ArrayList<>(alphaGrid.length);
+        if (warmStart || strongRuleScreening) {
+            LRResult[][] lrResults = new LRResult[alphaGrid.length][];
+            parallelExecutor.parallelFor(alphaGrid.length, a -> lrResults[a] = calculateBetasPath(alphaGrid[a], warmStart,
+                strongRuleScreening).toArray(new LRResult[0]));
+            for (LRResult[] lrResultPath : lrResults) {
+                lrResultLists.add(new LinkedList<>(Arrays.asList(lrResultPath)));
+            }
+            return lrResultLists;
+        }
+
+        int numOfLambdas = this.lambdaGrid.length;
+        LRResult[] lrResults = new LRResult[alphaGrid.length * numOfLambdas];
+        parallelExecutor.parallelFor(lrResults.length, t -> lrResults[t] = calculateBetas(
+            Arrays.copyOf(this.initialBetasWithBeta0, this.initialBetasWithBeta0.length), alphaGrid[t / numOfLambdas],
+            this.lambdaGrid[t % numOfLambdas]));
+        for (int a = 0; a < alphaGrid.length; ++a) {
+            lrResultLists.add(new LinkedList<>(Arrays.asList(lrResults).subList(a * numOfLambdas, (a + 1) * numOfLambdas)));
+        }
+        return lrResultLists;
+    }
+
+    /**
+     * @param alpha               alpha
+     * @param warmStart           warm start flag
+     * @param strongRuleScreening strong rule screening flag
+     * @return beta results across lambda grid
+     */
+    private LinkedList<LRResult> calculateBetasPath(double alpha, boolean warmStart, boolean strongRuleScreening) {
         LinkedList<LRResult> lrResultList = new LinkedList<>();
         LRResult lrResult = null;
         for (double lambda : this.lambdaGrid) {
             double[] startBetasWithBeta0 = ((warmStart && lrResult != null) ?
                 Arrays.copyOf(lrResult.getBetasWithBeta0(), lrResult.getBetasWithBeta0().length) :
                 Arrays.copyOf(this.initialBetasWithBeta0, this.initialBetasWithBeta0.length));
-            lrResult = calculateBetas(startBetasWithBeta0, lambda);
+            lrResult = strongRuleScreening && lrResult != null ?
+                calculateBetasWithScreening(startBetasWithBeta0, alpha, lambda, lrResult) :
+                calculateBetas(startBetasWithBeta0, alpha, lambda);
             lrResultList.add(lrResult);
         }
         return lrResultList;
     }
 
+    /**
+     * @param startBetasWithBeta0 initial betas
+     * @param alpha               alpha
+     * @param lambda              lambda
+     * @param previousResult      result for the previous lambda of the grid
+     * @return trained betas
+     */
+    LRResult calculateBetasWithScreening(double[] startBetasWithBeta0, double alpha, double lambda,
+        LRResult previousResult) {
+        double[] previousBetasWithBeta0 = previousResult.getBetasWithBeta0();
+        double[] gradient = getQuadraticModelGradient(getDataset(), this.totalWeights, previousBetasWithBeta0,
+            previousBetasWithBeta0);
+        boolean[] keep = new boolean[this.numOfFeatures];
+        double strongRuleLambda = alpha * (2 * lambda - previousResult.getLambda());
+        int numKept = 0;
+        for (int j = 0; j < this.numOfFeatures; ++j) {
+            // features nonzero in the start or previous betas are always kept, so mi and zi are those of the full problem
+            keep[j] = startBetasWithBeta0[j + 1] != 0 || previousBetasWithBeta0[j + 1] != 0
+                || Math.abs(gradient[j]) >= strongRuleLambda * this.lambdaScaleFactors[j];
+            numKept += keep[j] ? 1 : 0;
+        }
+        if (numKept == this.numOfFeatures) {
+            return calculateBetas(startBetasWithBeta0, alpha, lambda);
+        }
+
+        int[] keptIds = new int[numKept];
+        for (int j = 0, c = 0; j < this.numOfFeatures; ++j) {
+            if (keep[j]) {
+                keptIds[c++] = j;
+            }
+        }
+        FeatureIndexRemapper remapper = new FeatureIndexRemapper(this.numOfFeatures, keptIds);
+        LRResult lrResult = remapper.toOriginalResult(this.modelTrainer
+            .trainNewBetasWithBeta0(remapper.remap(getDataset()), this.totalWeights,
+                remapper.toCompactBetas(startBetasWithBeta0), alpha, lambda,
+                remapper.toCompactLambdaScaleFactors(this.lambdaScaleFactors), this.tolerance, this.maxIterations));
+
+        /*
+         * KKT check: a screened out feature stays zero iff its coordinate update in the quadratic model around the start betas
+         * would leave it at zero
+         */
+        double[] cj = getQuadraticModelGradient(getDataset(), this.totalWeights, startBetasWithBeta0,
+            lrResult.getBetasWithBeta0());
+        int violations = 0;
+        for (int j = 0; j < this.numOfFeatures; ++j) {
+            if (!keep[j] && Math.abs(cj[j]) > lambda * alpha * this.lambdaScaleFactors[j]) {
+                ++violations;
+            }
+        }
+        if (violations > 0) {
+            /*
+             * adding the violators back would change the compact index of every later feature and need another remapped copy of
+             * the data set and another KKT pass, so train on all features instead
+             */
+            lrResult = calculateBetas(startBetasWithBeta0, alpha, lambda);
+        } else {
+            lrResult.setNumOfScreenedFeatures(numKept);
+        }
+        lrResult.setNumOfKktRounds(1);
+        lrResult.setNumOfKktViolations(violations);
+        return lrResult;
+    }
+
+    /**
+     * Calculate, for every feature, the c-term of the coordinate update of the quadratic approximation of the log likelihood
+     * around expansionBetasWithBeta0, evaluated at betasWithBeta0: (1 / W) * sum_i mi * xij * (zi - betas . xi). For a feature
+     * whose beta is zero this is the term that is soft-thresholded by lambda * alpha. If both betas are the same this is the
+     * gradient of the log likelihood divided by W
+     *
+     * @param dataset                 data set
+     * @param totalWeights            sum of all weights / total trials
+     * @param expansionBetasWithBeta0 betas that mi and zi are computed at
+     * @param betasWithBeta0          betas to evaluate the residual at
+     * @return c-term for every feature, without beta0
+     */
+    static double[] getQuadraticModelGradient(SparseDataset dataset, double totalWeights,
+        double[] expansionBetasWithBeta0, double[] betasWithBeta0) {
+        double[] gradient = new double[betasWithBeta0.length - 1];
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            double expansionBetasDotXi = LRUtil.betasDotXi(dataset, i, expansionBetasWithBeta0);
+            double prob = LRUtil.calcProb(expansionBetasDotXi);
+            double probBounded = Math.min(1.0 - PROB_EPSILON, Math.max(PROB_EPSILON, prob));
+            double wi = dataset.getWeight(i);
+            double mi = wi * probBounded * (1 - probBounded);
+            // mi * (zi - betas . xi)
+            double residual = dataset.getY(i) - wi * prob;
+            if (betasWithBeta0 != expansionBetasWithBeta0) {
+                residual += mi * (expansionBetasDotXi - LRUtil.betasDotXi(dataset, i, betasWithBeta0));
+            }
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                gradient[dataset.getIndex(k)] += dataset.getValue(k) * residual;
+            }
+        }
+        for (int j = 0; j < gradient.length; ++j) {
+            gradient[j] /= totalWeights;
+        }
+        return gradient;
+    }
+
     /**
      * @param startBetasWithBeta0 initial betas
      * @param lambda              lambda
      * @return trained betas
      */
     public LRResult calculateBetas(double[] startBetasWithBeta0, double lambda) {
+        return calculateBetas(startBetasWithBeta0, this.alpha, lambda);
+    }
+
+    /**
+     * @param startBetasWithBeta0 initial betas
+     * @param alpha               alpha
+     * @param lambda              lambda
+     * @return trained betas
+     */
+    LRResult calculateBetas(double[] startBetasWithBeta0, double alpha, double lambda) {
+        if (this.observations != null && !this.trainsOnDataset) {
+            return this.modelTrainer
+                .trainNewBetasWithBeta0(this.observations, this.totalWeights, startBetasWithBeta0, alpha, lambda,
+                    this.lambdaScaleFactors, tolerance, maxIterations);
+        }
         return this.modelTrainer
-            .trainNewBetasWithBeta0(this.observations, this.totalWeights, startBetasWithBeta0, this.alpha, lambda,
+            .trainNewBetasWithBeta0(getDataset(), this.totalWeights, startBetasWithBeta0, alpha, lambda,
                 this.lambdaScaleFactors, tolerance, maxIterations);
     }
 
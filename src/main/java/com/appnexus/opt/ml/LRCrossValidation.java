@@ -0,0 +1,233 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.IParallelExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class runs K-fold cross-validation along a lambda path. Folds are views of the rows of one data set, so nothing is copied.
+ * The K folds are trained concurrently, every fold along the whole lambda path with warm starts, and every fold evaluates the
+ * held-out entropy, bias and prediction ratio of all lambdas in a single pass over its held-out rows
+ */
+public class LRCrossValidation {
+    private static final double EPS = 1e-15;
+
+    private final SparseDataset dataset;
+    private final int numOfFeatures;
+    private final double alpha;
+    private final double[] lambdaGrid;
+    private final double[] lambdaScaleFactors;
+    private final double tolerance;
+    private final int maxIterations;
+    private final IModelTrainer modelTrainer;
+    private final int numFolds;
+    private FoldAssignment foldAssignment = FoldAssignment.HASH;
+    private long seed;
+
+    /**
+     * @param dataset            data set to split into folds
+     * @param numOfFeatures      total number of distinct features
+     * @param alpha              elastic-net parameter
+     * @param lambdaGrid         regularization parameters, trained in order with warm starts
+     * @param lambdaScaleFactors scale factors of the regularization parameter per feature
+     * @param tolerance          convergence criteria
+     * @param maxIterations      max number of training iterations
+     * @param modelTrainer       trainer, called for several folds at once, see
+     *                           {@link LR#calculateBetas(double[], boolean, boolean, IParallelExecutor)}
+     * @param numFolds           number of folds, at least 2
+     */
+    public LRCrossValidation(SparseDataset dataset, int numOfFeatures, double alpha, double[] lambdaGrid,
+        double[] lambdaScaleFactors, double tolerance, int maxIterations, IModelTrainer modelTrainer, int numFolds) {
+        if (numFolds < 2) {
+            throw new IllegalArgumentException("numFolds must be at least 2");
+        }
+        this.dataset = dataset;
+        this.numOfFeatures = numOfFeatures;
+        this.alpha = alpha;
+        this.lambdaGrid = lambdaGrid;
+        this.lambdaScaleFactors = lambdaScaleFactors;
+        this.tolerance = tolerance;
+        this.maxIterations = maxIterations;
+        this.modelTrainer = modelTrainer;
+        this.numFolds = numFolds;
+    }
+
+    public FoldAssignment getFoldAssignment() {
+        return foldAssignment;
+    }
+
+    /**
+     * @param foldAssignment how rows are assigned to folds, {@link FoldAssignment#HASH} by default
+     */
+    public void setFoldAssignment(FoldAssignment foldAssignment) {
+        this.foldAssignment = foldAssignment;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed seed of the {@link FoldAssignment#HASH} fold assignment, 0 by default
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param i row
+     * @return fold of row i
+     */
+    int getFold(int i) {
+        if (this.foldAssignment == FoldAssignment.INDEX) {
+            return i % this.numFolds;
+        }
+        // splitmix64 finalizer
+        long h = i + this.seed * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h = h ^ (h >>> 31);
+        return (int) Math.floorMod(h, (long) this.numFolds);
+    }
+
+    /**
+     * Train and evaluate all folds
+     *
+     * @param parallelExecutor executor to run the folds on
+     * @return per-lambda mean and standard error curves of the held-out metrics, and the chosen lambda
+     * @throws IllegalArgumentException if some fold holds out no weight or leaves none to train on, e.g. with fewer rows than
+     *                                  folds, if the successes it trains on are not strictly between 0 and its training
+     *                                  trials, so that the initial beta0 is infinite, or if it holds out no successes, so
+     *                                  that its bias is undefined
+     */
+    public CrossValidationResult crossValidate(IParallelExecutor parallelExecutor) {
+        int[] foldSizes = new int[this.numFolds];
+        long[] foldWeights = new long[this.numFolds];
+        double[] foldSuccesses = new double[this.numFolds];
+        long totalWeight = 0;
+        double totalSuccesses = 0;
+        int[] folds = new int[this.dataset.getNumRows()];
+        for (int i = 0; i < folds.length; ++i) {
+            folds[i] = getFold(i);
+            ++foldSizes[folds[i]];
+            foldWeights[folds[i]] += this.dataset.getWeight(i);
+            totalWeight += this.dataset.getWeight(i);
+            foldSuccesses[folds[i]] += this.dataset.getY(i);
+            totalSuccesses += this.dataset.getY(i);
+        }
+        for (int f = 0; f < this.numFolds; ++f) {
+            if (foldWeights[f] == 0 || foldWeights[f] == totalWeight) {
+                throw new IllegalArgumentException(
+                    "fold " + f + " of " + this.numFolds + " holds out " + foldSizes[f] + " of " + folds.length
+                        + " rows and " + foldWeights[f] + " of " + totalWeight + " trials, every fold needs trials to "
+                        + "train on and to evaluate");
+            }
+            long trainWeight = totalWeight - foldWeights[f];
+            double trainSuccesses = totalSuccesses - foldSuccesses[f];
+            if (trainSuccesses <= 0 || trainSuccesses >= trainWeight) {
+                throw new IllegalArgumentException(
+                    "fold " + f + " of " + this.numFolds + " trains on " + trainSuccesses + " successes in " + trainWeight
+                        + " trials, the successes to train on must be more than 0 and fewer than the trials");
+            }
+            if (foldSuccesses[f] <= 0) {
+                throw new IllegalArgumentException(
+                    "fold " + f + " of " + this.numFolds + " holds out " + foldWeights[f] + " trials without successes, "
+                        + "every fold needs successes to evaluate the bias");
+            }
+        }
+
+        int numOfLambdas = this.lambdaGrid.length;
+        List<LinkedList<LRResult>> foldResults = new ArrayList<>(this.numFolds);
+        for (int f = 0; f < this.numFolds; ++f) {
+            foldResults.add(null);
+        }
+        double[][] entropy = new double[this.numFolds][];
+        double[][] bias = new double[this.numFolds][];
+        double[][] predRatio = new double[this.numFolds][];
+        parallelExecutor.parallelFor(this.numFolds, f -> {
+            int[] trainRows = new int[folds.length - foldSizes[f]];
+            int[] heldOutRows = new int[foldSizes[f]];
+            for (int i = 0, t = 0, h = 0; i < folds.length; ++i) {
+                if (folds[i] == f) {
+                    heldOutRows[h++] = i;
+                } else {
+                    trainRows[t++] = i;
+                }
+            }
+            LR lr = new LR(new RowSubsetSparseDataset(this.dataset, trainRows), this.numOfFeatures, null, this.alpha,
+                this.lambdaGrid, this.lambdaScaleFactors, this.tolerance, this.maxIterations, this.modelTrainer);
+            LinkedList<LRResult> lrResults = lr.calculateBetas(true);
+            foldResults.set(f, lrResults);
+
+            entropy[f] = new double[numOfLambdas];
+            bias[f] = new double[numOfLambdas];
+            predRatio[f] = new double[numOfLambdas];
+            evaluate(new RowSubsetSparseDataset(this.dataset, heldOutRows), lrResults, entropy[f], bias[f], predRatio[f]);
+        });
+
+        return new CrossValidationResult(this.lambdaGrid, foldResults, entropy, bias, predRatio);
+    }
+
+    /**
+     * Evaluate the models of all lambdas in one pass over the held-out rows: the entropy normalized by the number of trials, the
+     * bias and the prediction ratio as in {@link LREvalUtil}
+     *
+     * @param heldOut   held-out rows
+     * @param lrResults model of every lambda
+     * @param entropy   entropy of every lambda, filled in
+     * @param bias      bias of every lambda, filled in
+     * @param predRatio prediction ratio of every lambda, filled in
+     */
+    static void evaluate(SparseDataset heldOut, List<LRResult> lrResults, double[] entropy, double[] bias,
+        double[] predRatio) {
+        double[][] betas = new double[lrResults.size()][];
+        for (int l = 0; l < betas.length; ++l) {
+            betas[l] = lrResults.get(l).getBetasWithBeta0();
+        }
+        double totalWeight = 0;
+        double yWeight = 0;
+        double nonYWeight = 0;
+        double[] predicted = new double[betas.length];
+        double[] yProb = new double[betas.length];
+        double[] nonYProb = new double[betas.length];
+        Arrays.fill(entropy, 0);
+        for (int i = 0; i < heldOut.getNumRows(); ++i) {
+            double y = heldOut.getY(i);
+            double weight = heldOut.getWeight(i);
+            totalWeight += weight;
+            yWeight += y;
+            nonYWeight += weight - y;
+            for (int l = 0; l < betas.length; ++l) {
+                double prob = LRUtil.calcProb(heldOut, i, betas[l]);
+                double pred = Math.min(1.0 - EPS, Math.max(EPS, prob));
+                entropy[l] += -1 * y * Math.log(pred) - (weight - y) * Math.log(1.0 - pred);
+                predicted[l] += prob * weight;
+                yProb[l] += y * prob;
+                nonYProb[l] += (weight - y) * prob;
+            }
+        }
+        for (int l = 0; l < betas.length; ++l) {
+            entropy[l] /= totalWeight;
+            bias[l] = yWeight == 0 ? Double.MAX_VALUE : (predicted[l] - yWeight) / yWeight;
+            predRatio[l] = (yWeight == 0 || nonYProb[l] == 0) ? 0 : (yProb[l] / yWeight) / (nonYProb[l] / nonYWeight);
+        }
+    }
+}
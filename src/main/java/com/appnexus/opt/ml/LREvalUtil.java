@@ -16,6 +16,13 @@
 
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.IParallelExecutor;
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This utility class provides static functions to evaluate error rates or performance of a model on the data set
  */
@@ -146,4 +153,118 @@ public class LREvalUtil {
         return (yWeight == 0 || nonYProb == 0) ? 0 : (yProb / yWeight) / (nonYProb / nonYWeight);
     }
 
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @return cross entropy of p from data vs true distribution
+     */
+    public static double getEntropy(SparseDataset dataset, double[] betasWithBeta0) {
+        return getEntropyScaled(dataset, betasWithBeta0, 1.0);
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @return cross entropy but normalized by number of impressions
+     */
+    public static double getEntropyNormalized(SparseDataset dataset, double[] betasWithBeta0) {
+        double totalWeight = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            totalWeight += dataset.getWeight(i);
+        }
+        return getEntropy(dataset, betasWithBeta0) / totalWeight;
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @param scale          scale factor
+     * @return cross entropy but with probabilities scaled by scale factor
+     */
+    public static double getEntropyScaled(SparseDataset dataset, double[] betasWithBeta0, double scale) {
+        return getEntropyScaled(dataset, 0, dataset.getNumRows(), betasWithBeta0, scale);
+    }
+
+    /**
+     * @param dataset          data
+     * @param betasWithBeta0   beta weights
+     * @param parallelExecutor executor to split the rows across
+     * @return cross entropy of p from data vs true distribution, summed over nnz-balanced ranges of rows in parallel
+     */
+    public static double getEntropy(SparseDataset dataset, double[] betasWithBeta0, IParallelExecutor parallelExecutor) {
+        List<DatasetRange> datasetRanges = new ArrayList<>(MultiThreadingUtil
+            .splitIntoBalancedRanges(dataset.getCumulativeRowCost(false), parallelExecutor.getParallelism()));
+        return parallelExecutor.parallelReduce(datasetRanges.size(), t -> getEntropyScaled(dataset,
+            datasetRanges.get(t).getStartIdx(), datasetRanges.get(t).getEndIdx(), betasWithBeta0, 1.0), Double::sum);
+    }
+
+    private static double getEntropyScaled(SparseDataset dataset, int startIdx, int endIdx, double[] betasWithBeta0,
+        double scale) {
+        double error = 0;
+        for (int i = startIdx; i < endIdx; ++i) {
+            double prob = scale * LRUtil.calcProb(dataset, i, betasWithBeta0);
+            double pred = Math.min(1.0 - EPS, Math.max(EPS, prob));
+            double y = dataset.getY(i);
+            double errorObs = -1 * y * Math.log(pred) - (dataset.getWeight(i) - y) * Math.log(1.0 - pred);
+            error = error + errorObs;
+        }
+        return error;
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @return bias = (number of predicted y - number of actual y) / (number of actual y)
+     */
+    public static double getBias(SparseDataset dataset, double[] betasWithBeta0) {
+        return getBiasScaled(dataset, betasWithBeta0, 1.0);
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @param scale          scale factor
+     * @return bias but with probabilities scaled by scale factor
+     */
+    public static double getBiasScaled(SparseDataset dataset, double[] betasWithBeta0, double scale) {
+        double pred = 0;
+        double actual = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            actual = actual + dataset.getY(i);
+            pred = pred + scale * LRUtil.calcProb(dataset, i, betasWithBeta0) * dataset.getWeight(i);
+        }
+        return actual == 0 ? Double.MAX_VALUE : (pred - actual) / actual;
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @return prediction ratio
+     */
+    public static double getPredRatio(SparseDataset dataset, double[] betasWithBeta0) {
+        return getPredRatioScaled(dataset, betasWithBeta0, 1.0);
+    }
+
+    /**
+     * @param dataset        data
+     * @param betasWithBeta0 beta weights
+     * @param scale          scale factor
+     * @return prediction ratio but with probabilities scaled by scale factor
+     */
+    public static double getPredRatioScaled(SparseDataset dataset, double[] betasWithBeta0, double scale) {
+        double yWeight = 0;
+        double nonYWeight = 0;
+        double yProb = 0;
+        double nonYProb = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            double prob = scale * LRUtil.calcProb(dataset, i, betasWithBeta0);
+            double y = dataset.getY(i);
+            double nonY = dataset.getWeight(i) - y;
+            yWeight = yWeight + y;
+            yProb = yProb + y * prob;
+            nonYWeight = nonYWeight + nonY;
+            nonYProb = nonYProb + nonY * prob;
+        }
+        return (yWeight == 0 || nonYProb == 0) ? 0 : (yProb / yWeight) / (nonYProb / nonYWeight);
+    }
 }
@@ -29,6 +29,10 @@ public class LRIterationMetadata {
     private double trainingEntropy;
     private double[] betas;
     private long trainingTimeMillis;
+    private int activeSetSize;
+    private boolean fullSweep = true;
+    private double quadraticObjective = Double.NaN;
+    private double objective = Double.NaN;
 
     public double getAlpha() {
         return this.alpha;
@@ -86,6 +90,52 @@ public class LRIterationMetadata {
         this.trainingTimeMillis = trainingTimeMillis;
     }
 
+    /**
+     * @return number of betas, including beta0, that were updated in this iteration
+     */
+    public int getActiveSetSize() {
+        return this.activeSetSize;
+    }
+
+    public void setActiveSetSize(int activeSetSize) {
+        this.activeSetSize = activeSetSize;
+    }
+
+    /**
+     * @return true if this iteration updated every beta, false if it cycled over the nonzero betas only
+     */
+    public boolean isFullSweep() {
+        return this.fullSweep;
+    }
+
+    public void setFullSweep(boolean fullSweep) {
+        this.fullSweep = fullSweep;
+    }
+
+    /**
+     * @return penalized objective of the quadratic approximation of the log likelihood, up to a constant, if recorded by
+     * {@link TrainingMetricsPolicy#QUADRATIC_OBJECTIVE}, NaN otherwise
+     */
+    public double getQuadraticObjective() {
+        return this.quadraticObjective;
+    }
+
+    public void setQuadraticObjective(double quadraticObjective) {
+        this.quadraticObjective = quadraticObjective;
+    }
+
+    /**
+     * @return penalized objective, negative log likelihood / total weights plus elastic-net penalty, if recorded by a trainer that
+     * minimizes it directly such as {@link OwlqnTrainer}, NaN otherwise
+     */
+    public double getObjective() {
+        return this.objective;
+    }
+
+    public void setObjective(double objective) {
+        this.objective = objective;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -103,6 +153,14 @@ public class LRIterationMetadata {
         builder.append(Arrays.toString(this.betas));
         builder.append(", trainingTimeMillis=");
         builder.append(this.trainingTimeMillis);
+        builder.append(", activeSetSize=");
+        builder.append(this.activeSetSize);
+        builder.append(", fullSweep=");
+        builder.append(this.fullSweep);
+        builder.append(", quadraticObjective=");
+        builder.append(this.quadraticObjective);
+        builder.append(", objective=");
+        builder.append(this.objective);
         builder.append("]");
         return builder.toString();
     }
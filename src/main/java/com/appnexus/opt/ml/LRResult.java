@@ -34,6 +34,13 @@ public class LRResult implements Serializable {
     private double trainingEntropy;
     private long trainingTimeMillis;
 
+    // strong rule screening
+    private int numOfScreenedFeatures = -1;
+    private int numOfKktViolations;
+    private int numOfKktRounds;
+
+    private CoordinateDescentMode coordinateDescentMode;
+
     // metadata
     private List<LRIterationMetadata> metaDataList;
     // Ephemeral fields
@@ -110,6 +117,52 @@ public class LRResult implements Serializable {
         this.trainingEntropy = trainingEntropy;
     }
 
+    /**
+     * @return number of features the model was trained on after strong rule screening, or -1 if no features were screened out or
+     * the screened out features violated the KKT conditions and the model was trained on all features
+     */
+    public int getNumOfScreenedFeatures() {
+        return this.numOfScreenedFeatures;
+    }
+
+    public void setNumOfScreenedFeatures(int numOfScreenedFeatures) {
+        this.numOfScreenedFeatures = numOfScreenedFeatures;
+    }
+
+    /**
+     * @return number of screened out features that violated the KKT conditions, in which case the model was trained on all
+     * features
+     */
+    public int getNumOfKktViolations() {
+        return this.numOfKktViolations;
+    }
+
+    public void setNumOfKktViolations(int numOfKktViolations) {
+        this.numOfKktViolations = numOfKktViolations;
+    }
+
+    /**
+     * @return number of KKT checks of the screened out features, each a pass over the rows, 0 if no features were screened out
+     */
+    public int getNumOfKktRounds() {
+        return this.numOfKktRounds;
+    }
+
+    public void setNumOfKktRounds(int numOfKktRounds) {
+        this.numOfKktRounds = numOfKktRounds;
+    }
+
+    /**
+     * @return mode the coordinate descent trainers used, null for other trainers
+     */
+    public CoordinateDescentMode getCoordinateDescentMode() {
+        return this.coordinateDescentMode;
+    }
+
+    public void setCoordinateDescentMode(CoordinateDescentMode coordinateDescentMode) {
+        this.coordinateDescentMode = coordinateDescentMode;
+    }
+
     public long getMiZiCalcMillis() {
         return this.miZiCalcMillis;
     }
@@ -53,12 +53,49 @@ public class LRUtil {
      */
     public static double betasDotXi(SparseArray xRow, double[] betasWithBeta0) {
         double betasDotXi = betasWithBeta0[0];
-        for (SparseArray.Entry entry : xRow) {
-            betasDotXi += entry.x * betasWithBeta0[entry.i + 1];
+        if (xRow.isBinary()) {
+            for (int k = 0; k < xRow.nnz(); ++k) {
+                betasDotXi += betasWithBeta0[xRow.indexAt(k) + 1];
+            }
+            return betasDotXi;
+        }
+        for (int k = 0; k < xRow.nnz(); ++k) {
+            betasDotXi += xRow.valueAt(k) * betasWithBeta0[xRow.indexAt(k) + 1];
+        }
+        return betasDotXi;
+    }
+
+    /**
+     * @param dataset        data
+     * @param i              row of the data set
+     * @param betasWithBeta0 beta weights
+     * @return dot product of row i and beta weights
+     */
+    public static double betasDotXi(SparseDataset dataset, int i, double[] betasWithBeta0) {
+        double betasDotXi = betasWithBeta0[0];
+        int end = dataset.getRowEnd(i);
+        if (dataset.isBinary()) {
+            for (int k = dataset.getRowStart(i); k < end; ++k) {
+                betasDotXi += betasWithBeta0[dataset.getIndex(k) + 1];
+            }
+            return betasDotXi;
+        }
+        for (int k = dataset.getRowStart(i); k < end; ++k) {
+            betasDotXi += dataset.getValue(k) * betasWithBeta0[dataset.getIndex(k) + 1];
         }
         return betasDotXi;
     }
 
+    /**
+     * @param dataset        data
+     * @param i              row of the data set
+     * @param betasWithBeta0 beta weights
+     * @return probability(Xi)
+     */
+    public static double calcProb(SparseDataset dataset, int i, double[] betasWithBeta0) {
+        return calcProb(betasDotXi(dataset, i, betasWithBeta0));
+    }
+
     public static double[] getLambdaGrid(int size, double start, double end) {
         if (size > 0) {
             double[] grid = new double[size];
@@ -98,18 +135,12 @@ public class LRUtil {
      * @return max absolute % difference if absolute sum of betas is not 0, otherwise -Double.MAX_VALUE
      */
     public static double getMaxAbsDifferencePct(double[] oldBetas, double[] newBetas) {
-        double sumAbsOfNewBetas = 0;
-        for (int i = 0; i < newBetas.length; ++i) {
-            sumAbsOfNewBetas += Math.abs(newBetas[i]);
-        }
+        IVectorKernels kernels = VectorKernels.get();
+        double sumAbsOfNewBetas = kernels.sumAbs(newBetas);
         if (sumAbsOfNewBetas == 0.0) {
             return -Double.MAX_VALUE;
         }
-        double maxAbsBetaDiff = -Double.MAX_VALUE;
-        for (int i = 0; i < newBetas.length; ++i) {
-            maxAbsBetaDiff = Math.max(maxAbsBetaDiff, Math.abs(newBetas[i] - oldBetas[i]));
-        }
-        return maxAbsBetaDiff / sumAbsOfNewBetas;
+        return kernels.maxAbsDifference(newBetas, oldBetas) / sumAbsOfNewBetas;
     }
 
     /**
@@ -124,8 +155,9 @@ public class LRUtil {
         double totalWeight = 0;
         for (SparseObservation trainingObs : trainingObsArr) {
             totalWeight += trainingObs.getWeight();
-            for (SparseArray.Entry feature : trainingObs.getX()) {
-                lambdaScaleFactors[feature.i] += trainingObs.getY();
+            SparseArray x = trainingObs.getX();
+            for (int k = 0; k < x.nnz(); ++k) {
+                lambdaScaleFactors[x.indexAt(k)] += trainingObs.getY();
             }
         }
         // TODO think about 1/totalWeight vs ?/totalWeight
@@ -134,4 +166,27 @@ public class LRUtil {
         }
         return lambdaScaleFactors;
     }
+
+    /**
+     * Generate Scale Factors for scaling lambda for each beta[j]
+     *
+     * @param dataset          training data set
+     * @param featureVectorLen length of feature vector
+     * @return
+     */
+    public static double[] generateLambdaScaleFactors(SparseDataset dataset, int featureVectorLen) {
+        double[] lambdaScaleFactors = new double[featureVectorLen];
+        double totalWeight = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            totalWeight += dataset.getWeight(i);
+            double y = dataset.getY(i);
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                lambdaScaleFactors[dataset.getIndex(k)] += y;
+            }
+        }
+        for (int i = 0; i < lambdaScaleFactors.length; ++i) {
+            lambdaScaleFactors[i] = lambdaScaleFactors[i] == 0 ? 1 / totalWeight : lambdaScaleFactors[i] / totalWeight;
+        }
+        return lambdaScaleFactors;
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class implements a minimal open addressing hash map from non-negative long keys to double values, used to accumulate sparse
+ * matrices without boxing
+ */
+class LongDoubleHashMap {
+    private static final long EMPTY = -1L;
+    private static final double MAX_LOAD = 0.6;
+
+    private long[] keys;
+    private double[] values;
+    private int size;
+
+    LongDoubleHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new double[capacity];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @param key   non-negative key
+     * @param delta value to add to the value of key, which starts at 0
+     */
+    void add(long key, double delta) {
+        int slot = find(this.keys, key);
+        if (this.keys[slot] == EMPTY) {
+            if (this.size + 1 > this.keys.length * MAX_LOAD) {
+                rehash();
+                slot = find(this.keys, key);
+            }
+            this.keys[slot] = key;
+            ++this.size;
+        }
+        this.values[slot] += delta;
+    }
+
+    /**
+     * @param other map whose entries to add to this map
+     */
+    void addAll(LongDoubleHashMap other) {
+        for (int slot = 0; slot < other.keys.length; ++slot) {
+            if (other.keys[slot] != EMPTY) {
+                add(other.keys[slot], other.values[slot]);
+            }
+        }
+    }
+
+    /**
+     * @param visitor called once for every entry
+     */
+    void forEach(EntryVisitor visitor) {
+        for (int slot = 0; slot < this.keys.length; ++slot) {
+            if (this.keys[slot] != EMPTY) {
+                visitor.visit(this.keys[slot], this.values[slot]);
+            }
+        }
+    }
+
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private void rehash() {
+        long[] oldKeys = this.keys;
+        double[] oldValues = this.values;
+        this.keys = new long[oldKeys.length << 1];
+        this.values = new double[oldKeys.length << 1];
+        Arrays.fill(this.keys, EMPTY);
+        for (int slot = 0; slot < oldKeys.length; ++slot) {
+            if (oldKeys[slot] != EMPTY) {
+                int newSlot = find(this.keys, oldKeys[slot]);
+                this.keys[newSlot] = oldKeys[slot];
+                this.values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    interface EntryVisitor {
+        void visit(long key, double value);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements a {@link SparseDataset} over a memory-mapped file written by {@link SparseDatasetFile}. The rows live in the
+ * page cache outside the Java heap, so opening a multi-GB data set takes milliseconds and does not add to garbage collection work.
+ * Each section is mapped in chunks because a single mapping is limited to 2GB
+ */
+public class MappedSparseDataset extends SparseDataset {
+    private static final int CHUNK_SHIFT = 27; // 2^27 elements per chunk, at most 1GB of doubles
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final int numOfFeatures;
+    private final int numRows;
+    private final int nnz;
+    private final IntSection rowPtr;
+    private final IntSection indices;
+    private final DoubleSection values; // null for binary data
+    private final DoubleSection y;
+    private final IntSection weight;
+
+    MappedSparseDataset(int numOfFeatures, int numRows, int nnz, IntSection rowPtr, IntSection indices,
+        DoubleSection values, DoubleSection y, IntSection weight) {
+        this.numOfFeatures = numOfFeatures;
+        this.numRows = numRows;
+        this.nnz = nnz;
+        this.rowPtr = rowPtr;
+        this.indices = indices;
+        this.values = values;
+        this.y = y;
+        this.weight = weight;
+    }
+
+    /**
+     * @return total number of distinct features recorded in the file header
+     */
+    public int getNumOfFeatures() {
+        return this.numOfFeatures;
+    }
+
+    @Override
+    public int getNumRows() {
+        return this.numRows;
+    }
+
+    @Override
+    public int getNnz() {
+        return this.nnz;
+    }
+
+    @Override
+    public int getRowStart(int i) {
+        return this.rowPtr.get(i);
+    }
+
+    @Override
+    public int getRowEnd(int i) {
+        return this.rowPtr.get(i + 1);
+    }
+
+    @Override
+    public int getIndex(int k) {
+        return this.indices.get(k);
+    }
+
+    @Override
+    public double getValue(int k) {
+        return this.values == null ? 1.0 : this.values.get(k);
+    }
+
+    @Override
+    public boolean isBinary() {
+        return this.values == null;
+    }
+
+    @Override
+    public double getY(int i) {
+        return this.y.get(i);
+    }
+
+    @Override
+    public int getWeight(int i) {
+        return this.weight.get(i);
+    }
+
+    /**
+     * A mapped section of ints
+     */
+    static class IntSection {
+        private final IntBuffer[] chunks;
+
+        private IntSection(IntBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+
+        int get(int k) {
+            return this.chunks[k >>> CHUNK_SHIFT].get(k & CHUNK_MASK);
+        }
+
+        static IntSection map(FileChannel channel, long offset, long length) throws IOException {
+            IntBuffer[] chunks = new IntBuffer[numChunks(length)];
+            for (int c = 0; c < chunks.length; ++c) {
+                long chunkLength = Math.min(length - ((long) c << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + ((long) c << CHUNK_SHIFT) * Integer.BYTES,
+                    chunkLength * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+            return new IntSection(chunks);
+        }
+    }
+
+    /**
+     * A mapped section of doubles
+     */
+    static class DoubleSection {
+        private final DoubleBuffer[] chunks;
+
+        private DoubleSection(DoubleBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+
+        double get(int k) {
+            return this.chunks[k >>> CHUNK_SHIFT].get(k & CHUNK_MASK);
+        }
+
+        static DoubleSection map(FileChannel channel, long offset, long length) throws IOException {
+            DoubleBuffer[] chunks = new DoubleBuffer[numChunks(length)];
+            for (int c = 0; c < chunks.length; ++c) {
+                long chunkLength = Math.min(length - ((long) c << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + ((long) c << CHUNK_SHIFT) * Double.BYTES,
+                    chunkLength * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            return new DoubleSection(chunks);
+        }
+    }
+
+    private static int numChunks(long length) {
+        return (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+}
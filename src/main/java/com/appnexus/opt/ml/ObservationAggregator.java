@@ -0,0 +1,201 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.CompletionServiceParallelExecutor;
+import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.IParallelExecutor;
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class collapses rows with identical feature vectors into a single row, summing their success events (y) and trials
+ * (weight). The log likelihood of the aggregated data set is exactly the one of the original data set, so the trainers produce the
+ * same betas while every pass over the data scales with the number of unique rows instead of raw rows
+ * <p>
+ * Two rows are identical if they store the same feature indices with the same values in the same order. Aggregated rows keep the
+ * order of the first occurrence of every feature vector, regardless of the number of threads
+ */
+public class ObservationAggregator {
+
+    private ObservationAggregator() {
+    }
+
+    /**
+     * @param observations observations
+     * @return observations with identical feature vectors merged
+     */
+    public static SparseObservation[] aggregate(SparseObservation[] observations) {
+        return aggregate(SparseDataset.fromObservations(observations)).toObservations();
+    }
+
+    /**
+     * @param dataset data set
+     * @return data set with identical rows merged
+     */
+    public static ArraySparseDataset aggregate(SparseDataset dataset) {
+        Map<RowKey, RowGroup> groups = new HashMap<>();
+        addRows(dataset, 0, dataset.getNumRows(), groups);
+        return compact(dataset, groups.values());
+    }
+
+    /**
+     * Aggregate with numThreads threads hashing their nnz-balanced ranges of rows into one concurrent map
+     *
+     * @param dataset           data set
+     * @param completionService completion service
+     * @param numThreads        number of threads
+     * @return data set with identical rows merged
+     */
+    public static ArraySparseDataset aggregate(SparseDataset dataset, CompletionService<Boolean> completionService,
+        int numThreads) {
+        return aggregate(dataset, new CompletionServiceParallelExecutor(completionService, numThreads));
+    }
+
+    /**
+     * Aggregate with the tasks of a parallel executor hashing their nnz-balanced ranges of rows into one concurrent map
+     *
+     * @param dataset          data set
+     * @param parallelExecutor parallel executor
+     * @return data set with identical rows merged
+     */
+    public static ArraySparseDataset aggregate(SparseDataset dataset, IParallelExecutor parallelExecutor) {
+        int numThreads = parallelExecutor.getParallelism();
+        ConcurrentHashMap<RowKey, RowGroup> groups = new ConcurrentHashMap<>(16, 0.75f, numThreads);
+        // hashing a row costs about 1 + nnz_i, so rows of very different lengths are balanced by that
+        List<DatasetRange> datasetRanges = new ArrayList<>(MultiThreadingUtil
+            .splitIntoBalancedRanges(dataset.getCumulativeRowCost(false), numThreads));
+        parallelExecutor.parallelFor(numThreads, t -> addRows(dataset, datasetRanges.get(t).getStartIdx(),
+            datasetRanges.get(t).getEndIdx(), groups));
+        return compact(dataset, groups.values());
+    }
+
+    private static void addRows(SparseDataset dataset, int startIdx, int endIdx, Map<RowKey, RowGroup> groups) {
+        for (int i = startIdx; i < endIdx; ++i) {
+            int row = i;
+            double y = dataset.getY(i);
+            int weight = dataset.getWeight(i);
+            // compute() is atomic per key for a ConcurrentHashMap
+            groups.compute(new RowKey(dataset, i), (key, group) -> group == null ? new RowGroup(row, y, weight) :
+                group.add(row, y, weight));
+        }
+    }
+
+    /**
+     * Copy one row per group into a new data set, in the order of the first occurrence of every group
+     */
+    private static ArraySparseDataset compact(SparseDataset dataset, Iterable<RowGroup> groups) {
+        List<RowGroup> sortedGroups = new ArrayList<>();
+        int nnz = 0;
+        for (RowGroup group : groups) {
+            sortedGroups.add(group);
+            nnz += dataset.getRowNnz(group.firstRow);
+        }
+        sortedGroups.sort(Comparator.comparingInt(group -> group.firstRow));
+        SparseDataset.Builder builder = new SparseDataset.Builder(sortedGroups.size(), nnz);
+        for (RowGroup group : sortedGroups) {
+            if (group.weight > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(
+                    "aggregated weight " + group.weight + " of row " + group.firstRow + " exceeds the int range");
+            }
+            for (int k = dataset.getRowStart(group.firstRow); k < dataset.getRowEnd(group.firstRow); ++k) {
+                builder.addFeature(dataset.getIndex(k), dataset.getValue(k));
+            }
+            builder.endRow(group.y, (int) group.weight);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Hash key comparing the stored entries of a row of the data set
+     */
+    private static class RowKey {
+        private final SparseDataset dataset;
+        private final int row;
+        private final int hash;
+
+        RowKey(SparseDataset dataset, int row) {
+            this.dataset = dataset;
+            this.row = row;
+            boolean binary = dataset.isBinary();
+            int h = 1;
+            for (int k = dataset.getRowStart(row); k < dataset.getRowEnd(row); ++k) {
+                h = 31 * h + dataset.getIndex(k);
+                if (!binary) {
+                    h = 31 * h + Double.hashCode(dataset.getValue(k));
+                }
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || this.getClass() != o.getClass()) return false;
+            RowKey that = (RowKey) o;
+            if (this.hash != that.hash || this.dataset.getRowNnz(this.row) != that.dataset.getRowNnz(that.row)) {
+                return false;
+            }
+            boolean binary = this.dataset.isBinary() && that.dataset.isBinary();
+            int a = this.dataset.getRowStart(this.row);
+            int b = that.dataset.getRowStart(that.row);
+            for (int end = this.dataset.getRowEnd(this.row); a < end; ++a, ++b) {
+                if (this.dataset.getIndex(a) != that.dataset.getIndex(b)) {
+                    return false;
+                }
+                if (!binary && Double.compare(this.dataset.getValue(a), that.dataset.getValue(b)) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Running sums of one group of identical rows
+     */
+    private static class RowGroup {
+        private int firstRow;
+        private double y;
+        private long weight;
+
+        RowGroup(int firstRow, double y, int weight) {
+            this.firstRow = firstRow;
+            this.y = y;
+            this.weight = weight;
+        }
+
+        RowGroup add(int row, double y, int weight) {
+            this.firstRow = Math.min(this.firstRow, row);
+            this.y += y;
+            this.weight += weight;
+            return this;
+        }
+    }
+}
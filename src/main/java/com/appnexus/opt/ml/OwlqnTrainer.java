@@ -0,0 +1,493 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.DatasetRangeQueue;
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import com.appnexus.opt.concurrent.IParallelExecutor;
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class implements a {@link IModelTrainer} that trains Logistic Regression models with OWL-QN (Andrew and Gao, Scalable
+ * Training of L1-Regularized Log-Linear Models), the orthant-wise limited-memory quasi-Newton method. It minimizes the penalized
+ * objective of the coordinate descent trainers directly,
+ * <p>
+ * (1 / W) * sum_i (weight_i * log(1 + exp(betas . xi)) - y_i * betas . xi) + lambda * sum_j s_j * (alpha * |beta_j| + (1 - alpha)
+ * * beta_j^2 / 2),
+ * <p>
+ * with the L2 part of the penalty in the smooth objective and the L1 part handled by the orthant-wise steps. Every iteration costs
+ * one or a few passes over the data, computed in parallel over chunks of rows, and the memory is O(historySize * p) with no p x p
+ * state, so the trainer scales to feature spaces far beyond the reach of the covariance matrix
+ * <p>
+ * Training stops once the betas of two successive iterations are within the tolerance, like the coordinate descent trainers. The
+ * time of the passes over the data is recorded as mi / zi time of the {@link LRResult}, the rest of the optimizer as betas update
+ * time
+ */
+public class OwlqnTrainer implements IModelTrainer {
+    private static final int DEFAULT_TRAINING_METRICS_PERIOD = 10;
+    private static final int DEFAULT_CHUNKS_PER_THREAD = 8;
+    private static final int DEFAULT_HISTORY_SIZE = 10;
+    private static final int MAX_LINE_SEARCH_STEPS = 40;
+    // sufficient decrease of the backtracking line search
+    private static final double ARMIJO_FACTOR = 1e-4;
+
+    private final IParallelExecutor parallelExecutor;
+    private final int numTrainingThreads;
+    private int historySize = DEFAULT_HISTORY_SIZE;
+    private int chunksPerThread = DEFAULT_CHUNKS_PER_THREAD;
+    private TrainingMetricsPolicy trainingMetricsPolicy = TrainingMetricsPolicy.FINAL_ONLY;
+    private int trainingMetricsPeriod = DEFAULT_TRAINING_METRICS_PERIOD;
+    private boolean iterationSnapshots;
+    private IIterationListener iterationListener;
+
+    /**
+     * Train on the common {@link java.util.concurrent.ForkJoinPool}
+     */
+    public OwlqnTrainer() {
+        this(new ForkJoinParallelExecutor());
+    }
+
+    /**
+     * @param parallelExecutor executor to run the passes over the data on, may be shared by several trainers
+     */
+    public OwlqnTrainer(IParallelExecutor parallelExecutor) {
+        this.parallelExecutor = parallelExecutor;
+        this.numTrainingThreads = parallelExecutor.getParallelism();
+    }
+
+    public IParallelExecutor getParallelExecutor() {
+        return parallelExecutor;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * @param historySize number of (betas change, gradient change) pairs kept for the inverse Hessian approximation, 10 by
+     *                    default
+     */
+    public void setHistorySize(int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("historySize must be positive");
+        }
+        this.historySize = historySize;
+    }
+
+    public int getChunksPerThread() {
+        return chunksPerThread;
+    }
+
+    /**
+     * @param chunksPerThread number of cost-balanced chunks of rows per thread that a pass is split into, 8 by default
+     */
+    public void setChunksPerThread(int chunksPerThread) {
+        if (chunksPerThread < 1) {
+            throw new IllegalArgumentException("chunksPerThread must be positive");
+        }
+        this.chunksPerThread = chunksPerThread;
+    }
+
+    public TrainingMetricsPolicy getTrainingMetricsPolicy() {
+        return trainingMetricsPolicy;
+    }
+
+    /**
+     * @param trainingMetricsPolicy when to compute the training entropy, {@link TrainingMetricsPolicy#FINAL_ONLY} by default.
+     *                              The penalized objective is known after every iteration and always recorded in
+     *                              {@link LRIterationMetadata#getObjective()}; there is no quadratic approximation, so
+     *                              {@link TrainingMetricsPolicy#QUADRATIC_OBJECTIVE} computes the final entropy only
+     */
+    public void setTrainingMetricsPolicy(TrainingMetricsPolicy trainingMetricsPolicy) {
+        this.trainingMetricsPolicy = trainingMetricsPolicy;
+    }
+
+    public int getTrainingMetricsPeriod() {
+        return trainingMetricsPeriod;
+    }
+
+    /**
+     * @param trainingMetricsPeriod iterations between training entropies with {@link TrainingMetricsPolicy#PERIODIC}, 10 by
+     *                              default
+     */
+    public void setTrainingMetricsPeriod(int trainingMetricsPeriod) {
+        if (trainingMetricsPeriod < 1) {
+            throw new IllegalArgumentException("trainingMetricsPeriod must be positive");
+        }
+        this.trainingMetricsPeriod = trainingMetricsPeriod;
+    }
+
+    public boolean isIterationSnapshots() {
+        return iterationSnapshots;
+    }
+
+    /**
+     * @param iterationSnapshots true to record a copy of the betas in the metadata of every iteration, false (the default) to
+     *                           leave {@link LRIterationMetadata#getBetas()} null
+     */
+    public void setIterationSnapshots(boolean iterationSnapshots) {
+        this.iterationSnapshots = iterationSnapshots;
+    }
+
+    public IIterationListener getIterationListener() {
+        return iterationListener;
+    }
+
+    /**
+     * @param iterationListener listener to deliver the metadata of every iteration to, or null (the default) to collect it in
+     *                          {@link LRResult#getMetaDataList()}
+     */
+    public void setIterationListener(IIterationListener iterationListener) {
+        this.iterationListener = iterationListener;
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseObservation[] observations, double totalWeights,
+        double[] oldBetasWithBeta0, double alpha, double lambda, double[] lambdaScaleFactors, double tolerance,
+        int maxIterations) {
+        return trainNewBetasWithBeta0(SparseDataset.fromObservations(observations), totalWeights, oldBetasWithBeta0,
+            alpha, lambda, lambdaScaleFactors, tolerance, maxIterations);
+    }
+
+    @Override
+    public LRResult trainNewBetasWithBeta0(SparseDataset dataset, double totalWeights, double[] oldBetasWithBeta0,
+        double alpha, double lambda, double[] lambdaScaleFactors, double tolerance, int maxIterations) {
+        long start = System.currentTimeMillis();
+        LRResult lrResult = new LRResult();
+        List<LRIterationMetadata> metadataList = null;
+        if (this.iterationListener == null) {
+            metadataList = new ArrayList<>();
+            lrResult.setMetaDataList(metadataList);
+        }
+        int size = oldBetasWithBeta0.length;
+        double[] scaledLambdaMulAlpha = new double[size]; // 0 for beta0
+        double[] scaledLambdaMulOneMinusAlpha = new double[size];
+        for (int j = 1; j < size; ++j) {
+            scaledLambdaMulAlpha[j] = lambda * alpha * lambdaScaleFactors[j - 1];
+            scaledLambdaMulOneMinusAlpha[j] = lambda * (1 - alpha) * lambdaScaleFactors[j - 1];
+        }
+        SmoothObjective smoothObjective = new SmoothObjective(dataset, totalWeights, scaledLambdaMulOneMinusAlpha,
+            MultiThreadingUtil.splitIntoBalancedRanges(dataset.getCumulativeRowCost(false),
+                this.numTrainingThreads * this.chunksPerThread));
+        IVectorKernels kernels = VectorKernels.get();
+
+        double[] betas = Arrays.copyOf(oldBetasWithBeta0, size);
+        double[] gradient = new double[size];
+        double objective = smoothObjective.evaluate(betas, gradient) + getL1Penalty(betas, scaledLambdaMulAlpha);
+        double[] newBetas = new double[size];
+        double[] newGradient = new double[size];
+        double[] pseudoGradient = new double[size];
+        double[] direction = new double[size];
+        // ring buffer of the latest (betas change, gradient change) pairs
+        double[][] betasChanges = new double[this.historySize][];
+        double[][] gradientChanges = new double[this.historySize][];
+        double[] rhos = new double[this.historySize];
+        double[] alphas = new double[this.historySize];
+        int historyLength = 0;
+        int newest = -1;
+
+        double maxAbsDifferencePct = Double.NaN;
+        double finalEntropy = Double.NaN;
+        boolean done = false;
+        int iterations = 0;
+        while (!done && iterations < maxIterations) {
+            long startLoop = System.currentTimeMillis();
+            getPseudoGradient(betas, gradient, scaledLambdaMulAlpha, pseudoGradient);
+
+            /*
+             * Two-loop recursion: direction = -H * pseudoGradient, with H the L-BFGS inverse Hessian approximation
+             */
+            for (int j = 0; j < size; ++j) {
+                direction[j] = -pseudoGradient[j];
+            }
+            for (int h = 0, idx = newest; h < historyLength; ++h, idx = (idx + this.historySize - 1) % this.historySize) {
+                alphas[idx] = rhos[idx] * kernels.dot(betasChanges[idx], 0, direction, 0, size);
+                kernels.addScaled(-alphas[idx], gradientChanges[idx], 0, direction, 0, size);
+            }
+            if (historyLength > 0) {
+                double[] y = gradientChanges[newest];
+                double gamma = 1 / (rhos[newest] * kernels.dot(y, 0, y, 0, size));
+                for (int j = 0; j < size; ++j) {
+                    direction[j] *= gamma;
+                }
+            }
+            for (int h = 0, idx = (newest + this.historySize - historyLength + 1) % this.historySize; h < historyLength;
+                ++h, idx = (idx + 1) % this.historySize) {
+                double b = rhos[idx] * kernels.dot(gradientChanges[idx], 0, direction, 0, size);
+                kernels.addScaled(alphas[idx] - b, betasChanges[idx], 0, direction, 0, size);
+            }
+            // keep the direction in the orthant of steepest descent of the pseudo gradient
+            double directionalDerivative = 0;
+            for (int j = 0; j < size; ++j) {
+                if (direction[j] * pseudoGradient[j] >= 0) {
+                    direction[j] = 0;
+                }
+                directionalDerivative += direction[j] * pseudoGradient[j];
+            }
+            if (directionalDerivative == 0) {
+                // the pseudo gradient is zero, the betas are optimal
+                maxAbsDifferencePct = 0;
+                break;
+            }
+
+            /*
+             * Backtracking line search along the projection of the direction on the orthant of the betas
+             */
+            double step = historyLength == 0 ? Math.min(1, 1 / Math.sqrt(-directionalDerivative)) : 1;
+            double newObjective = Double.NaN;
+            boolean accepted = false;
+            for (int s = 0; s < MAX_LINE_SEARCH_STEPS && !accepted; ++s, step /= 2) {
+                double decrease = 0;
+                for (int j = 0; j < size; ++j) {
+                    double newBeta = betas[j] + step * direction[j];
+                    if (scaledLambdaMulAlpha[j] != 0) {
+                        double orthant = betas[j] != 0 ? Math.signum(betas[j]) : -Math.signum(pseudoGradient[j]);
+                        if (Math.signum(newBeta) != orthant) {
+                            newBeta = 0;
+                        }
+                    }
+                    newBetas[j] = newBeta;
+                    decrease += pseudoGradient[j] * (newBeta - betas[j]);
+                }
+                newObjective = smoothObjective.evaluate(newBetas, newGradient) +
+                    getL1Penalty(newBetas, scaledLambdaMulAlpha);
+                accepted = newObjective <= objective + ARMIJO_FACTOR * decrease;
+            }
+            if (!accepted) {
+                // no decrease along the direction within floating point precision
+                maxAbsDifferencePct = 0;
+                break;
+            }
+            ++iterations;
+
+            /*
+             * Record the curvature pair and move to the new betas
+             */
+            int next = (newest + 1) % this.historySize;
+            if (betasChanges[next] == null) {
+                betasChanges[next] = new double[size];
+                gradientChanges[next] = new double[size];
+            }
+            double[] betasChange = betasChanges[next];
+            double[] gradientChange = gradientChanges[next];
+            for (int j = 0; j < size; ++j) {
+                betasChange[j] = newBetas[j] - betas[j];
+                gradientChange[j] = newGradient[j] - gradient[j];
+            }
+            double curvature = kernels.dot(betasChange, 0, gradientChange, 0, size);
+            if (curvature > 0) {
+                rhos[next] = 1 / curvature;
+                newest = next;
+                historyLength = Math.min(historyLength + 1, this.historySize);
+            } else if (historyLength == this.historySize) {
+                // the slot of the oldest pair has been overwritten
+                --historyLength;
+            }
+            maxAbsDifferencePct = LRUtil.getMaxAbsDifferencePct(betas, newBetas);
+            done = LRUtil.hasConverged(maxAbsDifferencePct, tolerance);
+            double[] swap = betas;
+            betas = newBetas;
+            newBetas = swap;
+            swap = gradient;
+            gradient = newGradient;
+            newGradient = swap;
+            objective = newObjective;
+            boolean last = done || iterations >= maxIterations;
+
+            double iterationEntropy = Double.NaN;
+            if (this.trainingMetricsPolicy == TrainingMetricsPolicy.EVERY_ITERATION
+                || (this.trainingMetricsPolicy == TrainingMetricsPolicy.PERIODIC
+                && iterations % this.trainingMetricsPeriod == 0)
+                || (last && this.trainingMetricsPolicy != TrainingMetricsPolicy.NONE)) {
+                iterationEntropy = LREvalUtil.getEntropy(dataset, betas, this.parallelExecutor);
+            }
+            finalEntropy = iterationEntropy;
+
+            LRIterationMetadata iterationMetadata = new LRIterationMetadata();
+            iterationMetadata.setAlpha(alpha);
+            iterationMetadata.setLambda(lambda);
+            iterationMetadata.setIteration(iterations);
+            iterationMetadata.setMaxAbsDifferencePct(maxAbsDifferencePct);
+            iterationMetadata.setTrainingEntropy(iterationEntropy);
+            iterationMetadata.setObjective(objective);
+            if (this.iterationSnapshots) {
+                iterationMetadata.setBetas(Arrays.copyOf(betas, size));
+            }
+            iterationMetadata.setTrainingTimeMillis(System.currentTimeMillis() - startLoop);
+            iterationMetadata.setActiveSetSize(getNumOfNonZeros(betas));
+            if (this.iterationListener != null) {
+                this.iterationListener.iterationCompleted(iterationMetadata);
+            } else {
+                metadataList.add(iterationMetadata);
+            }
+        }
+        if (Double.isNaN(finalEntropy) && this.trainingMetricsPolicy != TrainingMetricsPolicy.NONE) {
+            // stopped at optimal betas before recording an iteration
+            finalEntropy = LREvalUtil.getEntropy(dataset, betas, this.parallelExecutor);
+        }
+
+        long trainingTimeMillis = System.currentTimeMillis() - start;
+        long passMillis = TimeUnit.NANOSECONDS.toMillis(smoothObjective.evaluationNanos);
+        lrResult.setAlpha(alpha);
+        lrResult.setLambda(lambda);
+        lrResult.setIteration(iterations);
+        lrResult.setMaxAbsDifferencePct(maxAbsDifferencePct);
+        lrResult.setTrainingEntropy(finalEntropy);
+        lrResult.setBetasWithBeta0(betas);
+        lrResult.setMiZiCalcMillis(passMillis); // split train-time metrics
+        lrResult.setBetasUpdateMillis(trainingTimeMillis - passMillis); // split train-time metrics
+        lrResult.setTrainingTimeMillis(trainingTimeMillis);
+        return lrResult;
+    }
+
+    /**
+     * The pseudo gradient is the gradient of the smooth objective plus the L1 subgradient that points downhill the most; at
+     * beta_j = 0 it is zero unless the gradient exceeds the L1 strength
+     *
+     * @param betas                betas
+     * @param gradient             gradient of the smooth objective
+     * @param scaledLambdaMulAlpha L1 strength of every beta
+     * @param pseudoGradient       pseudo gradient, output
+     */
+    static void getPseudoGradient(double[] betas, double[] gradient, double[] scaledLambdaMulAlpha,
+        double[] pseudoGradient) {
+        for (int j = 0; j < betas.length; ++j) {
+            double l1 = scaledLambdaMulAlpha[j];
+            if (betas[j] > 0) {
+                pseudoGradient[j] = gradient[j] + l1;
+            } else if (betas[j] < 0) {
+                pseudoGradient[j] = gradient[j] - l1;
+            } else if (gradient[j] + l1 < 0) {
+                pseudoGradient[j] = gradient[j] + l1;
+            } else if (gradient[j] - l1 > 0) {
+                pseudoGradient[j] = gradient[j] - l1;
+            } else {
+                pseudoGradient[j] = 0;
+            }
+        }
+    }
+
+    private static double getL1Penalty(double[] betas, double[] scaledLambdaMulAlpha) {
+        double penalty = 0;
+        for (int j = 1; j < betas.length; ++j) {
+            penalty += scaledLambdaMulAlpha[j] * Math.abs(betas[j]);
+        }
+        return penalty;
+    }
+
+    private static int getNumOfNonZeros(double[] betas) {
+        int nonZeros = 0;
+        for (double beta : betas) {
+            if (beta != 0) {
+                ++nonZeros;
+            }
+        }
+        return nonZeros;
+    }
+
+    /**
+     * The smooth part of the objective, (1 / W) * log loss + L2 penalty, and its gradient. Every task of a pass pulls chunks of
+     * rows and accumulates their loss and gradient in its own buffers, the buffers are then summed by ranges of betas
+     */
+    private class SmoothObjective {
+        private final SparseDataset dataset;
+        private final double totalWeights;
+        private final double[] scaledLambdaMulOneMinusAlpha;
+        private final List<DatasetRange> rowChunks;
+        private final double[][] taskGradients;
+        private final double[] taskLosses;
+        private long evaluationNanos;
+
+        SmoothObjective(SparseDataset dataset, double totalWeights, double[] scaledLambdaMulOneMinusAlpha,
+            List<DatasetRange> rowChunks) {
+            this.dataset = dataset;
+            this.totalWeights = totalWeights;
+            this.scaledLambdaMulOneMinusAlpha = scaledLambdaMulOneMinusAlpha;
+            this.rowChunks = rowChunks;
+            this.taskGradients = new double[numTrainingThreads][scaledLambdaMulOneMinusAlpha.length];
+            this.taskLosses = new double[numTrainingThreads];
+        }
+
+        /**
+         * @param betas    betas
+         * @param gradient gradient of the smooth objective at the betas, output
+         * @return smooth objective at the betas
+         */
+        double evaluate(double[] betas, double[] gradient) {
+            long startNanos = System.nanoTime();
+            DatasetRangeQueue chunks = new DatasetRangeQueue(this.rowChunks);
+            parallelExecutor.parallelFor(numTrainingThreads, t -> {
+                double[] taskGradient = this.taskGradients[t];
+                Arrays.fill(taskGradient, 0);
+                double loss = 0;
+                for (DatasetRange chunk = chunks.next(); chunk != null; chunk = chunks.next()) {
+                    loss += addRows(betas, chunk.getStartIdx(), chunk.getEndIdx(), taskGradient);
+                }
+                this.taskLosses[t] = loss;
+            });
+            int size = betas.length;
+            parallelExecutor.parallelFor(numTrainingThreads, t -> {
+                int startIdx = (int) ((long) size * t / numTrainingThreads);
+                int endIdx = (int) ((long) size * (t + 1) / numTrainingThreads);
+                for (int j = startIdx; j < endIdx; ++j) {
+                    double sum = 0;
+                    for (double[] taskGradient : this.taskGradients) {
+                        sum += taskGradient[j];
+                    }
+                    gradient[j] = sum / this.totalWeights + this.scaledLambdaMulOneMinusAlpha[j] * betas[j];
+                }
+            });
+            double loss = 0;
+            for (double taskLoss : this.taskLosses) {
+                loss += taskLoss;
+            }
+            double l2Penalty = 0;
+            for (int j = 1; j < size; ++j) {
+                l2Penalty += 0.5 * this.scaledLambdaMulOneMinusAlpha[j] * betas[j] * betas[j];
+            }
+            this.evaluationNanos += System.nanoTime() - startNanos;
+            return loss / this.totalWeights + l2Penalty;
+        }
+
+        /**
+         * @return log loss of rows startIdx to endIdx - 1, whose unnormalized gradient is added to taskGradient
+         */
+        private double addRows(double[] betas, int startIdx, int endIdx, double[] taskGradient) {
+            double loss = 0;
+            boolean binary = this.dataset.isBinary();
+            for (int i = startIdx; i < endIdx; ++i) {
+                double betasDotXi = LRUtil.betasDotXi(this.dataset, i, betas);
+                double weight = this.dataset.getWeight(i);
+                double y = this.dataset.getY(i);
+                // weight * log(1 + exp(betas . xi)) without overflow
+                loss += weight * (Math.max(betasDotXi, 0) + Math.log1p(Math.exp(-Math.abs(betasDotXi)))) - y * betasDotXi;
+                double residual = weight * LRUtil.calcProb(betasDotXi) - y;
+                taskGradient[0] += residual;
+                for (int k = this.dataset.getRowStart(i); k < this.dataset.getRowEnd(i); ++k) {
+                    taskGradient[this.dataset.getIndex(k) + 1] +=
+                        binary ? residual : residual * this.dataset.getValue(k);
+                }
+            }
+            return loss;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This class implements a {@link IWeightedCovarianceMatrix} that stores only the strictly upper triangle, row by row, in one array.
+ * The matrix is symmetric with a zero diagonal, so this holds all of it in size * (size - 1) / 2 doubles
+ */
+public class PackedWeightedCovarianceMatrix implements IWeightedCovarianceMatrix {
+    private final int size;
+    private final double[] packed;
+
+    public PackedWeightedCovarianceMatrix(int size) {
+        long length = (long) size * (size - 1) / 2;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("packed covariance matrix of size " + size + " exceeds the maximum array length");
+        }
+        this.size = size;
+        this.packed = new double[(int) length];
+    }
+
+    /**
+     * @param j row, less than k
+     * @param k column, greater than j
+     * @return position of (j, k) in the packed array
+     */
+    private int offset(int j, int k) {
+        return (int) ((long) j * (2 * this.size - j - 1) / 2) + (k - j - 1);
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    @Override
+    public double get(int j, int k) {
+        if (j == k) {
+            return 0;
+        }
+        return j < k ? this.packed[offset(j, k)] : this.packed[offset(k, j)];
+    }
+
+    @Override
+    public double dotRow(int j, double[] vector) {
+        double sum = 0;
+        // column j of the upper triangle holds matrix[k][j] for k < j
+        int p = j - 1;
+        for (int k = 0; k < j; ++k) {
+            sum += this.packed[p] * vector[k];
+            p += this.size - k - 2;
+        }
+        // row j of the upper triangle is contiguous
+        if (j + 1 < this.size) {
+            sum += VectorKernels.get().dot(this.packed, offset(j, j + 1), vector, j + 1, this.size - j - 1);
+        }
+        return sum;
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target) {
+        int p = j - 1;
+        for (int k = 0; k < j; ++k) {
+            target[k] += scale * this.packed[p];
+            p += this.size - k - 2;
+        }
+        if (j + 1 < this.size) {
+            VectorKernels.get().addScaled(scale, this.packed, offset(j, j + 1), target, j + 1, this.size - j - 1);
+        }
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target, int startIdx, int endIdx) {
+        int columnEnd = Math.min(endIdx, j);
+        if (startIdx < columnEnd) {
+            int p = offset(startIdx, j);
+            for (int k = startIdx; k < columnEnd; ++k) {
+                target[k] += scale * this.packed[p];
+                p += this.size - k - 2;
+            }
+        }
+        int rowStart = Math.max(startIdx, j + 1);
+        if (rowStart < endIdx) {
+            VectorKernels.get().addScaled(scale, this.packed, offset(j, rowStart), target, rowStart, endIdx - rowStart);
+        }
+    }
+
+    @Override
+    public void addRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi) {
+        boolean binary = dataset.isBinary();
+        for (int i = startIdx; i < endIdx; ++i) {
+            int start = dataset.getRowStart(i);
+            int end = dataset.getRowEnd(i);
+            for (int a = start; a < end; ++a) {
+                int j = dataset.getIndex(a) + 1;
+                double mxij = binary ? mi[i] : mi[i] * dataset.getValue(a);
+                for (int b = start; b < end; ++b) {
+                    int k = dataset.getIndex(b) + 1;
+                    if (j < k) {
+                        this.packed[offset(j, k)] += binary ? mxij : mxij * dataset.getValue(b);
+                    }
+                }
+                // intercept row, X value of beta0 is always 1
+                this.packed[j - 1] += mxij;
+            }
+        }
+    }
+
+    @Override
+    public void computeRows(SparseDataset dataset, SparseColumnIndex columnIndex, int startRow, int endRow,
+        double[] mi) {
+        for (int j = startRow; j < endRow; ++j) {
+            if (j == 0) {
+                // intercept row, X value of beta0 is always 1
+                for (int f = 0; f < columnIndex.getNumOfFeatures(); ++f) {
+                    for (int p = columnIndex.getColumnStart(f); p < columnIndex.getColumnEnd(f); ++p) {
+                        this.packed[f] += mi[columnIndex.getRow(p)] * columnIndex.getValue(p);
+                    }
+                }
+                continue;
+            }
+            // only the part of row j right of the diagonal is stored in row j
+            int rowOffset = j + 1 < this.size ? offset(j, j + 1) - j - 1 : 0;
+            int feature = j - 1;
+            for (int p = columnIndex.getColumnStart(feature); p < columnIndex.getColumnEnd(feature); ++p) {
+                int i = columnIndex.getRow(p);
+                double mxij = mi[i] * columnIndex.getValue(p);
+                for (int b = dataset.getRowStart(i); b < dataset.getRowEnd(i); ++b) {
+                    int k = dataset.getIndex(b) + 1;
+                    if (k > j) {
+                        this.packed[rowOffset + k] += mxij * dataset.getValue(b);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addAll(IWeightedCovarianceMatrix other) {
+        double[] otherPacked = ((PackedWeightedCovarianceMatrix) other).packed;
+        VectorKernels.get().addScaled(1, otherPacked, 0, this.packed, 0, this.packed.length);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This class implements a {@link SparseDataset} that is a view of a subset of the rows of another data set, e.g. the training or
+ * held-out rows of a cross-validation fold. Nothing is copied: row i of the view is row rows[i] of the parent, and entries keep their
+ * positions in the parent, so the positions of the view are not contiguous
+ */
+public class RowSubsetSparseDataset extends SparseDataset {
+    private final SparseDataset parent;
+    private final int[] rows;
+    private final int nnz;
+
+    /**
+     * @param parent data set to view
+     * @param rows   rows of the parent that make up the view, in view order
+     */
+    public RowSubsetSparseDataset(SparseDataset parent, int[] rows) {
+        this.parent = parent;
+        this.rows = rows;
+        int nnz = 0;
+        for (int row : rows) {
+            nnz += parent.getRowNnz(row);
+        }
+        this.nnz = nnz;
+    }
+
+    /**
+     * @return viewed data set
+     */
+    public SparseDataset getParent() {
+        return this.parent;
+    }
+
+    /**
+     * @param i row of the view
+     * @return row of the parent
+     */
+    public int getParentRow(int i) {
+        return this.rows[i];
+    }
+
+    @Override
+    public int getNumRows() {
+        return this.rows.length;
+    }
+
+    @Override
+    public int getNnz() {
+        return this.nnz;
+    }
+
+    @Override
+    public int getRowStart(int i) {
+        return this.parent.getRowStart(this.rows[i]);
+    }
+
+    @Override
+    public int getRowEnd(int i) {
+        return this.parent.getRowEnd(this.rows[i]);
+    }
+
+    @Override
+    public int getIndex(int k) {
+        return this.parent.getIndex(k);
+    }
+
+    @Override
+    public double getValue(int k) {
+        return this.parent.getValue(k);
+    }
+
+    @Override
+    public boolean isBinary() {
+        return this.parent.isBinary();
+    }
+
+    @Override
+    public double getY(int i) {
+        return this.parent.getY(this.rows[i]);
+    }
+
+    @Override
+    public int getWeight(int i) {
+        return this.parent.getWeight(this.rows[i]);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This class implements the {@link IVectorKernels} as plain loops. They run on every Java version and are the fallback when the
+ * JDK Vector API is not available
+ */
+class ScalarVectorKernels implements IVectorKernels {
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum = 0;
+        for (int i = 0; i < length; ++i) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void addScaled(double scale, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int i = 0; i < length; ++i) {
+            y[yOffset + i] += scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void divide(double[] a, double divisor) {
+        for (int i = 0; i < a.length; ++i) {
+            a[i] /= divisor;
+        }
+    }
+
+    @Override
+    public double sumAbs(double[] a) {
+        double sum = 0;
+        for (double value : a) {
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    @Override
+    public double maxAbsDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int i = 0; i < a.length; ++i) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class trains Logistic Regression models on data sharded over {@link ShardWorker}s. Every coordinate descent step
+ * broadcasts the betas to all workers, which compute the mi and zi terms of their rows and reply with their
+ * {@link SufficientStatistics}. The coordinator merges the statistics and runs the beta update of a
+ * {@link CoordinateDescentTrainer} on them, so a step gives the betas of {@link CoordinateDescentTrainerMT} in covariance mode
+ * with {@link CovarianceStorage#SPARSE} storage on all rows. The new betas are broadcast by the next step
+ * <p>
+ * Requests go out to all workers before any reply is read, so the workers pass over their rows concurrently. Connecting and
+ * every reply are bounded by a timeout, so a hung or unreachable worker fails the call instead of blocking it. The connections are
+ * out of step after a timeout and the coordinator must be closed
+ */
+public class ShardCoordinator implements Closeable {
+    static final int DEFAULT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+
+    /**
+     * Connect to the workers with a timeout of 10 minutes
+     *
+     * @param workerAddresses addresses the workers listen on
+     * @throws IOException if a worker cannot be reached
+     */
+    public ShardCoordinator(List<InetSocketAddress> workerAddresses) throws IOException {
+        this(workerAddresses, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Connect to the workers
+     *
+     * @param workerAddresses addresses the workers listen on
+     * @param timeoutMillis   longest wait to connect to a worker and for every reply, which includes the pass of the worker over
+     *                        its rows; 0 to wait forever
+     * @throws IOException if a worker cannot be reached
+     */
+    public ShardCoordinator(List<InetSocketAddress> workerAddresses, int timeoutMillis) throws IOException {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        try {
+            for (InetSocketAddress address : workerAddresses) {
+                this.connections.add(new Connection(address, timeoutMillis));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public CoordinateDescentTrainer getTrainer() {
+        return trainer;
+    }
+
+    /**
+     * @param trainer trainer whose settings (active set iteration, betas update strategy, metrics policy, listener) the beta update
+     *                runs with, a default {@link CoordinateDescentTrainer} by default
+     */
+    public void setTrainer(CoordinateDescentTrainer trainer) {
+        this.trainer = trainer;
+    }
+
+    /**
+     * @return number of workers
+     */
+    public int getNumOfWorkers() {
+        return this.connections.size();
+    }
+
+    /**
+     * Broadcast betas and merge the statistics of all workers at them
+     *
+     * @param betasWithBeta0 betas to compute the mi and zi terms of the rows at
+     * @return statistics of all rows
+     * @throws IOException if a worker cannot be reached or fails
+     */
+    public SufficientStatistics collectStatistics(double[] betasWithBeta0) throws IOException {
+        for (Connection connection : this.connections) {
+            connection.out.writeInt(ShardWorker.CMD_STATISTICS);
+            connection.out.writeInt(betasWithBeta0.length - 1);
+            for (double beta : betasWithBeta0) {
+                connection.out.writeDouble(beta);
+            }
+            connection.out.flush();
+        }
+        // the replies leave out the betas, they are read and merged at the betas sent
+        SufficientStatistics statistics = new SufficientStatistics(betasWithBeta0.length - 1, betasWithBeta0);
+        IOException failure = null;
+        for (Connection connection : this.connections) {
+            // every reply is read, so that the connections stay in step even if a worker fails
+            try {
+                String error = connection.readStatus();
+                if (error == null) {
+                    statistics.merge(SufficientStatistics.readBodyFrom(connection.in, betasWithBeta0));
+                } else if (failure == null) {
+                    failure = new IOException("worker " + connection.address + " failed: " + error);
+                }
+            } catch (SocketTimeoutException e) {
+                throw connection.timedOut(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return statistics;
+    }
+
+    /**
+     * Compute the lambda scale factors of {@link LRUtil#generateLambdaScaleFactors(SparseDataset, int)} over all rows
+     *
+     * @param numOfFeatures total number of distinct features
+     * @return lambda scale factors
+     * @throws IOException if a worker cannot be reached or fails, or replies with a feature index out of range
+     */
+    public double[] getLambdaScaleFactors(int numOfFeatures) throws IOException {
+        for (Connection connection : this.connections) {
+            connection.out.writeInt(ShardWorker.CMD_FEATURE_SUCCESSES);
+            connection.out.writeInt(numOfFeatures);
+            connection.out.flush();
+        }
+        double[] lambdaScaleFactors = new double[numOfFeatures];
+        double totalWeights = 0;
+        IOException failure = null;
+        for (Connection connection : this.connections) {
+            try {
+                String error = connection.readStatus();
+                if (error != null) {
+                    if (failure == null) {
+                        failure = new IOException("worker " + connection.address + " failed: " + error);
+                    }
+                    continue;
+                }
+                totalWeights += connection.in.readDouble();
+                int count = connection.in.readInt();
+                for (int t = 0; t < count; ++t) {
+                    int j = connection.in.readInt();
+                    double successes = connection.in.readDouble();
+                    // the rest of the reply is still read, so that the connection stays in step
+                    if (j >= 0 && j < numOfFeatures) {
+                        lambdaScaleFactors[j] += successes;
+                    } else if (failure == null) {
+                        failure = new IOException("worker " + connection.address + " replied with feature index " + j
+                            + " out of range [0, " + numOfFeatures + ")");
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                throw connection.timedOut(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        for (int i = 0; i < lambdaScaleFactors.length; ++i) {
+            lambdaScaleFactors[i] = lambdaScaleFactors[i] == 0 ? 1 / totalWeights : lambdaScaleFactors[i] / totalWeights;
+        }
+        return lambdaScaleFactors;
+    }
+
+    /**
+     * One coordinate descent step over the rows of all workers, the counterpart of
+     * {@link IModelTrainer#trainNewBetasWithBeta0(SparseDataset, double, double[], double, double, double[], double, int)}. The
+     * time to broadcast the betas and collect the statistics is recorded as the mi / zi time of the result
+     *
+     * @param oldBetasWithBeta0  betas to start from
+     * @param alpha              elastic-net parameter 1 -> L1, 0 -> L2
+     * @param lambda             regularization parameter
+     * @param lambdaScaleFactors scale factors for different regularization on different predictors
+     * @param tolerance          max error between successive iterations
+     * @param maxIterations      max iterations
+     * @return trained betas
+     * @throws IOException if a worker cannot be reached or fails
+     */
+    public LRResult trainNewBetasWithBeta0(double[] oldBetasWithBeta0, double alpha, double lambda,
+        double[] lambdaScaleFactors, double tolerance, int maxIterations) throws IOException {
+        long collectStartMillis = System.currentTimeMillis();
+        SufficientStatistics statistics = collectStatistics(oldBetasWithBeta0);
+        long collectEndMillis = System.currentTimeMillis();
+        LRResult lrResult = this.trainer
+            .trainNewBetasWithBeta0(statistics, alpha, lambda, lambdaScaleFactors, tolerance, maxIterations);
+        lrResult.setMiZiCalcMillis(collectEndMillis - collectStartMillis);
+        lrResult.setTrainingTimeMillis(lrResult.getTrainingTimeMillis() + collectEndMillis - collectStartMillis);
+        return lrResult;
+    }
+
+    /**
+     * Stop all workers
+     *
+     * @throws IOException if a worker cannot be reached
+     */
+    public void shutdown() throws IOException {
+        for (Connection connection : this.connections) {
+            connection.out.writeInt(ShardWorker.CMD_SHUTDOWN);
+            connection.out.flush();
+        }
+        for (Connection connection : this.connections) {
+            try {
+                connection.readStatus();
+            } catch (SocketTimeoutException e) {
+                throw connection.timedOut(e);
+            }
+        }
+    }
+
+    /**
+     * Disconnect from the workers, which keep serving
+     *
+     * @throws IOException if a connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Connection connection : this.connections) {
+            try {
+                connection.socket.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        this.connections.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Connection to one worker
+     */
+    private static class Connection {
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final int timeoutMillis;
+
+        Connection(InetSocketAddress address, int timeoutMillis) throws IOException {
+            this.address = address;
+            this.timeoutMillis = timeoutMillis;
+            this.socket = new Socket();
+            try {
+                this.socket.setTcpNoDelay(true);
+                this.socket.setSoTimeout(timeoutMillis);
+                this.socket.connect(address, timeoutMillis);
+                this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+                this.out.writeInt(ShardWorker.PROTOCOL_MAGIC);
+                this.out.writeInt(ShardWorker.PROTOCOL_VERSION);
+                this.out.flush();
+                String error = readStatus();
+                if (error != null) {
+                    throw new IOException("worker " + address + " refused the connection: " + error);
+                }
+            } catch (SocketTimeoutException e) {
+                this.socket.close();
+                throw timedOut(e);
+            } catch (IOException e) {
+                this.socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return exception naming the worker that did not connect or reply in time
+         */
+        IOException timedOut(SocketTimeoutException e) {
+            return new IOException("worker " + this.address + " timed out after " + this.timeoutMillis + " ms", e);
+        }
+
+        /**
+         * @return null if the worker replied OK, its error message otherwise
+         */
+        String readStatus() throws IOException {
+            byte status = this.in.readByte();
+            if (status == ShardWorker.STATUS_OK) {
+                return null;
+            }
+            if (status == ShardWorker.STATUS_ERROR) {
+                return this.in.readUTF();
+            }
+            throw new IOException("invalid status " + status + " from worker " + this.address);
+        }
+    }
+}
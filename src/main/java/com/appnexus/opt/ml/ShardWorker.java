@@ -0,0 +1,284 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import com.appnexus.opt.concurrent.IParallelExecutor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Paths;
+
+/**
+ * This class serves one shard of the training data to a {@link ShardCoordinator} over a socket. For the betas the coordinator
+ * broadcasts, the worker replies with the {@link SufficientStatistics} of its rows: the sums of the aj, cj and covariance terms of
+ * its mi and zi. The rows never leave the worker, so a model can be trained on data spread over the memory of several processes
+ * or machines
+ * <p>
+ * The protocol is a sequence of requests on one connection, every request an int command followed by its arguments, every reply
+ * a status byte followed by the result or an error message, all in {@link java.io.DataOutput} form:
+ * <pre>
+ * handshake          magic, version (ints)                -&gt; OK
+ * STATISTICS         numOfFeatures (int), betas (doubles) -&gt; OK, {@link SufficientStatistics#writeBodyTo}, without the betas
+ * FEATURE_SUCCESSES  numOfFeatures (int)                  -&gt; OK, total weights (double), count (int), (index, sum of y)*
+ * SHUTDOWN                                                -&gt; OK, then the worker stops serving
+ * </pre>
+ * A worker serves one connection at a time and waits for the next one when the coordinator disconnects. A request that fails
+ * never stops the worker: errors computing a reply are sent back on the connection, malformed requests close it. The protocol
+ * has no authentication, so workers should only listen on loopback or a trusted private network
+ */
+public class ShardWorker implements Closeable {
+    static final int PROTOCOL_MAGIC = 0x454E3457; // "EN4W"
+    static final int PROTOCOL_VERSION = 2;
+    static final int CMD_STATISTICS = 1;
+    static final int CMD_FEATURE_SUCCESSES = 2;
+    static final int CMD_SHUTDOWN = 3;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final int DEFAULT_MAX_NUM_OF_FEATURES = 1 << 24;
+
+    private final SparseDataset shard;
+    private final IParallelExecutor parallelExecutor;
+    private int maxNumOfFeatures = DEFAULT_MAX_NUM_OF_FEATURES;
+    private ServerSocket serverSocket;
+    private volatile boolean shutdown;
+
+    /**
+     * @param shard            rows of this worker
+     * @param parallelExecutor parallel executor of the passes over the rows
+     */
+    public ShardWorker(SparseDataset shard, IParallelExecutor parallelExecutor) {
+        this.shard = shard;
+        this.parallelExecutor = parallelExecutor;
+    }
+
+    public int getMaxNumOfFeatures() {
+        return maxNumOfFeatures;
+    }
+
+    /**
+     * @param maxNumOfFeatures largest number of features a request may ask for, 2^24 by default. Requests for more are refused
+     *                         before anything is allocated for them
+     */
+    public void setMaxNumOfFeatures(int maxNumOfFeatures) {
+        if (maxNumOfFeatures < 0) {
+            throw new IllegalArgumentException("maxNumOfFeatures must not be negative");
+        }
+        this.maxNumOfFeatures = maxNumOfFeatures;
+    }
+
+    /**
+     * Serve a shard file written by {@link SparseDatasetFile} until a coordinator shuts the worker down. Prints the port it
+     * listens on as "listening on PORT" once bound
+     *
+     * @param args shard file, optionally followed by the port (0, the default, for any free port) and the address to bind to
+     *             (the loopback address by default)
+     * @throws IOException if the file cannot be mapped or the socket cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: ShardWorker shardFile [port [bindAddress]]");
+            System.exit(2);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        InetAddress bindAddress = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+        try (ShardWorker worker = new ShardWorker(SparseDatasetFile.map(Paths.get(args[0])),
+            new ForkJoinParallelExecutor())) {
+            InetSocketAddress address = worker.bind(new InetSocketAddress(bindAddress, port));
+            System.out.println("listening on " + address.getPort());
+            System.out.flush();
+            worker.serve();
+        }
+    }
+
+    /**
+     * @param address address to listen on, port 0 for any free port
+     * @return address the worker listens on
+     * @throws IOException if the socket cannot be bound
+     */
+    public InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.bind(address);
+        this.serverSocket = socket;
+        return new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+    }
+
+    /**
+     * Serve coordinators one connection at a time until one of them sends SHUTDOWN or the worker is closed
+     *
+     * @throws IOException if accepting connections fails
+     */
+    public void serve() throws IOException {
+        if (this.serverSocket == null) {
+            throw new IllegalStateException("worker must be bound before it serves");
+        }
+        while (!this.shutdown) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (SocketException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            try (Socket connection = socket) {
+                connection.setTcpNoDelay(true);
+                serveConnection(new DataInputStream(new BufferedInputStream(connection.getInputStream())),
+                    new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())));
+            } catch (EOFException e) {
+                // the coordinator disconnected, wait for the next one
+            } catch (IOException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                // a broken connection does not stop the worker
+            } catch (RuntimeException e) {
+                // neither does a request that fails outside of the replies reporting errors
+            }
+        }
+    }
+
+    private void serveConnection(DataInputStream in, DataOutputStream out) throws IOException {
+        if (in.readInt() != PROTOCOL_MAGIC || in.readInt() != PROTOCOL_VERSION) {
+            out.writeByte(STATUS_ERROR);
+            out.writeUTF("unsupported protocol");
+            out.flush();
+            return;
+        }
+        out.writeByte(STATUS_OK);
+        out.flush();
+        while (true) {
+            int command = in.readInt();
+            switch (command) {
+                case CMD_STATISTICS: {
+                    int numOfFeatures = in.readInt();
+                    if (!checkNumOfFeatures(out, numOfFeatures)) {
+                        return;
+                    }
+                    double[] betasWithBeta0 = new double[numOfFeatures + 1];
+                    for (int j = 0; j < betasWithBeta0.length; ++j) {
+                        betasWithBeta0[j] = in.readDouble();
+                    }
+                    SufficientStatistics statistics;
+                    try {
+                        statistics = SufficientStatistics
+                            .fromDataset(this.shard, numOfFeatures, betasWithBeta0, this.parallelExecutor);
+                    } catch (RuntimeException e) {
+                        writeError(out, e);
+                        break;
+                    }
+                    out.writeByte(STATUS_OK);
+                    // the coordinator knows the betas it sent
+                    statistics.writeBodyTo(out);
+                    break;
+                }
+                case CMD_FEATURE_SUCCESSES: {
+                    int numOfFeatures = in.readInt();
+                    if (!checkNumOfFeatures(out, numOfFeatures)) {
+                        return;
+                    }
+                    double[] featureSuccesses = new double[numOfFeatures];
+                    double totalWeights = 0;
+                    try {
+                        for (int i = 0; i < this.shard.getNumRows(); ++i) {
+                            totalWeights += this.shard.getWeight(i);
+                            for (int k = this.shard.getRowStart(i); k < this.shard.getRowEnd(i); ++k) {
+                                featureSuccesses[this.shard.getIndex(k)] += this.shard.getY(i);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        writeError(out, e);
+                        break;
+                    }
+                    int count = 0;
+                    for (double successes : featureSuccesses) {
+                        if (successes != 0) {
+                            ++count;
+                        }
+                    }
+                    out.writeByte(STATUS_OK);
+                    out.writeDouble(totalWeights);
+                    out.writeInt(count);
+                    for (int j = 0; j < numOfFeatures; ++j) {
+                        if (featureSuccesses[j] != 0) {
+                            out.writeInt(j);
+                            out.writeDouble(featureSuccesses[j]);
+                        }
+                    }
+                    break;
+                }
+                case CMD_SHUTDOWN:
+                    this.shutdown = true;
+                    out.writeByte(STATUS_OK);
+                    out.flush();
+                    return;
+                default:
+                    out.writeByte(STATUS_ERROR);
+                    out.writeUTF("unknown command " + command);
+                    out.flush();
+                    return;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Refuse a number of features out of range. The arguments that follow it cannot be skipped safely, so the connection is
+     * closed after the error is sent
+     *
+     * @return true if the number of features is in range
+     */
+    private boolean checkNumOfFeatures(DataOutputStream out, int numOfFeatures) throws IOException {
+        if (numOfFeatures >= 0 && numOfFeatures <= this.maxNumOfFeatures) {
+            return true;
+        }
+        out.writeByte(STATUS_ERROR);
+        out.writeUTF("number of features " + numOfFeatures + " out of range [0, " + this.maxNumOfFeatures + "]");
+        out.flush();
+        return false;
+    }
+
+    private static void writeError(DataOutputStream out, RuntimeException e) throws IOException {
+        out.writeByte(STATUS_ERROR);
+        out.writeUTF(String.valueOf(e));
+    }
+
+    /**
+     * Stop listening, a {@link #serve()} in progress returns once its current connection ends
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.shutdown = true;
+        if (this.serverSocket != null) {
+            this.serverSocket.close();
+        }
+    }
+}
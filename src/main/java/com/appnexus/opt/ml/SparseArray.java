@@ -17,47 +17,99 @@
 package com.appnexus.opt.ml;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * This class provides a simple implementation of a sparsely populated array of elements. The SparseArray is useful for holding sparse large but sparsely populated feature vectors while keeping computation time low
+ * <p>
+ * Entries are stored in parallel primitive arrays of indices and values so that hot loops can walk them with {@link #indexAt(int)} and {@link #valueAt(int)} without allocating.
+ * As long as every stored value is 1.0 (one-hot data) only the indices are kept, see {@link #isBinary()}
  */
 public class SparseArray implements Iterable<SparseArray.Entry>, Serializable {
 
-    private static final long serialVersionUID = 1L;
-    private List<Entry> array;
+    private static final long serialVersionUID = 2L;
+    private int[] indices;
+    private double[] values; // null while every stored value is 1.0
+    private int size;
+    // false once append() has added an index out of order, in which case lookups fall back to a linear scan
+    private boolean sorted = true;
 
     public SparseArray() {
         this(10);
     }
 
     private SparseArray(int initialCapacity) {
-        array = new ArrayList<>(initialCapacity);
+        indices = new int[initialCapacity];
     }
 
     public int size() {
-        return array.size();
+        return size;
+    }
+
+    /**
+     * @return number of stored (nonzero) entries
+     */
+    public int nnz() {
+        return size;
     }
 
     public boolean isEmpty() {
-        return array.isEmpty();
+        return size == 0;
+    }
+
+    /**
+     * @return true if every stored value is 1.0, in which case only the indices are stored
+     */
+    public boolean isBinary() {
+        return values == null;
     }
 
+    /**
+     * @param k position of the entry, between 0 and {@link #nnz()} - 1
+     * @return feature index of the k-th stored entry
+     */
+    public int indexAt(int k) {
+        return indices[k];
+    }
+
+    /**
+     * @param k position of the entry, between 0 and {@link #nnz()} - 1
+     * @return value of the k-th stored entry
+     */
+    public double valueAt(int k) {
+        return values == null ? 1.0 : values[k];
+    }
+
+    /**
+     * Iterate over copies of the stored entries. Modifying a returned {@link Entry} does not modify the array
+     */
     @Override
     public Iterator<Entry> iterator() {
-        return array.iterator();
-    }
+        return new Iterator<Entry>() {
+            private int k = 0;
 
-    public double get(int i) {
-        for (Entry e : array) {
-            if (e.i == i) {
-                return e.x;
+            @Override
+            public boolean hasNext() {
+                return k < size;
             }
-        }
 
-        return 0.0;
+            @Override
+            public Entry next() {
+                if (k >= size) {
+                    throw new NoSuchElementException();
+                }
+                Entry e = new Entry(indices[k], valueAt(k));
+                ++k;
+                return e;
+            }
+        };
+    }
+
+    public double get(int i) {
+        int k = find(i);
+        return k >= 0 ? valueAt(k) : 0.0;
     }
 
     /**
@@ -73,19 +125,17 @@ public class SparseArray implements Iterable<SparseArray.Entry>, Serializable {
             return false;
         }
 
-        Iterator<Entry> it = array.iterator();
-        for (int k = 0; it.hasNext(); k++) {
-            Entry e = it.next();
-            if (e.i == i) {
-                e.x = x;
-                return false;
-            } else if (e.i > i) {
-                array.add(k, new Entry(i, x));
-                return true;
+        int k = find(i);
+        if (k >= 0) {
+            if (values == null && x != 1.0) {
+                materializeValues();
+            }
+            if (values != null) {
+                values[k] = x;
             }
+            return false;
         }
-
-        array.add(new Entry(i, x));
+        insert(insertionPoint(i), i, x);
         return true;
     }
 
@@ -97,7 +147,10 @@ public class SparseArray implements Iterable<SparseArray.Entry>, Serializable {
      */
     public void append(int i, double x) {
         if (x != 0.0) {
-            array.add(new Entry(i, x));
+            if (size > 0 && indices[size - 1] >= i) {
+                sorted = false;
+            }
+            insert(size, i, x);
         }
     }
 
@@ -107,21 +160,87 @@ public class SparseArray implements Iterable<SparseArray.Entry>, Serializable {
      * @param i the index of entry.
      */
     public void remove(int i) {
-        Iterator<Entry> it = array.iterator();
-        while (it.hasNext()) {
-            Entry e = it.next();
-            if (e.i == i) {
-                it.remove();
-                break;
+        int k = find(i);
+        if (k >= 0) {
+            System.arraycopy(indices, k + 1, indices, k, size - k - 1);
+            if (values != null) {
+                System.arraycopy(values, k + 1, values, k, size - k - 1);
             }
+            --size;
         }
     }
 
+    /**
+     * @param i the index of entry.
+     * @return position of the first entry with index i, or a negative value if there is none
+     */
+    private int find(int i) {
+        if (sorted) {
+            return Arrays.binarySearch(indices, 0, size, i);
+        }
+        for (int k = 0; k < size; ++k) {
+            if (indices[k] == i) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param i the index of entry.
+     * @return position before the first entry with an index greater than i
+     */
+    private int insertionPoint(int i) {
+        if (sorted) {
+            return -(Arrays.binarySearch(indices, 0, size, i) + 1);
+        }
+        for (int k = 0; k < size; ++k) {
+            if (indices[k] > i) {
+                return k;
+            }
+        }
+        return size;
+    }
+
+    private void insert(int k, int i, double x) {
+        if (size == indices.length) {
+            int capacity = Math.max(10, size + (size >> 1));
+            indices = Arrays.copyOf(indices, capacity);
+            if (values != null) {
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+        if (values == null && x != 1.0) {
+            materializeValues();
+        }
+        System.arraycopy(indices, k, indices, k + 1, size - k);
+        indices[k] = i;
+        if (values != null) {
+            System.arraycopy(values, k, values, k + 1, size - k);
+            values[k] = x;
+        }
+        ++size;
+    }
+
+    /**
+     * Switch from index-only storage to storing values, once a value other than 1.0 is stored
+     */
+    private void materializeValues() {
+        values = new double[indices.length];
+        Arrays.fill(values, 0, size, 1.0);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("SparseArray{");
-        sb.append("array=").append(array);
-        sb.append('}');
+        sb.append("array=[");
+        for (int k = 0; k < size; ++k) {
+            if (k > 0) {
+                sb.append(", ");
+            }
+            sb.append(new Entry(indices[k], valueAt(k)));
+        }
+        sb.append("]}");
         return sb.toString();
     }
 
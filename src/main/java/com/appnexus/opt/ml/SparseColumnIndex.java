@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+/**
+ * This class holds the column-major (CSC) transpose of a {@link SparseDataset}: the rows in which feature j occurs are stored at
+ * positions {@link #getColumnStart(int)} (inclusive) to {@link #getColumnEnd(int)} (exclusive), in increasing row order. It lets
+ * a trainer walk the nonzeros of one feature without scanning every row
+ */
+public class SparseColumnIndex {
+    private final int[] colPtr;
+    private final int[] rows;
+    private final double[] values; // null for binary data
+
+    /**
+     * Transpose a data set with two passes over its entries
+     *
+     * @param dataset       data set
+     * @param numOfFeatures number of columns, greater than every feature index of the data set
+     */
+    public SparseColumnIndex(SparseDataset dataset, int numOfFeatures) {
+        int[] colPtr = new int[numOfFeatures + 1];
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                ++colPtr[dataset.getIndex(k) + 1];
+            }
+        }
+        for (int j = 0; j < numOfFeatures; ++j) {
+            colPtr[j + 1] += colPtr[j];
+        }
+        int[] next = new int[numOfFeatures];
+        System.arraycopy(colPtr, 0, next, 0, numOfFeatures);
+        this.rows = new int[colPtr[numOfFeatures]];
+        this.values = dataset.isBinary() ? null : new double[this.rows.length];
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                int p = next[dataset.getIndex(k)]++;
+                this.rows[p] = i;
+                if (this.values != null) {
+                    this.values[p] = dataset.getValue(k);
+                }
+            }
+        }
+        this.colPtr = colPtr;
+    }
+
+    /**
+     * @return number of columns
+     */
+    public int getNumOfFeatures() {
+        return this.colPtr.length - 1;
+    }
+
+    /**
+     * @param j feature
+     * @return position of the first entry of column j
+     */
+    public int getColumnStart(int j) {
+        return this.colPtr[j];
+    }
+
+    /**
+     * @param j feature
+     * @return position after the last entry of column j
+     */
+    public int getColumnEnd(int j) {
+        return this.colPtr[j + 1];
+    }
+
+    /**
+     * @param p position of the entry
+     * @return row of the entry at position p
+     */
+    public int getRow(int p) {
+        return this.rows[p];
+    }
+
+    /**
+     * @param p position of the entry
+     * @return feature value of the entry at position p
+     */
+    public double getValue(int p) {
+        return this.values == null ? 1.0 : this.values[p];
+    }
+
+    /**
+     * @return true if every stored feature value is 1.0
+     */
+    public boolean isBinary() {
+        return this.values == null;
+    }
+}
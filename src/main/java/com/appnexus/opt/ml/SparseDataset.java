@@ -0,0 +1,297 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a training data set in compressed-sparse-row (CSR) layout. The features of row i are stored at positions
+ * {@link #getRowStart(int)} (inclusive) to {@link #getRowEnd(int)} (exclusive) of one shared column index array and one shared value array.
+ * The intercept term is not stored, exactly like in a {@link SparseObservation}
+ * <p>
+ * A binary data set ({@link #isBinary()}) has the value 1.0 for every stored entry. Trainers check this once and then run
+ * index-only kernels that skip the value loads and multiplications
+ */
+public abstract class SparseDataset {
+    private volatile SparseColumnIndex columnIndex; // built on first use
+    private volatile FeatureColoring featureColoring; // built on first use
+
+    /**
+     * @return number of rows (feature vectors) in the data set
+     */
+    public abstract int getNumRows();
+
+    /**
+     * @return total number of stored (nonzero) feature entries across all rows. Entries are visited row by row; positions are only
+     * contiguous from 0 to getNnz() - 1 for data sets that own their arrays, not for a {@link RowSubsetSparseDataset}
+     */
+    public abstract int getNnz();
+
+    /**
+     * @param i row
+     * @return position of the first entry of row i
+     */
+    public abstract int getRowStart(int i);
+
+    /**
+     * @param i row
+     * @return position after the last entry of row i
+     */
+    public abstract int getRowEnd(int i);
+
+    /**
+     * @param k position of the entry
+     * @return feature index of the entry at position k
+     */
+    public abstract int getIndex(int k);
+
+    /**
+     * @param k position of the entry
+     * @return feature value of the entry at position k
+     */
+    public abstract double getValue(int k);
+
+    /**
+     * @return true if every stored feature value is 1.0 (one-hot data)
+     */
+    public boolean isBinary() {
+        return false;
+    }
+
+    /**
+     * @param i row
+     * @return number of success events of row i
+     */
+    public abstract double getY(int i);
+
+    /**
+     * @param i row
+     * @return number of trials of row i
+     */
+    public abstract int getWeight(int i);
+
+    /**
+     * @param i row
+     * @return number of stored entries of row i
+     */
+    public int getRowNnz(int i) {
+        return getRowEnd(i) - getRowStart(i);
+    }
+
+    /**
+     * Prefix sums of the cost of the rows in a pass over the data set, for splitting the rows into ranges of equal work
+     *
+     * @param squared true if the pass also accumulates pairwise products of features, whose cost grows with nnz_i^2
+     * @return cumulativeCost with cumulativeCost[i + 1] - cumulativeCost[i] = 1 + nnz_i, plus nnz_i^2 if squared
+     */
+    public long[] getCumulativeRowCost(boolean squared) {
+        long[] cumulativeCost = new long[getNumRows() + 1];
+        for (int i = 0; i < getNumRows(); ++i) {
+            long nnz = getRowNnz(i);
+            cumulativeCost[i + 1] = cumulativeCost[i] + 1 + nnz + (squared ? nnz * nnz : 0);
+        }
+        return cumulativeCost;
+    }
+
+    /**
+     * The column-major transpose is built on the first call and kept with the data set, so that training along a lambda path
+     * transposes the data only once
+     *
+     * @param numOfFeatures number of columns, greater than every feature index of the data set
+     * @return column-major transpose of the data set
+     */
+    public SparseColumnIndex getColumnIndex(int numOfFeatures) {
+        SparseColumnIndex index = this.columnIndex;
+        if (index == null || index.getNumOfFeatures() < numOfFeatures) {
+            synchronized (this) {
+                index = this.columnIndex;
+                if (index == null || index.getNumOfFeatures() < numOfFeatures) {
+                    index = new SparseColumnIndex(this, numOfFeatures);
+                    this.columnIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The colouring is built on the first call and kept with the data set, like the column-major transpose
+     *
+     * @param numOfFeatures number of features, greater than every feature index of the data set
+     * @return colouring of the features in which features that occur in a common row have different colours
+     */
+    FeatureColoring getFeatureColoring(int numOfFeatures) {
+        FeatureColoring coloring = this.featureColoring;
+        if (coloring == null || coloring.getNumOfFeatures() != numOfFeatures) {
+            synchronized (this) {
+                coloring = this.featureColoring;
+                if (coloring == null || coloring.getNumOfFeatures() != numOfFeatures) {
+                    coloring = new FeatureColoring(this, getColumnIndex(numOfFeatures), numOfFeatures);
+                    this.featureColoring = coloring;
+                }
+            }
+        }
+        return coloring;
+    }
+
+    /**
+     * @param i row
+     * @return row i copied into a new {@link SparseObservation}
+     */
+    public SparseObservation getObservation(int i) {
+        SparseArray x = new SparseArray();
+        for (int k = getRowStart(i); k < getRowEnd(i); ++k) {
+            x.append(getIndex(k), getValue(k));
+        }
+        return new SparseObservation(x, getY(i), getWeight(i));
+    }
+
+    /**
+     * @return the data set copied into an array of {@link SparseObservation}
+     */
+    public SparseObservation[] toObservations() {
+        SparseObservation[] observations = new SparseObservation[getNumRows()];
+        for (int i = 0; i < observations.length; ++i) {
+            observations[i] = getObservation(i);
+        }
+        return observations;
+    }
+
+    /**
+     * @param observations observations
+     * @return the observations copied into a contiguous array backed data set
+     */
+    public static SparseDataset fromObservations(SparseObservation[] observations) {
+        int nnz = 0;
+        for (SparseObservation o : observations) {
+            nnz += o.getX().nnz();
+        }
+        Builder builder = new Builder(observations.length, nnz);
+        for (SparseObservation o : observations) {
+            builder.addObservation(o);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append('{');
+        sb.append("numRows=").append(getNumRows());
+        sb.append(", nnz=").append(getNnz());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * This class incrementally builds an {@link ArraySparseDataset} row by row
+     */
+    public static class Builder {
+        private int[] rowPtr;
+        private int[] indices;
+        private double[] values;
+        private double[] y;
+        private int[] weight;
+        private int numRows;
+        private int nnz;
+
+        public Builder() {
+            this(16, 64);
+        }
+
+        /**
+         * @param expectedRows expected number of rows
+         * @param expectedNnz  expected total number of nonzero entries
+         */
+        public Builder(int expectedRows, int expectedNnz) {
+            this.rowPtr = new int[Math.max(1, expectedRows) + 1];
+            this.indices = new int[Math.max(1, expectedNnz)];
+            this.values = new double[Math.max(1, expectedNnz)];
+            this.y = new double[Math.max(1, expectedRows)];
+            this.weight = new int[Math.max(1, expectedRows)];
+        }
+
+        /**
+         * Append the feature at index i with value x to the row currently being built
+         *
+         * @param i the index of entry.
+         * @param x the value of entry.
+         * @return this builder
+         */
+        public Builder addFeature(int i, double x) {
+            if (x != 0.0) {
+                if (nnz == indices.length) {
+                    int capacity = nnz + (nnz >> 1) + 1;
+                    indices = Arrays.copyOf(indices, capacity);
+                    values = Arrays.copyOf(values, capacity);
+                }
+                indices[nnz] = i;
+                values[nnz] = x;
+                ++nnz;
+            }
+            return this;
+        }
+
+        /**
+         * Close the row currently being built
+         *
+         * @param y      number of success events of the row
+         * @param weight number of trials of the row
+         * @return this builder
+         */
+        public Builder endRow(double y, int weight) {
+            if (numRows == this.y.length) {
+                int capacity = numRows + (numRows >> 1) + 1;
+                this.rowPtr = Arrays.copyOf(this.rowPtr, capacity + 1);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.weight = Arrays.copyOf(this.weight, capacity);
+            }
+            this.y[numRows] = y;
+            this.weight[numRows] = weight;
+            ++numRows;
+            this.rowPtr[numRows] = nnz;
+            return this;
+        }
+
+        /**
+         * @param observation observation to append as a new row
+         * @return this builder
+         */
+        public Builder addObservation(SparseObservation observation) {
+            SparseArray x = observation.getX();
+            for (int k = 0; k < x.nnz(); ++k) {
+                addFeature(x.indexAt(k), x.valueAt(k));
+            }
+            return endRow(observation.getY(), observation.getWeight());
+        }
+
+        /**
+         * @return data set holding all rows added so far, without a value array if every value is 1.0
+         */
+        public ArraySparseDataset build() {
+            // arrays that were sized exactly are handed over without another copy, values are dropped for one-hot data
+            boolean binary = true;
+            for (int k = 0; k < nnz && binary; ++k) {
+                binary = values[k] == 1.0;
+            }
+            return new ArraySparseDataset(rowPtr.length == numRows + 1 ? rowPtr : Arrays.copyOf(rowPtr, numRows + 1),
+                indices.length == nnz ? indices : Arrays.copyOf(indices, nnz),
+                binary ? null : values.length == nnz ? values : Arrays.copyOf(values, nnz),
+                y.length == numRows ? y : Arrays.copyOf(y, numRows),
+                weight.length == numRows ? weight : Arrays.copyOf(weight, numRows));
+        }
+    }
+}
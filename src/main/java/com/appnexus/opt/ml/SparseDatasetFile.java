@@ -0,0 +1,295 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class reads and writes the versioned binary columnar file format for a {@link SparseDataset}. All numbers are little-endian
+ * and every section starts at a multiple of 8 bytes:
+ * <pre>
+ * header   64 bytes: magic "EN4J", version, flags, numOfFeatures (ints), numRows, nnz (longs), zero padding
+ * rowPtr   (numRows + 1) ints
+ * indices  nnz ints
+ * values   nnz doubles, omitted when the binary flag is set (every value is 1.0)
+ * y        numRows doubles
+ * weight   numRows ints
+ * </pre>
+ * {@link #map(Path)} memory-maps such a file so that the trainers run directly over the mapped buffers, outside the Java heap
+ */
+public class SparseDatasetFile {
+    static final int MAGIC = 0x4A344E45; // "EN4J" in little-endian byte order
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int FLAG_BINARY = 1;
+
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    private SparseDatasetFile() {
+    }
+
+    /**
+     * Write a data set to a file
+     *
+     * @param dataset       data set
+     * @param numOfFeatures total number of distinct features in the data set
+     * @param file          file to create or overwrite
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(SparseDataset dataset, int numOfFeatures, Path file) throws IOException {
+        int numRows = dataset.getNumRows();
+        int nnz = dataset.getNnz();
+        boolean binary = dataset.isBinary();
+        try (FileChannel channel = FileChannel
+            .open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Layout layout = new Layout(numRows, nnz, binary);
+            writeHeader(channel, numOfFeatures, numRows, nnz, binary);
+            SectionWriter rowPtr = new SectionWriter(channel, layout.rowPtrOffset);
+            SectionWriter indices = new SectionWriter(channel, layout.indicesOffset);
+            SectionWriter values = binary ? null : new SectionWriter(channel, layout.valuesOffset);
+            SectionWriter y = new SectionWriter(channel, layout.yOffset);
+            SectionWriter weight = new SectionWriter(channel, layout.weightOffset);
+            int rowEnd = 0;
+            rowPtr.putInt(rowEnd);
+            for (int i = 0; i < numRows; ++i) {
+                for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                    indices.putInt(dataset.getIndex(k));
+                    if (values != null) {
+                        values.putDouble(dataset.getValue(k));
+                    }
+                }
+                rowEnd += dataset.getRowNnz(i);
+                rowPtr.putInt(rowEnd);
+                y.putDouble(dataset.getY(i));
+                weight.putInt(dataset.getWeight(i));
+            }
+            flushAll(rowPtr, indices, values, y, weight);
+        }
+    }
+
+    /**
+     * Convert a file in the tab separated format read by the examples (numOfFeatures, weight, y, then one (index,value) pair per
+     * feature on every line) into the binary format. The text is read twice, once to size the sections and once to fill them, so
+     * the data set is never materialized on the heap
+     *
+     * @param tsvFile text file to read
+     * @param file    binary file to create or overwrite
+     * @throws IOException if a file cannot be read or written, or a line cannot be parsed
+     */
+    public static void convertFromTsv(Path tsvFile, Path file) throws IOException {
+        // first pass: count rows and nonzero entries
+        long numRows = 0;
+        long nnz = 0;
+        int numOfFeatures = 0;
+        boolean binary = true;
+        try (BufferedReader br = Files.newBufferedReader(tsvFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("\t");
+                numOfFeatures = Math.max(numOfFeatures, Integer.parseInt(parts[0]));
+                for (int p = 3; p < parts.length; ++p) {
+                    int comma = parts[p].indexOf(',');
+                    int index = Integer.parseInt(parts[p].substring(1, comma));
+                    double value = Double.parseDouble(parts[p].substring(comma + 1, parts[p].length() - 1));
+                    if (value != 0.0) {
+                        numOfFeatures = Math.max(numOfFeatures, index + 1);
+                        binary &= value == 1.0;
+                        ++nnz;
+                    }
+                }
+                ++numRows;
+            }
+        }
+        if (numRows >= Integer.MAX_VALUE || nnz >= Integer.MAX_VALUE) {
+            throw new IOException("data set too large: " + numRows + " rows, " + nnz + " nonzero entries");
+        }
+
+        // second pass: write every section at its final offset
+        try (BufferedReader br = Files.newBufferedReader(tsvFile, StandardCharsets.UTF_8);
+            FileChannel channel = FileChannel
+                .open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Layout layout = new Layout(numRows, nnz, binary);
+            writeHeader(channel, numOfFeatures, numRows, nnz, binary);
+            SectionWriter rowPtr = new SectionWriter(channel, layout.rowPtrOffset);
+            SectionWriter indices = new SectionWriter(channel, layout.indicesOffset);
+            SectionWriter values = binary ? null : new SectionWriter(channel, layout.valuesOffset);
+            SectionWriter y = new SectionWriter(channel, layout.yOffset);
+            SectionWriter weight = new SectionWriter(channel, layout.weightOffset);
+            int rowEnd = 0;
+            rowPtr.putInt(rowEnd);
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("\t");
+                for (int p = 3; p < parts.length; ++p) {
+                    int comma = parts[p].indexOf(',');
+                    int index = Integer.parseInt(parts[p].substring(1, comma));
+                    double value = Double.parseDouble(parts[p].substring(comma + 1, parts[p].length() - 1));
+                    if (value != 0.0) {
+                        indices.putInt(index);
+                        if (values != null) {
+                            values.putDouble(value);
+                        }
+                        ++rowEnd;
+                    }
+                }
+                rowPtr.putInt(rowEnd);
+                weight.putInt(Integer.parseInt(parts[1]));
+                y.putDouble(Double.parseDouble(parts[2]));
+            }
+            flushAll(rowPtr, indices, values, y, weight);
+        }
+    }
+
+    /**
+     * Memory-map a data set file. The returned data set reads directly from the mapped file and holds no per-row state on the heap
+     *
+     * @param file binary data set file
+     * @return mapped data set
+     * @throws IOException if the file cannot be read or is not a data set file of a supported version
+     */
+    public static MappedSparseDataset map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("truncated header in " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not a sparse data set file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported sparse data set file version " + version + " in " + file);
+            }
+            int flags = header.getInt();
+            int numOfFeatures = header.getInt();
+            long numRows = header.getLong();
+            long nnz = header.getLong();
+            boolean binary = (flags & FLAG_BINARY) != 0;
+            Layout layout = new Layout(numRows, nnz, binary);
+            if (channel.size() < layout.end) {
+                throw new IOException("truncated sparse data set file " + file);
+            }
+            return new MappedSparseDataset(numOfFeatures, (int) numRows, (int) nnz,
+                MappedSparseDataset.IntSection.map(channel, layout.rowPtrOffset, numRows + 1),
+                MappedSparseDataset.IntSection.map(channel, layout.indicesOffset, nnz),
+                binary ? null : MappedSparseDataset.DoubleSection.map(channel, layout.valuesOffset, nnz),
+                MappedSparseDataset.DoubleSection.map(channel, layout.yOffset, numRows),
+                MappedSparseDataset.IntSection.map(channel, layout.weightOffset, numRows));
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, int numOfFeatures, long numRows, long nnz, boolean binary)
+        throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(binary ? FLAG_BINARY : 0);
+        header.putInt(numOfFeatures);
+        header.putLong(numRows);
+        header.putLong(nnz);
+        header.rewind();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private static void flushAll(SectionWriter... writers) throws IOException {
+        for (SectionWriter writer : writers) {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+
+    private static long align8(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Byte offsets of the sections of a file
+     */
+    private static class Layout {
+        private final long rowPtrOffset;
+        private final long indicesOffset;
+        private final long valuesOffset;
+        private final long yOffset;
+        private final long weightOffset;
+        private final long end;
+
+        Layout(long numRows, long nnz, boolean binary) {
+            this.rowPtrOffset = HEADER_BYTES;
+            this.indicesOffset = align8(this.rowPtrOffset + (numRows + 1) * Integer.BYTES);
+            this.valuesOffset = align8(this.indicesOffset + nnz * Integer.BYTES);
+            this.yOffset = binary ? this.valuesOffset : align8(this.valuesOffset + nnz * Double.BYTES);
+            this.weightOffset = align8(this.yOffset + numRows * Double.BYTES);
+            this.end = this.weightOffset + numRows * Integer.BYTES;
+        }
+    }
+
+    /**
+     * Buffered sequential writer for one section, writing to absolute positions of the channel
+     */
+    private static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        SectionWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void putInt(int value) throws IOException {
+            if (this.buffer.remaining() < Integer.BYTES) {
+                flush();
+            }
+            this.buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            if (this.buffer.remaining() < Double.BYTES) {
+                flush();
+            }
+            this.buffer.putDouble(value);
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.position += this.channel.write(this.buffer, this.position);
+            }
+            this.buffer.clear();
+        }
+    }
+}
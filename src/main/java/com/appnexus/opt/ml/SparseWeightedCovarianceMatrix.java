@@ -0,0 +1,370 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import java.util.Arrays;
+
+/**
+ * This class implements a {@link IWeightedCovarianceMatrix} that stores only the pairs of features that co-occur in some row. Pairs
+ * are accumulated in a hash map and {@link #compact() compacted} into compressed-sparse-row form, with both (j, k) and (k, j) stored
+ * so that every row can be read contiguously. For sparse one-hot data this is a small fraction of size^2
+ */
+public class SparseWeightedCovarianceMatrix implements IWeightedCovarianceMatrix {
+    // scratch of computeRows(), kept per thread so that the chunks and IRLS steps a pool thread runs reuse it
+    private static final ThreadLocal<ComputeRowsScratch> COMPUTE_ROWS_SCRATCH = new ThreadLocal<>();
+
+    private final int size;
+    private LongDoubleHashMap pairs; // (j, k) with j < k, null once compacted
+    // rows computed by computeRows(), null until the first call and once compacted
+    private int[][] computedColumns;
+    private double[][] computedValues;
+    private int[] rowPtr;
+    private int[] columns;
+    private double[] values;
+
+    public SparseWeightedCovarianceMatrix(int size) {
+        this.size = size;
+        this.pairs = new LongDoubleHashMap(Math.max(16, size));
+    }
+
+    /**
+     * @return number of stored nonzero entries, counting (j, k) and (k, j) separately
+     */
+    public int getNnz() {
+        if (this.pairs == null) {
+            return this.columns.length;
+        }
+        int nnz = 2 * this.pairs.size();
+        if (this.computedColumns != null) {
+            for (int[] rowColumns : this.computedColumns) {
+                nnz += rowColumns != null ? rowColumns.length : 0;
+            }
+        }
+        return nnz;
+    }
+
+    /**
+     * @return number of pairs (j, k) with j &lt; k accumulated with {@link #addRows} or {@link #addPair}
+     */
+    int getNumOfPairs() {
+        checkAccumulating();
+        return this.pairs.size();
+    }
+
+    @Override
+    public int getSize() {
+        return this.size;
+    }
+
+    @Override
+    public double get(int j, int k) {
+        checkCompacted();
+        int p = Arrays.binarySearch(this.columns, this.rowPtr[j], this.rowPtr[j + 1], k);
+        return p >= 0 ? this.values[p] : 0;
+    }
+
+    @Override
+    public double dotRow(int j, double[] vector) {
+        checkCompacted();
+        double sum = 0;
+        int end = this.rowPtr[j + 1];
+        for (int p = this.rowPtr[j]; p < end; ++p) {
+            sum += this.values[p] * vector[this.columns[p]];
+        }
+        return sum;
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target) {
+        checkCompacted();
+        int end = this.rowPtr[j + 1];
+        for (int p = this.rowPtr[j]; p < end; ++p) {
+            target[this.columns[p]] += scale * this.values[p];
+        }
+    }
+
+    @Override
+    public void addScaledRow(int j, double scale, double[] target, int startIdx, int endIdx) {
+        checkCompacted();
+        int end = this.rowPtr[j + 1];
+        // the columns of every row are sorted
+        int p = Arrays.binarySearch(this.columns, this.rowPtr[j], end, startIdx);
+        for (p = p >= 0 ? p : -p - 1; p < end && this.columns[p] < endIdx; ++p) {
+            target[this.columns[p]] += scale * this.values[p];
+        }
+    }
+
+    @Override
+    public void addRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi) {
+        addRows(dataset, startIdx, endIdx, mi, 0);
+    }
+
+    /**
+     * Add rows whose weights are held in an array that starts at row miOffset, e.g. a scratch of only the rows added
+     *
+     * @param mi       weights, mi[i - miOffset] is the weight of row i
+     * @param miOffset row of mi[0]
+     */
+    void addRows(SparseDataset dataset, int startIdx, int endIdx, double[] mi, int miOffset) {
+        checkAccumulating();
+        if (this.computedColumns != null) {
+            throw new IllegalStateException("cannot add rows to a covariance matrix built with computeRows()");
+        }
+        boolean binary = dataset.isBinary();
+        for (int i = startIdx; i < endIdx; ++i) {
+            int start = dataset.getRowStart(i);
+            int end = dataset.getRowEnd(i);
+            for (int a = start; a < end; ++a) {
+                int j = dataset.getIndex(a) + 1;
+                double mxij = binary ? mi[i - miOffset] : mi[i - miOffset] * dataset.getValue(a);
+                for (int b = start; b < end; ++b) {
+                    int k = dataset.getIndex(b) + 1;
+                    if (j < k) {
+                        this.pairs.add((long) j * this.size + k, binary ? mxij : mxij * dataset.getValue(b));
+                    }
+                }
+                // intercept row, X value of beta0 is always 1
+                this.pairs.add(j, mxij);
+            }
+        }
+    }
+
+    @Override
+    public void computeRows(SparseDataset dataset, SparseColumnIndex columnIndex, int startRow, int endRow,
+        double[] mi) {
+        prepareComputeRows();
+        ComputeRowsScratch rowsScratch = COMPUTE_ROWS_SCRATCH.get();
+        if (rowsScratch == null || rowsScratch.scratch.length < this.size) {
+            rowsScratch = new ComputeRowsScratch(this.size);
+        }
+        // taken out while in use, so that a row left half done by an exception is never reused
+        COMPUTE_ROWS_SCRATCH.remove();
+        double[] scratch = rowsScratch.scratch;
+        boolean[] isTouched = rowsScratch.isTouched;
+        int[] touched = rowsScratch.touched;
+        for (int j = startRow; j < endRow; ++j) {
+            int numTouched = 0;
+            if (j == 0) {
+                // intercept row, X value of beta0 is always 1
+                for (int f = 0; f < columnIndex.getNumOfFeatures(); ++f) {
+                    for (int p = columnIndex.getColumnStart(f); p < columnIndex.getColumnEnd(f); ++p) {
+                        scratch[f + 1] += mi[columnIndex.getRow(p)] * columnIndex.getValue(p);
+                    }
+                    if (columnIndex.getColumnEnd(f) > columnIndex.getColumnStart(f)) {
+                        touched[numTouched++] = f + 1;
+                    }
+                }
+            } else {
+                int feature = j - 1;
+                for (int p = columnIndex.getColumnStart(feature); p < columnIndex.getColumnEnd(feature); ++p) {
+                    int i = columnIndex.getRow(p);
+                    double mxij = mi[i] * columnIndex.getValue(p);
+                    if (!isTouched[0]) {
+                        isTouched[0] = true;
+                        touched[numTouched++] = 0;
+                    }
+                    scratch[0] += mxij;
+                    for (int b = dataset.getRowStart(i); b < dataset.getRowEnd(i); ++b) {
+                        int k = dataset.getIndex(b) + 1;
+                        if (k != j) {
+                            if (!isTouched[k]) {
+                                isTouched[k] = true;
+                                touched[numTouched++] = k;
+                            }
+                            scratch[k] += mxij * dataset.getValue(b);
+                        }
+                    }
+                }
+            }
+            Arrays.sort(touched, 0, numTouched);
+            int[] rowColumns = Arrays.copyOf(touched, numTouched);
+            double[] rowValues = new double[numTouched];
+            for (int t = 0; t < numTouched; ++t) {
+                int k = rowColumns[t];
+                rowValues[t] = scratch[k];
+                scratch[k] = 0;
+                isTouched[k] = false;
+            }
+            this.computedColumns[j] = rowColumns;
+            this.computedValues[j] = rowValues;
+        }
+        // every row clears the entries it touched, so the scratch is all zero again
+        COMPUTE_ROWS_SCRATCH.set(rowsScratch);
+    }
+
+    /**
+     * Allocate the per-row storage of {@link #computeRows} on the first call. Synchronized, so that concurrent callers all see the
+     * same arrays
+     */
+    private synchronized void prepareComputeRows() {
+        checkAccumulating();
+        if (this.computedColumns == null) {
+            if (this.pairs.size() > 0) {
+                throw new IllegalStateException("cannot compute rows of a covariance matrix built with addRows()");
+            }
+            this.computedValues = new double[this.size][];
+            this.computedColumns = new int[this.size][];
+        }
+    }
+
+    @Override
+    public void addAll(IWeightedCovarianceMatrix other) {
+        checkAccumulating();
+        SparseWeightedCovarianceMatrix sparseOther = (SparseWeightedCovarianceMatrix) other;
+        sparseOther.checkAccumulating();
+        this.pairs.addAll(sparseOther.pairs);
+    }
+
+    /**
+     * Add to one pair while accumulating, e.g. when reading a serialized matrix
+     *
+     * @param j     row
+     * @param k     column, j &lt; k
+     * @param value value to add to matrix[j][k] and matrix[k][j]
+     */
+    void addPair(int j, int k, double value) {
+        checkAccumulating();
+        this.pairs.add((long) j * this.size + k, value);
+    }
+
+    /**
+     * Visit the pairs accumulated with {@link #addRows} or {@link #addPair}, in no particular order
+     *
+     * @param visitor called once for every pair (j, k) with j &lt; k
+     */
+    void forEachPair(PairVisitor visitor) {
+        checkAccumulating();
+        this.pairs.forEach((key, value) -> visitor.visit((int) (key / this.size), (int) (key % this.size), value));
+    }
+
+    @Override
+    public void compact() {
+        if (this.pairs == null) {
+            return;
+        }
+        if (this.computedColumns != null) {
+            compactComputedRows();
+            return;
+        }
+        int[] counts = new int[this.size + 1];
+        this.pairs.forEach((key, value) -> {
+            ++counts[(int) (key / this.size) + 1];
+            ++counts[(int) (key % this.size) + 1];
+        });
+        for (int j = 0; j < this.size; ++j) {
+            counts[j + 1] += counts[j];
+        }
+        this.rowPtr = Arrays.copyOf(counts, counts.length);
+        this.columns = new int[counts[this.size]];
+        this.values = new double[counts[this.size]];
+        this.pairs.forEach((key, value) -> {
+            int j = (int) (key / this.size);
+            int k = (int) (key % this.size);
+            this.columns[counts[j]] = k;
+            this.values[counts[j]++] = value;
+            this.columns[counts[k]] = j;
+            this.values[counts[k]++] = value;
+        });
+        this.pairs = null;
+        for (int j = 0; j < this.size; ++j) {
+            sortRow(this.rowPtr[j], this.rowPtr[j + 1]);
+        }
+    }
+
+    /**
+     * Concatenate the rows built by {@link #computeRows}, which are already sorted by column
+     */
+    private void compactComputedRows() {
+        this.rowPtr = new int[this.size + 1];
+        for (int j = 0; j < this.size; ++j) {
+            this.rowPtr[j + 1] = this.rowPtr[j] + (this.computedColumns[j] != null ? this.computedColumns[j].length : 0);
+        }
+        this.columns = new int[this.rowPtr[this.size]];
+        this.values = new double[this.rowPtr[this.size]];
+        for (int j = 0; j < this.size; ++j) {
+            if (this.computedColumns[j] != null) {
+                System.arraycopy(this.computedColumns[j], 0, this.columns, this.rowPtr[j], this.computedColumns[j].length);
+                System.arraycopy(this.computedValues[j], 0, this.values, this.rowPtr[j], this.computedValues[j].length);
+            }
+        }
+        this.computedColumns = null;
+        this.computedValues = null;
+        this.pairs = null;
+    }
+
+    /**
+     * Sort the entries of a row by column, insertion sort for short rows
+     */
+    private void sortRow(int from, int to) {
+        if (to - from > 32) {
+            long[] packed = new long[to - from];
+            for (int p = from; p < to; ++p) {
+                packed[p - from] = ((long) this.columns[p] << 32) | (p - from);
+            }
+            Arrays.sort(packed);
+            double[] sortedValues = new double[to - from];
+            for (int p = 0; p < packed.length; ++p) {
+                sortedValues[p] = this.values[from + (int) packed[p]];
+                this.columns[from + p] = (int) (packed[p] >>> 32);
+            }
+            System.arraycopy(sortedValues, 0, this.values, from, sortedValues.length);
+            return;
+        }
+        for (int p = from + 1; p < to; ++p) {
+            int column = this.columns[p];
+            double value = this.values[p];
+            int q = p - 1;
+            while (q >= from && this.columns[q] > column) {
+                this.columns[q + 1] = this.columns[q];
+                this.values[q + 1] = this.values[q];
+                --q;
+            }
+            this.columns[q + 1] = column;
+            this.values[q + 1] = value;
+        }
+    }
+
+    private void checkAccumulating() {
+        if (this.pairs == null) {
+            throw new IllegalStateException("cannot add to a compacted covariance matrix");
+        }
+    }
+
+    private void checkCompacted() {
+        if (this.pairs != null) {
+            throw new IllegalStateException("covariance matrix must be compacted before it is read");
+        }
+    }
+
+    /**
+     * Dense row of {@link #computeRows} and the columns it touched, all zero and false between rows
+     */
+    private static final class ComputeRowsScratch {
+        private final double[] scratch;
+        private final boolean[] isTouched;
+        private final int[] touched;
+
+        private ComputeRowsScratch(int size) {
+            this.scratch = new double[size];
+            this.isTouched = new boolean[size];
+            this.touched = new int[size];
+        }
+    }
+
+    interface PairVisitor {
+        void visit(int j, int k, double value);
+    }
+}
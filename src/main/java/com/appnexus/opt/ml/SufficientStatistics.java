@@ -0,0 +1,353 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.IParallelExecutor;
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class holds the sufficient statistics of one coordinate descent step: the sums over rows of the a-terms, the first part of
+ * the c-terms and the mi weighted covariance matrix, together with the total weights and successes. The mi and zi terms of every
+ * row are computed at fixed betas, the expansion point of the step, so everything {@link CoordinateDescentTrainer} needs besides
+ * the betas is a sum over rows
+ * <p>
+ * Statistics can therefore be accumulated per shard of the data, {@link #merge(SufficientStatistics) merged} in any grouping,
+ * {@link #writeTo(DataOutput) serialized} and trained on with
+ * {@link CoordinateDescentTrainer#trainNewBetasWithBeta0(SufficientStatistics, double, double, double[], double, int)}, which
+ * gives the betas of training on all rows at once. New rows are folded in by accumulating them at the same betas and merging,
+ * without a pass over the rows seen before. Statistics at other betas need a new pass over all rows
+ * <p>
+ * The covariance matrix is held as its co-occurring pairs of features, so memory and the serialized size scale with the number of
+ * such pairs
+ */
+public class SufficientStatistics {
+    static final int MAGIC = 0x454E3453; // "EN4S"
+    static final int VERSION = 1;
+
+    private static final double PROB_EPSILON = 1e-15;
+
+    private final int numOfFeatures;
+    private final double[] betasWithBeta0;
+    private final double[] aj;
+    private final double[] cjStaticTerm;
+    private final SparseWeightedCovarianceMatrix weightedCovarianceMatrix;
+    private long numRows;
+    private double totalWeights;
+    private double totalSuccesses;
+
+    /**
+     * Empty statistics
+     *
+     * @param numOfFeatures  total number of distinct features
+     * @param betasWithBeta0 betas to compute the mi and zi terms of the rows at
+     */
+    public SufficientStatistics(int numOfFeatures, double[] betasWithBeta0) {
+        if (betasWithBeta0.length != numOfFeatures + 1) {
+            throw new IllegalArgumentException(
+                "expected " + (numOfFeatures + 1) + " betas with beta0, got " + betasWithBeta0.length);
+        }
+        this.numOfFeatures = numOfFeatures;
+        this.betasWithBeta0 = Arrays.copyOf(betasWithBeta0, betasWithBeta0.length);
+        this.aj = new double[numOfFeatures + 1];
+        this.cjStaticTerm = new double[numOfFeatures + 1];
+        this.weightedCovarianceMatrix = new SparseWeightedCovarianceMatrix(numOfFeatures + 1);
+    }
+
+    /**
+     * @param dataset        data set
+     * @param numOfFeatures  total number of distinct features
+     * @param betasWithBeta0 betas to compute the mi and zi terms of the rows at
+     * @return statistics of all rows of the data set
+     */
+    public static SufficientStatistics fromDataset(SparseDataset dataset, int numOfFeatures, double[] betasWithBeta0) {
+        SufficientStatistics statistics = new SufficientStatistics(numOfFeatures, betasWithBeta0);
+        statistics.addRows(dataset, 0, dataset.getNumRows());
+        return statistics;
+    }
+
+    /**
+     * Accumulate nnz-balanced ranges of rows in the tasks of a parallel executor and merge their statistics
+     *
+     * @param dataset          data set
+     * @param numOfFeatures    total number of distinct features
+     * @param betasWithBeta0   betas to compute the mi and zi terms of the rows at
+     * @param parallelExecutor parallel executor
+     * @return statistics of all rows of the data set
+     */
+    public static SufficientStatistics fromDataset(SparseDataset dataset, int numOfFeatures, double[] betasWithBeta0,
+        IParallelExecutor parallelExecutor) {
+        List<DatasetRange> datasetRanges = new ArrayList<>(MultiThreadingUtil
+            .splitIntoBalancedRanges(dataset.getCumulativeRowCost(false), parallelExecutor.getParallelism()));
+        if (datasetRanges.isEmpty()) {
+            return new SufficientStatistics(numOfFeatures, betasWithBeta0);
+        }
+        return parallelExecutor.parallelReduce(datasetRanges.size(), t -> {
+            SufficientStatistics statistics = new SufficientStatistics(numOfFeatures, betasWithBeta0);
+            statistics.addRows(dataset, datasetRanges.get(t).getStartIdx(), datasetRanges.get(t).getEndIdx());
+            return statistics;
+        }, (a, b) -> {
+            a.merge(b);
+            return a;
+        });
+    }
+
+    /**
+     * Read statistics written by {@link #writeTo(DataOutput)}
+     *
+     * @param in input to read from
+     * @return statistics
+     * @throws IOException if the input cannot be read or does not hold statistics
+     */
+    public static SufficientStatistics readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not serialized sufficient statistics");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported sufficient statistics version " + version);
+        }
+        int numOfFeatures = in.readInt();
+        if (numOfFeatures < 0) {
+            throw new IOException("invalid number of features " + numOfFeatures);
+        }
+        double[] betasWithBeta0 = new double[numOfFeatures + 1];
+        for (int j = 0; j < betasWithBeta0.length; ++j) {
+            betasWithBeta0[j] = in.readDouble();
+        }
+        return readBodyFrom(in, betasWithBeta0);
+    }
+
+    /**
+     * Read statistics written by {@link #writeBodyTo(DataOutput)}, for a reader that already knows the betas
+     *
+     * @param in             input to read from
+     * @param betasWithBeta0 betas the statistics were accumulated at
+     * @return statistics
+     * @throws IOException if the input cannot be read or does not hold statistics
+     */
+    static SufficientStatistics readBodyFrom(DataInput in, double[] betasWithBeta0) throws IOException {
+        int numOfFeatures = betasWithBeta0.length - 1;
+        SufficientStatistics statistics = new SufficientStatistics(numOfFeatures, betasWithBeta0);
+        statistics.numRows = in.readLong();
+        statistics.totalWeights = in.readDouble();
+        statistics.totalSuccesses = in.readDouble();
+        int numOfTerms = in.readInt();
+        for (int t = 0; t < numOfTerms; ++t) {
+            int j = readIndex(in, numOfFeatures + 1);
+            statistics.aj[j] = in.readDouble();
+            statistics.cjStaticTerm[j] = in.readDouble();
+        }
+        int numOfPairs = in.readInt();
+        for (int p = 0; p < numOfPairs; ++p) {
+            int j = readIndex(in, numOfFeatures + 1);
+            int k = readIndex(in, numOfFeatures + 1);
+            if (j >= k) {
+                throw new IOException("invalid covariance pair (" + j + ", " + k + ")");
+            }
+            statistics.weightedCovarianceMatrix.addPair(j, k, in.readDouble());
+        }
+        return statistics;
+    }
+
+    private static int readIndex(DataInput in, int size) throws IOException {
+        int index = in.readInt();
+        if (index < 0 || index >= size) {
+            throw new IOException("index " + index + " out of range [0, " + size + ")");
+        }
+        return index;
+    }
+
+    /**
+     * Accumulate rows startIdx to endIdx - 1 of a data set
+     *
+     * @param dataset  data set
+     * @param startIdx first row
+     * @param endIdx   row after the last row
+     */
+    public void addRows(SparseDataset dataset, int startIdx, int endIdx) {
+        // mi terms of the added rows only, mi[i - startIdx] is that of row i
+        double[] mi = new double[endIdx - startIdx];
+        boolean binary = dataset.isBinary();
+        for (int i = startIdx; i < endIdx; ++i) {
+            double betasDotXi = LRUtil.betasDotXi(dataset, i, this.betasWithBeta0);
+            double prob = LRUtil.calcProb(betasDotXi);
+            double probBounded = Math.min(1.0 - PROB_EPSILON, Math.max(PROB_EPSILON, prob));
+            double wi = dataset.getWeight(i);
+            double mii = wi * probBounded * (1 - probBounded);
+            mi[i - startIdx] = mii;
+            double zi = betasDotXi + (dataset.getY(i) - wi * prob) / mii;
+            double miZi = mii * zi;
+            this.aj[0] += mii;
+            this.cjStaticTerm[0] += miZi;
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                int j = dataset.getIndex(k) + 1;
+                double xij = binary ? 1 : dataset.getValue(k);
+                this.aj[j] += mii * xij * xij;
+                this.cjStaticTerm[j] += miZi * xij;
+            }
+            this.totalWeights += wi;
+            this.totalSuccesses += dataset.getY(i);
+        }
+        this.weightedCovarianceMatrix.addRows(dataset, startIdx, endIdx, mi, startIdx);
+        this.numRows += endIdx - startIdx;
+    }
+
+    /**
+     * Add the statistics of other rows, accumulated at the same betas
+     *
+     * @param other statistics to add
+     */
+    public void merge(SufficientStatistics other) {
+        if (other.numOfFeatures != this.numOfFeatures || !Arrays.equals(other.betasWithBeta0, this.betasWithBeta0)) {
+            throw new IllegalArgumentException("cannot merge statistics accumulated at different betas");
+        }
+        for (int j = 0; j < this.aj.length; ++j) {
+            this.aj[j] += other.aj[j];
+            this.cjStaticTerm[j] += other.cjStaticTerm[j];
+        }
+        this.weightedCovarianceMatrix.addAll(other.weightedCovarianceMatrix);
+        this.numRows += other.numRows;
+        this.totalWeights += other.totalWeights;
+        this.totalSuccesses += other.totalSuccesses;
+    }
+
+    /**
+     * Write the statistics in a compact binary form: the header and the betas, then only the nonzero a- and c-terms and the
+     * co-occurring pairs of the covariance matrix, each with its indices
+     *
+     * @param out output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(this.numOfFeatures);
+        for (double beta : this.betasWithBeta0) {
+            out.writeDouble(beta);
+        }
+        writeBodyTo(out);
+    }
+
+    /**
+     * Write the statistics without the header and the betas, for a reader that already knows the betas, see
+     * {@link #readBodyFrom(DataInput, double[])}
+     *
+     * @param out output to write to
+     * @throws IOException if the output cannot be written
+     */
+    void writeBodyTo(DataOutput out) throws IOException {
+        out.writeLong(this.numRows);
+        out.writeDouble(this.totalWeights);
+        out.writeDouble(this.totalSuccesses);
+        int numOfTerms = 0;
+        for (int j = 0; j < this.aj.length; ++j) {
+            if (this.aj[j] != 0 || this.cjStaticTerm[j] != 0) {
+                ++numOfTerms;
+            }
+        }
+        out.writeInt(numOfTerms);
+        for (int j = 0; j < this.aj.length; ++j) {
+            if (this.aj[j] != 0 || this.cjStaticTerm[j] != 0) {
+                out.writeInt(j);
+                out.writeDouble(this.aj[j]);
+                out.writeDouble(this.cjStaticTerm[j]);
+            }
+        }
+        out.writeInt(this.weightedCovarianceMatrix.getNumOfPairs());
+        IOException[] failure = new IOException[1];
+        this.weightedCovarianceMatrix.forEachPair((j, k, value) -> {
+            if (failure[0] == null) {
+                try {
+                    out.writeInt(j);
+                    out.writeInt(k);
+                    out.writeDouble(value);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    public int getNumOfFeatures() {
+        return numOfFeatures;
+    }
+
+    /**
+     * @return copy of the betas the mi and zi terms of the rows are computed at
+     */
+    public double[] getBetasWithBeta0() {
+        return Arrays.copyOf(betasWithBeta0, betasWithBeta0.length);
+    }
+
+    public long getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * @return sum of the weights of the rows / total trials
+     */
+    public double getTotalWeights() {
+        return totalWeights;
+    }
+
+    /**
+     * @return sum of the success events of the rows
+     */
+    public double getTotalSuccesses() {
+        return totalSuccesses;
+    }
+
+    /**
+     * @return a-terms divided by the total weights, 0 for betas whose features occur in no row
+     */
+    double[] getNormalizedAj() {
+        double[] normalizedAj = Arrays.copyOf(this.aj, this.aj.length);
+        VectorKernels.get().divide(normalizedAj, this.totalWeights);
+        return normalizedAj;
+    }
+
+    /**
+     * @return first part of the c-terms divided by the total weights
+     */
+    double[] getNormalizedCjStaticTerm() {
+        double[] normalizedCjStaticTerm = Arrays.copyOf(this.cjStaticTerm, this.cjStaticTerm.length);
+        VectorKernels.get().divide(normalizedCjStaticTerm, this.totalWeights);
+        return normalizedCjStaticTerm;
+    }
+
+    /**
+     * @return compacted copy of the weighted covariance matrix, ready to be read
+     */
+    IWeightedCovarianceMatrix getWeightedCovarianceMatrix() {
+        SparseWeightedCovarianceMatrix copy = new SparseWeightedCovarianceMatrix(this.numOfFeatures + 1);
+        copy.addAll(this.weightedCovarianceMatrix);
+        copy.compact();
+        return copy;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This enum lists when the coordinate descent trainers compute the training entropy recorded in {@link LRIterationMetadata} and
+ * {@link LRResult}. The entropy is a full pass over the data with an exp and two logs per row and is not needed for convergence,
+ * which only looks at the change of the betas. Entropies that are not computed are recorded as NaN
+ */
+public enum TrainingMetricsPolicy {
+    /**
+     * Never compute the training entropy
+     */
+    NONE,
+    /**
+     * Compute the training entropy of the trained betas only
+     */
+    FINAL_ONLY,
+    /**
+     * Compute the training entropy every N iterations and of the trained betas
+     */
+    PERIODIC,
+    /**
+     * Compute the training entropy after every iteration
+     */
+    EVERY_ITERATION,
+    /**
+     * Record the penalized objective of the quadratic approximation the iterations minimize after every iteration, read from the
+     * aj, cj and covariance terms at a cost of O(p) to O(n) instead of a pass with logs over the data, and compute the training
+     * entropy of the trained betas only
+     */
+    QUADRATIC_OBJECTIVE
+}
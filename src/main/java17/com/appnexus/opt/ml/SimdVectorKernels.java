@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class implements the {@link IVectorKernels} with the JDK Vector API, in the widest lanes the CPU supports. The main loops
+ * process whole vectors and the remaining elements are handled by scalar tails. Sums are accumulated per lane and reduced at the
+ * end, so they may differ from the {@link ScalarVectorKernels} in the last bits
+ */
+class SimdVectorKernels implements IVectorKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int upperBound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            DoubleVector av = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            DoubleVector bv = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            sums = av.fma(bv, sums);
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < length; ++i) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void addScaled(double scale, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        DoubleVector scales = DoubleVector.broadcast(SPECIES, scale);
+        int upperBound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            DoubleVector xv = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            DoubleVector yv = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            xv.fma(scales, yv).intoArray(y, yOffset + i);
+        }
+        for (; i < length; ++i) {
+            y[yOffset + i] += scale * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void divide(double[] a, double divisor) {
+        int upperBound = SPECIES.loopBound(a.length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).div(divisor).intoArray(a, i);
+        }
+        for (; i < a.length; ++i) {
+            a[i] /= divisor;
+        }
+    }
+
+    @Override
+    public double sumAbs(double[] a) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int upperBound = SPECIES.loopBound(a.length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, a, i).abs());
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < a.length; ++i) {
+            sum += Math.abs(a[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double maxAbsDifference(double[] a, double[] b) {
+        DoubleVector maxs = DoubleVector.zero(SPECIES);
+        int upperBound = SPECIES.loopBound(a.length);
+        int i = 0;
+        for (; i < upperBound; i += SPECIES.length()) {
+            maxs = maxs.max(DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i)).abs());
+        }
+        double max = maxs.reduceLanes(VectorOperators.MAX);
+        for (; i < a.length; ++i) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+/**
+ * This class selects the {@link IVectorKernels} once per JVM. This is the Java 17 version of the multi-release jar: it selects
+ * the {@link SimdVectorKernels} when the jdk.incubator.vector module is present (run with --add-modules jdk.incubator.vector) and
+ * the system property {@value #SCALAR_KERNELS_PROPERTY} is not true, and the {@link ScalarVectorKernels} otherwise
+ */
+final class VectorKernels {
+    static final String SCALAR_KERNELS_PROPERTY = "com.appnexus.opt.ml.scalarKernels";
+    private static final IVectorKernels KERNELS = select();
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return kernels of this JVM
+     */
+    static IVectorKernels get() {
+        return KERNELS;
+    }
+
+    private static IVectorKernels select() {
+        if (Boolean.getBoolean(SCALAR_KERNELS_PROPERTY)
+            || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return new ScalarVectorKernels();
+        }
+        return new SimdVectorKernels();
+    }
+}
@@ -0,0 +1,81 @@
+package com.appnexus.opt.concurrent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ParallelExecutorTest {
+
+    private static void checkExecutor(IParallelExecutor parallelExecutor) {
+        AtomicIntegerArray calls = new AtomicIntegerArray(37);
+        parallelExecutor.parallelFor(calls.length(), t -> calls.incrementAndGet(t));
+        for (int t = 0; t < calls.length(); ++t) {
+            Assert.assertEquals(1, calls.get(t));
+        }
+        Assert.assertEquals(Long.valueOf(37 * 36 / 2), parallelExecutor.parallelReduce(37, t -> (long) t, Long::sum));
+
+        try {
+            parallelExecutor.parallelFor(8, t -> {
+                if (t == 5) {
+                    throw new IllegalArgumentException("task " + t);
+                }
+            });
+            Assert.fail("task exception must reach the caller");
+        } catch (IllegalArgumentException e) {
+            // the fork join pool may rethrow a copy of the exception that carries the original as its cause
+            Assert.assertTrue(e.getMessage().endsWith("task 5"));
+        }
+    }
+
+    @Test
+    public void testForkJoinParallelExecutor() {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            IParallelExecutor parallelExecutor = new ForkJoinParallelExecutor(pool);
+            Assert.assertEquals(3, parallelExecutor.getParallelism());
+            checkExecutor(parallelExecutor);
+            // nested calls share the pool instead of blocking its threads
+            long sum = parallelExecutor.parallelReduce(6, t -> parallelExecutor.parallelReduce(10, u -> (long) u, Long::sum),
+                Long::sum);
+            Assert.assertEquals(6 * 45, sum);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompletionServiceParallelExecutor() throws Exception {
+        ExecutorService execPool = Executors.newFixedThreadPool(3);
+        try {
+            checkExecutor(new CompletionServiceParallelExecutor(new ExecutorCompletionService<>(execPool), 3));
+            // two callers on one completion service each return only once their own tasks are done
+            CompletionServiceParallelExecutor parallelExecutor = new CompletionServiceParallelExecutor(
+                new ExecutorCompletionService<>(execPool), 3);
+            AtomicIntegerArray slowCalls = new AtomicIntegerArray(2);
+            Thread slow = new Thread(() -> parallelExecutor.parallelFor(2, t -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                slowCalls.incrementAndGet(t);
+            }));
+            slow.start();
+            AtomicIntegerArray fastCalls = new AtomicIntegerArray(20);
+            parallelExecutor.parallelFor(20, fastCalls::incrementAndGet);
+            for (int t = 0; t < fastCalls.length(); ++t) {
+                Assert.assertEquals(1, fastCalls.get(t));
+            }
+            slow.join();
+            Assert.assertEquals(1, slowCalls.get(0));
+            Assert.assertEquals(1, slowCalls.get(1));
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import com.appnexus.opt.concurrent.IParallelExecutor;
 import com.appnexus.opt.concurrent.MultiThreadingUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class CoordinateDescentTrainerMTTest {
 
@@ -59,4 +66,187 @@ public class CoordinateDescentTrainerMTTest {
         Assert.assertArrayEquals(expectedCol9, weightedCovarianceMatrix[9], 0.0001);
         Assert.assertArrayEquals(expectedCol10, weightedCovarianceMatrix[10], 0.0001);
     }
+
+    @Test
+    public void testFusedPassMatchesSingleThreaded() {
+        int numOfFeatures = 50;
+        // more rows per thread than one block of the fused pass
+        SparseObservation[] obs = LRTestUtils.createTestData(5000, numOfFeatures, 0.1, 8, 16, 32, 64);
+        SparseDataset dataset = SparseDataset.fromObservations(obs);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+        LRResult expected = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-4, lambdaScaleFactors, 1e-8, 200);
+
+        ExecutorService execPool = Executors.newFixedThreadPool(2);
+        try {
+            CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(
+                new ExecutorCompletionService<>(execPool), 2);
+            trainerMT.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+            LRResult actual = trainerMT
+                .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-4, lambdaScaleFactors, 1e-8, 200);
+            Assert.assertArrayEquals(expected.getBetasWithBeta0(), actual.getBetasWithBeta0(), 1e-9);
+            Assert.assertEquals(expected.getTrainingEntropy(), actual.getTrainingEntropy(), 1e-6);
+            Assert.assertTrue(actual.getMiZiCalcMillis() >= 0);
+            Assert.assertTrue(actual.getAjCj1CalcMillis() >= 0);
+            Assert.assertTrue(actual.getWeightedCovarCalcMillis() >= 0);
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+
+    @Test
+    public void testChunkedPassMatchesSingleThreaded() {
+        int numOfFeatures = 50;
+        // skewed rows, a few long rows at the start and many short ones after them
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        Random random = new Random(7);
+        for (int i = 0; i < 3000; ++i) {
+            int rowNnz = i < 100 ? 40 : 2;
+            int j = random.nextInt(numOfFeatures - rowNnz + 1);
+            for (int k = 0; k < rowNnz; ++k, ++j) {
+                builder.addFeature(j, 1);
+            }
+            builder.endRow(random.nextInt(3), 4);
+        }
+        SparseDataset dataset = builder.build();
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+        LRResult expected = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-4, lambdaScaleFactors, 1e-8, 200);
+
+        ExecutorService execPool = Executors.newFixedThreadPool(3);
+        try {
+            for (CovarianceConstruction construction : CovarianceConstruction.values()) {
+                for (int chunksPerThread : new int[] {1, 16}) {
+                    CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(
+                        new ExecutorCompletionService<>(execPool), 3);
+                    trainerMT.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+                    trainerMT.setCovarianceConstruction(construction);
+                    trainerMT.setChunksPerThread(chunksPerThread);
+                    LRResult actual = trainerMT
+                        .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-4, lambdaScaleFactors, 1e-8, 200);
+                    Assert.assertArrayEquals(construction + " " + chunksPerThread, expected.getBetasWithBeta0(),
+                        actual.getBetasWithBeta0(), 1e-9);
+                }
+            }
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+
+    @Test
+    public void testTrainersSharingForkJoinPool() throws Exception {
+        int numOfFeatures = 30;
+        SparseDataset dataset = SparseDataset
+            .fromObservations(LRTestUtils.createTestData(2000, numOfFeatures, 0.1, 8, 16, 32, 64));
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        double[] lambdas = {1e-2, 1e-3, 1e-4, 1e-5};
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        ExecutorService callers = Executors.newFixedThreadPool(lambdas.length);
+        try {
+            IParallelExecutor parallelExecutor = new ForkJoinParallelExecutor(pool);
+            List<Future<LRResult>> results = new ArrayList<>();
+            for (double lambda : lambdas) {
+                results.add(callers.submit(() -> {
+                    CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(parallelExecutor);
+                    trainerMT.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+                    return trainerMT
+                        .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, lambda, lambdaScaleFactors, 1e-8, 200);
+                }));
+            }
+            for (int l = 0; l < lambdas.length; ++l) {
+                LRResult expected = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, lambdas[l], lambdaScaleFactors, 1e-8, 200);
+                Assert.assertArrayEquals(expected.getBetasWithBeta0(), results.get(l).get().getBetasWithBeta0(), 1e-9);
+            }
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(callers);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFeatureColoringMatchesSequential() {
+        int numOfFeatures = 3000;
+        // one or two features per row, so that every feature has few neighbours and the colour classes are large
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        Random random = new Random(11);
+        double[] trueBetas = new double[numOfFeatures];
+        for (int j = 0; j < numOfFeatures; ++j) {
+            trueBetas[j] = random.nextGaussian();
+        }
+        for (int i = 0; i < 12000; ++i) {
+            int j = random.nextInt(numOfFeatures);
+            double p;
+            if (random.nextBoolean()) {
+                builder.addFeature(j, 1);
+                p = 1 / (1 + Math.exp(1 - trueBetas[j]));
+            } else {
+                int k = (j + 1 + random.nextInt(numOfFeatures - 1)) % numOfFeatures;
+                builder.addFeature(Math.min(j, k), 1).addFeature(Math.max(j, k), 1);
+                p = 1 / (1 + Math.exp(1 - trueBetas[j] - trueBetas[k]));
+            }
+            int weight = 1 + random.nextInt(8);
+            int y = 0;
+            for (int n = 0; n < weight; ++n) {
+                y += random.nextDouble() < p ? 1 : 0;
+            }
+            builder.endRow(y, weight);
+        }
+        SparseDataset dataset = builder.build();
+
+        FeatureColoring coloring = dataset.getFeatureColoring(numOfFeatures);
+        Assert.assertSame(coloring, dataset.getFeatureColoring(numOfFeatures));
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            if (dataset.getRowNnz(i) == 2) {
+                Assert.assertNotEquals(coloring.getColor(dataset.getIndex(dataset.getRowStart(i)) + 1),
+                    coloring.getColor(dataset.getIndex(dataset.getRowStart(i) + 1) + 1));
+            }
+        }
+        Assert.assertEquals(numOfFeatures, coloring.getClassStart(coloring.getNumColors()));
+        Assert.assertTrue(numOfFeatures / coloring.getNumColors() >= CoordinateDescentUtil.MIN_PARALLEL_UPDATES);
+
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        IParallelExecutor parallelExecutor = new ForkJoinParallelExecutor(pool);
+        try {
+            for (CoordinateDescentMode mode : new CoordinateDescentMode[] {CoordinateDescentMode.COVARIANCE,
+                CoordinateDescentMode.NAIVE}) {
+                for (BetasUpdateStrategy strategy : BetasUpdateStrategy.values()) {
+                    for (boolean activeSetIteration : new boolean[] {true, false}) {
+                        CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(parallelExecutor);
+                        trainerMT.setCoordinateDescentMode(mode);
+                        trainerMT.setCovarianceStorage(CovarianceStorage.SPARSE);
+                        trainerMT.setBetasUpdateStrategy(strategy);
+                        trainerMT.setActiveSetIteration(activeSetIteration);
+                        LRResult expected = trainerMT.trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.5, 1e-4,
+                            lambdaScaleFactors, 1e-11, 2000);
+                        trainerMT.setBetasUpdateParallelism(BetasUpdateParallelism.FEATURE_COLORING);
+                        LRResult actual = trainerMT.trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.5, 1e-4,
+                            lambdaScaleFactors, 1e-11, 2000);
+                        String message = mode + " " + strategy + " " + activeSetIteration;
+                        Assert.assertTrue(message, actual.getIteration() < 2000);
+                        Assert.assertArrayEquals(message, expected.getBetasWithBeta0(), actual.getBetasWithBeta0(),
+                            1e-6);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
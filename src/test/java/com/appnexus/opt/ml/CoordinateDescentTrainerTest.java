@@ -16,12 +16,18 @@
 
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CoordinateDescentTrainerTest {
     private static final double SPARCE_PCT = 0.1;
@@ -119,6 +125,298 @@ public class CoordinateDescentTrainerTest {
 
     }
 
+    @Test
+    public void testTrainOnDatasetMatchesObservations() {
+        int numOfFeatures = 50;
+        SparseObservation[] obs = LRTestUtils
+            .createTestData(300, numOfFeatures, SPARCE_PCT, COL_SEED, BETA_SEED, DATA_SEED, WEIGHT_SEED);
+        SparseDataset dataset = SparseDataset.fromObservations(obs);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(obs, numOfFeatures);
+        Assert.assertArrayEquals(lambdaScaleFactors, LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures), 1e-12);
+        double totalWeights = LR.getTotalWeights(obs);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult fromObservations = trainer
+            .trainNewBetasWithBeta0(obs, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, TOLERANCE, 100);
+        LRResult fromDataset = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, TOLERANCE, 100);
+        Assert.assertArrayEquals(fromObservations.getBetasWithBeta0(), fromDataset.getBetasWithBeta0(), 1e-12);
+        Assert.assertEquals(fromObservations.getIteration(), fromDataset.getIteration());
+    }
+
+    @Test
+    public void testBinaryDatasetMatchesValuedDataset() {
+        int numOfFeatures = 30;
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        Random rn = new Random(COL_SEED);
+        for (int i = 0; i < 200; ++i) {
+            for (int j = 0; j < numOfFeatures; ++j) {
+                if (rn.nextInt(5) == 0) {
+                    builder.addFeature(j, 1);
+                }
+            }
+            int weight = 1 + rn.nextInt(20);
+            builder.endRow(rn.nextInt(weight + 1), weight);
+        }
+        ArraySparseDataset binary = builder.build();
+        Assert.assertTrue(binary.isBinary());
+        double[] ones = new double[binary.getNnz()];
+        Arrays.fill(ones, 1.0);
+        int[] rowPtr = new int[binary.getNumRows() + 1];
+        int[] indices = new int[binary.getNnz()];
+        double[] y = new double[binary.getNumRows()];
+        int[] weight = new int[binary.getNumRows()];
+        for (int i = 0; i < binary.getNumRows(); ++i) {
+            rowPtr[i + 1] = binary.getRowEnd(i);
+            y[i] = binary.getY(i);
+            weight[i] = binary.getWeight(i);
+        }
+        for (int k = 0; k < indices.length; ++k) {
+            indices[k] = binary.getIndex(k);
+        }
+        SparseDataset valued = new ArraySparseDataset(rowPtr, indices, ones, y, weight);
+        Assert.assertFalse(valued.isBinary());
+
+        double[] mi = new double[binary.getNumRows()];
+        for (int i = 0; i < mi.length; ++i) {
+            mi[i] = 0.5 + i % 7;
+        }
+        double[][] binaryCovariance = CoordinateDescentTrainer.getWeightedCovarianceMatrix(numOfFeatures + 1, binary, mi);
+        double[][] valuedCovariance = CoordinateDescentTrainer.getWeightedCovarianceMatrix(numOfFeatures + 1, valued, mi);
+        for (int j = 0; j <= numOfFeatures; ++j) {
+            Assert.assertArrayEquals(valuedCovariance[j], binaryCovariance[j], 1e-9);
+        }
+
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(binary, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(binary);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult binaryResult = trainer
+            .trainNewBetasWithBeta0(binary, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, TOLERANCE, 100);
+        LRResult valuedResult = trainer
+            .trainNewBetasWithBeta0(valued, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, TOLERANCE, 100);
+        Assert.assertArrayEquals(valuedResult.getBetasWithBeta0(), binaryResult.getBetasWithBeta0(), 1e-9);
+    }
+
+    @Test
+    public void testActiveSetIteration() {
+        int numOfFeatures = 100;
+        SparseObservation[] obs = LRTestUtils
+            .createTestData(500, numOfFeatures, SPARCE_PCT, COL_SEED, BETA_SEED, DATA_SEED, WEIGHT_SEED);
+        SparseDataset dataset = SparseDataset.fromObservations(obs);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setActiveSetIteration(false);
+        LRResult cyclic = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-2, lambdaScaleFactors, 1e-9, 1000);
+        trainer.setActiveSetIteration(true);
+        LRResult activeSet = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-2, lambdaScaleFactors, 1e-9, 1000);
+        Assert.assertArrayEquals(cyclic.getBetasWithBeta0(), activeSet.getBetasWithBeta0(), 1e-6);
+
+        List<LRIterationMetadata> metadataList = activeSet.getMetaDataList();
+        Assert.assertTrue(metadataList.get(0).isFullSweep());
+        Assert.assertTrue(metadataList.get(metadataList.size() - 1).isFullSweep());
+        boolean cycledOverActiveSet = false;
+        for (LRIterationMetadata metadata : metadataList) {
+            if (!metadata.isFullSweep()) {
+                cycledOverActiveSet = true;
+                Assert.assertTrue(metadata.getActiveSetSize() < numOfFeatures + 1);
+            }
+        }
+        Assert.assertTrue(cycledOverActiveSet);
+        for (LRIterationMetadata metadata : cyclic.getMetaDataList()) {
+            Assert.assertTrue(metadata.isFullSweep());
+            Assert.assertEquals(numOfFeatures + 1, metadata.getActiveSetSize());
+        }
+    }
+
+    /**
+     * @return (1 / 2W) * sum_i mi * ((zi - betas . xi)^2 - zi^2) + elastic-net penalty, with mi and zi at expansionBetas
+     */
+    private static double quadraticObjective(SparseDataset dataset, double totalWeights, double[] expansionBetas,
+        double[] betas, double alpha, double lambda, double[] lambdaScaleFactors) {
+        double objective = 0;
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            double expansionBetasDotXi = LRUtil.betasDotXi(dataset, i, expansionBetas);
+            double prob = LRUtil.calcProb(expansionBetasDotXi);
+            double probBounded = Math.min(1.0 - 1e-15, Math.max(1e-15, prob));
+            double mi = dataset.getWeight(i) * probBounded * (1 - probBounded);
+            double zi = expansionBetasDotXi + (dataset.getY(i) - dataset.getWeight(i) * prob) / mi;
+            double ri = zi - LRUtil.betasDotXi(dataset, i, betas);
+            objective += mi * (ri * ri - zi * zi) / (2 * totalWeights);
+        }
+        for (int j = 1; j < betas.length; ++j) {
+            objective += lambda * lambdaScaleFactors[j - 1] * (alpha * Math.abs(betas[j])
+                + 0.5 * (1 - alpha) * betas[j] * betas[j]);
+        }
+        return objective;
+    }
+
+    @Test
+    public void testIterationListenerAndSnapshots() {
+        int numOfFeatures = 40;
+        SparseDataset dataset = SparseDataset.fromObservations(LRTestUtils
+            .createTestData(500, numOfFeatures, SPARCE_PCT, COL_SEED, BETA_SEED, DATA_SEED, WEIGHT_SEED));
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        betas[0] = -1;
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult collected = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8, 200);
+        Assert.assertEquals(-1, betas[0], 0);
+        Assert.assertEquals(collected.getIteration(), collected.getMetaDataList().size());
+        for (LRIterationMetadata iterationMetadata : collected.getMetaDataList()) {
+            Assert.assertNull(iterationMetadata.getBetas());
+        }
+
+        List<LRIterationMetadata> delivered = new ArrayList<>();
+        trainer.setIterationListener(delivered::add);
+        trainer.setIterationSnapshots(true);
+        LRResult listened = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8, 200);
+        Assert.assertNull(listened.getMetaDataList());
+        Assert.assertArrayEquals(collected.getBetasWithBeta0(), listened.getBetasWithBeta0(), 0);
+        Assert.assertEquals(listened.getIteration(), delivered.size());
+        for (int it = 0; it < delivered.size(); ++it) {
+            Assert.assertEquals(it + 1, delivered.get(it).getIteration());
+            Assert.assertNotSame(listened.getBetasWithBeta0(), delivered.get(it).getBetas());
+            if (it > 0) {
+                Assert.assertNotSame(delivered.get(it - 1).getBetas(), delivered.get(it).getBetas());
+            }
+        }
+        Assert.assertArrayEquals(listened.getBetasWithBeta0(), delivered.get(delivered.size() - 1).getBetas(), 0);
+    }
+
+    @Test
+    public void testTrainingMetricsPolicy() {
+        int numOfFeatures = 40;
+        SparseDataset dataset = SparseDataset.fromObservations(LRTestUtils
+            .createTestData(500, numOfFeatures, SPARCE_PCT, COL_SEED, BETA_SEED, DATA_SEED, WEIGHT_SEED));
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[numOfFeatures + 1];
+        betas[0] = -1;
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        // the existing trainers keep computing the entropy of every iteration unless a cheaper policy is chosen
+        Assert.assertEquals(TrainingMetricsPolicy.EVERY_ITERATION, trainer.getTrainingMetricsPolicy());
+        Assert.assertEquals(TrainingMetricsPolicy.EVERY_ITERATION, new CoordinateDescentTrainerMT().getTrainingMetricsPolicy());
+        trainer.setTrainingMetricsPeriod(2);
+        trainer.setIterationSnapshots(true);
+        LRResult expected = null;
+        for (TrainingMetricsPolicy policy : TrainingMetricsPolicy.values()) {
+            trainer.setTrainingMetricsPolicy(policy);
+            LRResult result = trainer
+                .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8, 200);
+            if (expected == null) {
+                expected = result;
+            }
+            Assert.assertArrayEquals(expected.getBetasWithBeta0(), result.getBetasWithBeta0(), 0);
+            List<LRIterationMetadata> metaDataList = result.getMetaDataList();
+            Assert.assertTrue(metaDataList.size() > 2);
+            for (LRIterationMetadata iterationMetadata : metaDataList) {
+                boolean last = iterationMetadata == metaDataList.get(metaDataList.size() - 1);
+                boolean entropyExpected = policy == TrainingMetricsPolicy.EVERY_ITERATION
+                    || (policy == TrainingMetricsPolicy.PERIODIC && iterationMetadata.getIteration() % 2 == 0)
+                    || (policy != TrainingMetricsPolicy.NONE && last);
+                Assert.assertEquals(policy + " " + iterationMetadata.getIteration(), entropyExpected,
+                    !Double.isNaN(iterationMetadata.getTrainingEntropy()));
+                if (entropyExpected) {
+                    Assert.assertEquals(LREvalUtil.getEntropy(dataset, iterationMetadata.getBetas()),
+                        iterationMetadata.getTrainingEntropy(), 1e-9);
+                }
+                Assert.assertEquals(policy == TrainingMetricsPolicy.QUADRATIC_OBJECTIVE,
+                    !Double.isNaN(iterationMetadata.getQuadraticObjective()));
+            }
+            Assert.assertEquals(policy != TrainingMetricsPolicy.NONE, !Double.isNaN(result.getTrainingEntropy()));
+        }
+
+        // the quadratic objective is exact up to its constant and does not increase from one iteration to the next
+        trainer.setTrainingMetricsPolicy(TrainingMetricsPolicy.QUADRATIC_OBJECTIVE);
+        for (CoordinateDescentMode mode : new CoordinateDescentMode[] {CoordinateDescentMode.COVARIANCE,
+            CoordinateDescentMode.NAIVE}) {
+            for (BetasUpdateStrategy strategy : BetasUpdateStrategy.values()) {
+                trainer.setCoordinateDescentMode(mode);
+                trainer.setBetasUpdateStrategy(strategy);
+                LRResult result = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8, 200);
+                double previousObjective = Double.POSITIVE_INFINITY;
+                for (LRIterationMetadata iterationMetadata : result.getMetaDataList()) {
+                    double objective = iterationMetadata.getQuadraticObjective();
+                    Assert.assertEquals(mode + " " + strategy, quadraticObjective(dataset, totalWeights, betas,
+                        iterationMetadata.getBetas(), 0.8, 1e-3, lambdaScaleFactors), objective, 1e-9);
+                    Assert.assertTrue(objective <= previousObjective + 1e-12);
+                    previousObjective = objective;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNaiveModeMatchesCovarianceMode() {
+        int numOfFeatures = 100;
+        SparseObservation[] obs = LRTestUtils
+            .createTestData(300, numOfFeatures, SPARCE_PCT, COL_SEED, BETA_SEED, DATA_SEED, WEIGHT_SEED);
+        SparseDataset valued = SparseDataset.fromObservations(obs);
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < valued.getNumRows(); ++i) {
+            for (int k = valued.getRowStart(i); k < valued.getRowEnd(i); ++k) {
+                builder.addFeature(valued.getIndex(k), 1);
+            }
+            builder.endRow(valued.getY(i), valued.getWeight(i));
+        }
+        SparseDataset binary = builder.build();
+        Assert.assertTrue(binary.isBinary());
+
+        ExecutorService execPool = Executors.newFixedThreadPool(2);
+        try {
+            CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+            CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(
+                new ExecutorCompletionService<>(execPool), 2);
+            for (SparseDataset dataset : new SparseDataset[] {valued, binary}) {
+                double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+                double totalWeights = LR.getTotalWeights(dataset);
+                double[] betas = new double[numOfFeatures + 1];
+                betas[0] = -1;
+                trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+                LRResult expected = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8, 200);
+                Assert.assertEquals(CoordinateDescentMode.COVARIANCE, expected.getCoordinateDescentMode());
+                for (CoordinateDescentMode mode : CoordinateDescentMode.values()) {
+                    trainer.setCoordinateDescentMode(mode);
+                    trainerMT.setCoordinateDescentMode(mode);
+                    for (IModelTrainer modelTrainer : new IModelTrainer[] {trainer, trainerMT}) {
+                        LRResult actual = modelTrainer
+                            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.8, 1e-3, lambdaScaleFactors, 1e-8,
+                                200);
+                        Assert.assertNotEquals(CoordinateDescentMode.AUTO, actual.getCoordinateDescentMode());
+                        Assert.assertArrayEquals(expected.getBetasWithBeta0(), actual.getBetasWithBeta0(), 1e-9);
+                    }
+                }
+            }
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+
+    @Test
+    public void testChooseMode() {
+        SparseDataset.Builder wide = new SparseDataset.Builder();
+        wide.addFeature(0, 1).addFeature(999, 1).endRow(1, 2);
+        Assert.assertEquals(CoordinateDescentMode.NAIVE,
+            CoordinateDescentUtil.chooseMode(wide.build(), 1001, CovarianceStorage.SPARSE));
+
+        SparseDataset.Builder tall = new SparseDataset.Builder();
+        for (int i = 0; i < 1000; ++i) {
+            tall.addFeature(i % 10, 1).addFeature(10 + i % 7, 2).endRow(i % 2, 1);
+        }
+        Assert.assertEquals(CoordinateDescentMode.COVARIANCE,
+            CoordinateDescentUtil.chooseMode(tall.build(), 18, CovarianceStorage.DENSE));
+    }
+
     /*
         helper methods
      */
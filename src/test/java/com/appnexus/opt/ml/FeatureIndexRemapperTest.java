@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FeatureIndexRemapperTest {
+
+    /**
+     * @return generated data whose feature ids are spread over a seven times larger id space
+     */
+    private static SparseDataset makeHashedDataset(int numOfFeatures) {
+        SparseDataset dataset = SparseDataset
+            .fromObservations(LRTestUtils.createTestData(300, numOfFeatures, 0.1, 8, 16, 32, 64));
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            for (int k = dataset.getRowStart(i); k < dataset.getRowEnd(i); ++k) {
+                builder.addFeature(7 * dataset.getIndex(k) + 3, dataset.getValue(k));
+            }
+            builder.endRow(dataset.getY(i), dataset.getWeight(i));
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testFromDataset() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(SparseDatasetTest.makeObservations());
+        FeatureIndexRemapper remapper = FeatureIndexRemapper.fromDataset(dataset, 20);
+        Assert.assertEquals(9, remapper.getNumOfCompactFeatures());
+        Assert.assertEquals(0, remapper.toCompact(1));
+        Assert.assertEquals(-1, remapper.toCompact(0));
+        Assert.assertEquals(9, remapper.toOriginal(8));
+
+        SparseDataset remapped = remapper.remap(dataset);
+        Assert.assertEquals(dataset.getNnz(), remapped.getNnz());
+        for (int k = 0; k < dataset.getNnz(); ++k) {
+            Assert.assertEquals(dataset.getIndex(k), remapper.toOriginal(remapped.getIndex(k)));
+            Assert.assertEquals(dataset.getValue(k), remapped.getValue(k), 1e-12);
+        }
+    }
+
+    @Test
+    public void testBetasRoundTrip() {
+        FeatureIndexRemapper remapper = new FeatureIndexRemapper(6, new int[] {1, 4});
+        double[] betasWithBeta0 = {-1, 10, 11, 12, 13, 14, 15};
+        double[] compact = remapper.toCompactBetas(betasWithBeta0);
+        Assert.assertArrayEquals(new double[] {-1, 11, 14}, compact, 1e-12);
+        Assert.assertArrayEquals(new double[] {-1, 0, 11, 0, 0, 14, 0}, remapper.toOriginalBetas(compact), 1e-12);
+        Assert.assertArrayEquals(new double[] {2, 5},
+            remapper.toCompactLambdaScaleFactors(new double[] {1, 2, 3, 4, 5, 6}), 1e-12);
+    }
+
+    @Test
+    public void testTrainOnCompactFeatures() {
+        int numOfFeatures = 7 * 40;
+        SparseDataset dataset = makeHashedDataset(40);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setIterationSnapshots(true);
+        LRResult full = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, new double[numOfFeatures + 1], 1, 1e-3, lambdaScaleFactors,
+                1e-6, 100);
+
+        FeatureIndexRemapper remapper = FeatureIndexRemapper.fromDataset(dataset, numOfFeatures);
+        Assert.assertEquals(40, remapper.getNumOfCompactFeatures());
+        LRResult compact = trainer.trainNewBetasWithBeta0(remapper.remap(dataset), totalWeights,
+            new double[remapper.getNumOfCompactFeatures() + 1], 1, 1e-3,
+            remapper.toCompactLambdaScaleFactors(lambdaScaleFactors), 1e-6, 100);
+        Assert.assertEquals(41, compact.getBetasWithBeta0().length);
+        remapper.toOriginalResult(compact);
+        Assert.assertArrayEquals(full.getBetasWithBeta0(), compact.getBetasWithBeta0(), 1e-9);
+        Assert.assertArrayEquals(full.getMetaDataList().get(0).getBetas(),
+            compact.getMetaDataList().get(0).getBetas(), 1e-9);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class FtrlProximalTrainerTest {
+    private static final int NUM_OF_FEATURES = 20;
+
+    @Test
+    public void testConvergesToOptimum() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double[] expected = LRTestUtils.trainToOptimum(dataset, NUM_OF_FEATURES, 0.5, 1e-3, lambdaScaleFactors);
+
+        FtrlProximalTrainer trainer = new FtrlProximalTrainer();
+        LRResult result = trainer.trainNewBetasWithBeta0(dataset, LR.getTotalWeights(dataset),
+            new double[NUM_OF_FEATURES + 1], 0.5, 1e-3, lambdaScaleFactors, 1e-6, 500);
+        Assert.assertTrue(result.getIteration() < 500);
+        Assert.assertEquals(result.getIteration(), result.getMetaDataList().size());
+        Assert.assertFalse(Double.isNaN(result.getTrainingEntropy()));
+        Assert.assertArrayEquals(expected, result.getBetasWithBeta0(), 2e-3);
+    }
+
+    @Test
+    public void testStreamingUpdatesMatchOneEpoch() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        SparseObservation[] observations = dataset.toObservations();
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double[] startBetas = new double[NUM_OF_FEATURES + 1];
+        startBetas[0] = -1;
+        startBetas[3] = 0.5;
+
+        FtrlProximalLearner learner = new FtrlProximalLearner(NUM_OF_FEATURES, 1, 1e-3, lambdaScaleFactors,
+            FtrlProximalLearner.DEFAULT_LEARNING_RATE, FtrlProximalLearner.DEFAULT_LEARNING_RATE_BETA, startBetas);
+        Assert.assertArrayEquals(startBetas, learner.getBetasWithBeta0(), 1e-12);
+        for (SparseObservation observation : observations) {
+            learner.update(observation);
+        }
+        Assert.assertEquals(observations.length, learner.getNumOfUpdates());
+        Assert.assertEquals(LR.getTotalWeights(dataset), learner.getCumulativeWeight(), 1e-9);
+
+        FtrlProximalTrainer trainer = new FtrlProximalTrainer();
+        LRResult fromDataset = trainer.trainNewBetasWithBeta0(dataset, LR.getTotalWeights(dataset), startBetas, 1, 1e-3,
+            lambdaScaleFactors, 1e-6, 1);
+        LRResult fromObservations = trainer.trainNewBetasWithBeta0(observations, LR.getTotalWeights(dataset), startBetas,
+            1, 1e-3, lambdaScaleFactors, 1e-6, 1);
+        Assert.assertEquals(1, fromDataset.getIteration());
+        Assert.assertArrayEquals(learner.getBetasWithBeta0(), fromDataset.getBetasWithBeta0(), 1e-12);
+        Assert.assertArrayEquals(learner.getBetasWithBeta0(), fromObservations.getBetasWithBeta0(), 1e-12);
+
+        SparseArray x = observations[0].getX();
+        Assert.assertEquals(LRUtil.calcProb(x, learner.getBetasWithBeta0()), learner.predict(x), 1e-12);
+    }
+
+    @Test
+    public void testL1ZeroesFeatures() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        FtrlProximalTrainer trainer = new FtrlProximalTrainer();
+        trainer.setTrainingMetricsPolicy(TrainingMetricsPolicy.NONE);
+        LRResult result = trainer.trainNewBetasWithBeta0(dataset, LR.getTotalWeights(dataset),
+            new double[NUM_OF_FEATURES + 1], 1, 10, lambdaScaleFactors, 1e-6, 50);
+        Assert.assertTrue(Double.isNaN(result.getTrainingEntropy()));
+        Assert.assertNotEquals(0, result.getBetasWithBeta0()[0], 0);
+        for (int j = 1; j <= NUM_OF_FEATURES; ++j) {
+            Assert.assertEquals(0, result.getBetasWithBeta0()[j], 0);
+        }
+    }
+
+    @Test
+    public void testListenerAndSnapshots() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        List<LRIterationMetadata> delivered = new ArrayList<>();
+        FtrlProximalTrainer trainer = new FtrlProximalTrainer();
+        trainer.setIterationSnapshots(true);
+        trainer.setIterationListener(delivered::add);
+        // totalWeights is not used
+        LRResult result = trainer.trainNewBetasWithBeta0(dataset, 0, new double[NUM_OF_FEATURES + 1], 0.5, 1e-3,
+            lambdaScaleFactors, 1e-6, 5);
+        Assert.assertNull(result.getMetaDataList());
+        Assert.assertEquals(result.getIteration(), delivered.size());
+        Assert.assertArrayEquals(result.getBetasWithBeta0(), delivered.get(delivered.size() - 1).getBetas(), 0);
+    }
+}
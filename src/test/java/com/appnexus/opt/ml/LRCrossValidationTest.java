@@ -0,0 +1,150 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class LRCrossValidationTest {
+
+    /**
+     * @return copy of the rows of a data set, in order, whose fold is or is not the given one
+     */
+    private static SparseDataset copyRows(SparseDataset dataset, LRCrossValidation crossValidation, int fold,
+        boolean heldOut) {
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            if ((crossValidation.getFold(i) == fold) == heldOut) {
+                builder.addObservation(dataset.getObservation(i));
+            }
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testFoldAssignment() {
+        SparseDataset dataset = SparseDataset.fromObservations(LRTestUtils.createTestData(1000, 10, 0.1, 8, 16, 32, 64));
+        LRCrossValidation crossValidation = new LRCrossValidation(dataset, 10, 1, new double[] {1e-3}, new double[10], 1e-6,
+            100, new CoordinateDescentTrainer(), 4);
+        for (FoldAssignment foldAssignment : FoldAssignment.values()) {
+            crossValidation.setFoldAssignment(foldAssignment);
+            int[] foldSizes = new int[4];
+            for (int i = 0; i < dataset.getNumRows(); ++i) {
+                ++foldSizes[crossValidation.getFold(i)];
+            }
+            for (int foldSize : foldSizes) {
+                Assert.assertTrue(foldAssignment + " " + foldSize, foldSize > 200 && foldSize < 300);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyFold() {
+        // three rows for four folds
+        SparseDataset dataset = SparseDataset.fromObservations(LRTestUtils.createTestData(3, 10, 0.1, 8, 16, 32, 64));
+        LRCrossValidation crossValidation = new LRCrossValidation(dataset, 10, 1, new double[] {1e-3}, new double[10], 1e-6,
+            100, new CoordinateDescentTrainer(), 4);
+        crossValidation.crossValidate(new ForkJoinParallelExecutor());
+    }
+
+    /**
+     * Cross-validate six rows of 10 trials each over three folds of rows {0, 3}, {1, 4} and {2, 5}
+     *
+     * @param successes successes of each row
+     * @return message of the rejection
+     */
+    private static String crossValidateRejection(int... successes) throws Exception {
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < successes.length; ++i) {
+            builder.addObservation(LRUtilTest.makeTjSparseObservation(new int[] {i % 2}, new double[] {1}, successes[i], 10));
+        }
+        LRCrossValidation crossValidation = new LRCrossValidation(builder.build(), 2, 1, new double[] {1e-3}, new double[2],
+            1e-6, 100, new CoordinateDescentTrainer(), 3);
+        crossValidation.setFoldAssignment(FoldAssignment.INDEX);
+        try {
+            crossValidation.crossValidate(new ForkJoinParallelExecutor());
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        Assert.fail("folds were not rejected");
+        return null;
+    }
+
+    @Test
+    public void testFoldTrainingWithoutSuccesses() throws Exception {
+        // only fold 0 has successes, so fold 0 trains on none
+        String message = crossValidateRejection(5, 0, 0, 5, 0, 0);
+        Assert.assertTrue(message, message.startsWith("fold 0 of 3 trains on 0.0 successes in 40 trials"));
+    }
+
+    @Test
+    public void testFoldTrainingOnlySuccesses() throws Exception {
+        String message = crossValidateRejection(10, 10, 10, 10, 10, 10);
+        Assert.assertTrue(message, message.startsWith("fold 0 of 3 trains on 40.0 successes in 40 trials"));
+    }
+
+    @Test
+    public void testFoldHoldingOutNoSuccesses() throws Exception {
+        String message = crossValidateRejection(5, 0, 5, 5, 0, 5);
+        Assert.assertTrue(message, message.startsWith("fold 1 of 3 holds out 20 trials without successes"));
+    }
+
+    @Test
+    public void testCrossValidateMatchesCopiedFolds() {
+        int numOfFeatures = 30;
+        SparseDataset dataset = SparseDataset
+            .fromObservations(LRTestUtils.createTestData(1500, numOfFeatures, 0.1, 8, 16, 32, 64));
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double[] lambdaGrid = LRUtil.getLambdaGrid(6, 2, 6);
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRCrossValidation crossValidation = new LRCrossValidation(dataset, numOfFeatures, 1, lambdaGrid,
+            lambdaScaleFactors, 1e-8, 1000, trainer, 3);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        CrossValidationResult result;
+        try {
+            result = crossValidation.crossValidate(new ForkJoinParallelExecutor(pool));
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int f = 0; f < 3; ++f) {
+            SparseDataset train = copyRows(dataset, crossValidation, f, false);
+            SparseDataset heldOut = copyRows(dataset, crossValidation, f, true);
+            List<LRResult> expected = new LR(train, numOfFeatures, null, 1, lambdaGrid, lambdaScaleFactors, 1e-8, 1000,
+                trainer).calculateBetas(true);
+            for (int l = 0; l < lambdaGrid.length; ++l) {
+                double[] betas = expected.get(l).getBetasWithBeta0();
+                Assert.assertArrayEquals(betas, result.getFoldResults().get(f).get(l).getBetasWithBeta0(), 1e-12);
+                Assert.assertEquals(LREvalUtil.getEntropyNormalized(heldOut, betas), result.getEntropy()[f][l], 1e-9);
+                Assert.assertEquals(LREvalUtil.getBias(heldOut, betas), result.getBias()[f][l], 1e-9);
+                Assert.assertEquals(LREvalUtil.getPredRatio(heldOut, betas), result.getPredRatio()[f][l], 1e-9);
+            }
+        }
+
+        double[] meanEntropy = result.getMeanEntropy();
+        for (double entropy : meanEntropy) {
+            Assert.assertTrue(meanEntropy[result.getBestLambdaIdx()] <= entropy);
+        }
+        Assert.assertEquals(lambdaGrid[result.getBestLambdaIdx()], result.getBestLambda(), 0);
+        Assert.assertTrue(result.getOneStdErrLambda() >= result.getBestLambda());
+        Assert.assertTrue(meanEntropy[result.getOneStdErrLambdaIdx()]
+            <= meanEntropy[result.getBestLambdaIdx()] + result.getStdErrEntropy()[result.getBestLambdaIdx()]);
+    }
+}
@@ -132,4 +132,25 @@ public class LREvalUtilTest {
         double[] betasWithBeta0 = LRTestUtils.makeBetas(11, 99);
         Assert.assertEquals(LREvalUtil.getPredRatioScaled(soArr, betasWithBeta0, 0.5), 0.999, 0.01);
     }
+
+    @Test
+    public void testDatasetOverloads() throws Exception {
+        SparseObservation[] soArr = SparseDatasetTest.makeObservations();
+        SparseDataset dataset = SparseDataset.fromObservations(soArr);
+        double[] betasWithBeta0 = LRTestUtils.makeBetas(11, 99);
+        Assert.assertEquals(LREvalUtil.getEntropy(soArr, betasWithBeta0), LREvalUtil.getEntropy(dataset, betasWithBeta0),
+            1e-9);
+        Assert.assertEquals(LREvalUtil.getEntropyNormalized(soArr, betasWithBeta0),
+            LREvalUtil.getEntropyNormalized(dataset, betasWithBeta0), 1e-9);
+        Assert.assertEquals(LREvalUtil.getEntropyScaled(soArr, betasWithBeta0, 0.5),
+            LREvalUtil.getEntropyScaled(dataset, betasWithBeta0, 0.5), 1e-9);
+        Assert.assertEquals(LREvalUtil.getBias(soArr, betasWithBeta0), LREvalUtil.getBias(dataset, betasWithBeta0),
+            1e-9);
+        Assert.assertEquals(LREvalUtil.getBiasScaled(soArr, betasWithBeta0, 0.5),
+            LREvalUtil.getBiasScaled(dataset, betasWithBeta0, 0.5), 1e-9);
+        Assert.assertEquals(LREvalUtil.getPredRatio(soArr, betasWithBeta0),
+            LREvalUtil.getPredRatio(dataset, betasWithBeta0), 1e-9);
+        Assert.assertEquals(LREvalUtil.getPredRatioScaled(soArr, betasWithBeta0, 0.5),
+            LREvalUtil.getPredRatioScaled(dataset, betasWithBeta0, 0.5), 1e-9);
+    }
 }
@@ -16,9 +16,14 @@
 
 package com.appnexus.opt.ml;
 
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 public class LRTest {
 
     @Test
@@ -86,4 +91,105 @@ public class LRTest {
         SparseObservation[] soArr = {so1, so2, so3};
         Assert.assertEquals(LR.getTotalWeights(soArr), 30, 1e-10);
     }
+
+    @Test
+    public void testStrongRuleScreening() {
+        int numOfFeatures = 200;
+        SparseObservation[] obs = LRTestUtils.createTestData(1000, numOfFeatures, 0.1, 8, 16, 32, 64);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(obs, numOfFeatures);
+        double[] lambdaGrid = LRUtil.getLambdaGrid(10, 2, 6);
+        LR lr = new LR(obs, numOfFeatures, null, 1, lambdaGrid, lambdaScaleFactors, 1e-8, 1000,
+            new CoordinateDescentTrainer());
+        List<LRResult> expected = lr.calculateBetas(true);
+        List<LRResult> screened = lr.calculateBetas(true, true);
+        Assert.assertEquals(expected.size(), screened.size());
+        boolean screenedOut = false;
+        for (int l = 0; l < expected.size(); ++l) {
+            Assert.assertEquals(-1, expected.get(l).getNumOfScreenedFeatures());
+            Assert.assertArrayEquals(expected.get(l).getBetasWithBeta0(), screened.get(l).getBetasWithBeta0(), 1e-6);
+            screenedOut |= screened.get(l).getNumOfScreenedFeatures() >= 0
+                && screened.get(l).getNumOfScreenedFeatures() < numOfFeatures;
+            // one KKT pass at most, a violation falls back to training on all features
+            Assert.assertTrue(screened.get(l).getNumOfKktViolations() == 0
+                || screened.get(l).getNumOfScreenedFeatures() == -1);
+            boolean kktChecked = screened.get(l).getNumOfScreenedFeatures() >= 0 || screened.get(l).getNumOfKktViolations() > 0;
+            Assert.assertEquals(kktChecked ? 1 : 0, screened.get(l).getNumOfKktRounds());
+        }
+        Assert.assertTrue(screenedOut);
+    }
+
+    @Test
+    public void testArrayOnlyTrainerGetsCallerObservations() {
+        int numOfFeatures = 20;
+        SparseObservation[] obs = LRTestUtils.createTestData(200, numOfFeatures, 0.1, 8, 16, 32, 64);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(obs, numOfFeatures);
+        double[] lambdaGrid = LRUtil.getLambdaGrid(3, 2, 4);
+        CoordinateDescentTrainer delegate = new CoordinateDescentTrainer();
+        List<SparseObservation[]> received = new ArrayList<>();
+        IModelTrainer arrayOnly = (observations, totalWeights, oldBetasWithBeta0, alpha, lambda, scaleFactors, tolerance,
+            maxIterations) -> {
+            received.add(observations);
+            return delegate.trainNewBetasWithBeta0(observations, totalWeights, oldBetasWithBeta0, alpha, lambda,
+                scaleFactors, tolerance, maxIterations);
+        };
+        Assert.assertFalse(LR.overridesDatasetTraining(arrayOnly));
+        Assert.assertTrue(LR.overridesDatasetTraining(delegate));
+        List<LRResult> results = new LR(obs, numOfFeatures, null, 1, lambdaGrid, lambdaScaleFactors, 1e-8, 1000,
+            arrayOnly).calculateBetas(true);
+        List<LRResult> expected = new LR(obs, numOfFeatures, null, 1, lambdaGrid, lambdaScaleFactors, 1e-8, 1000,
+            delegate).calculateBetas(true);
+        Assert.assertEquals(lambdaGrid.length, received.size());
+        for (int l = 0; l < lambdaGrid.length; ++l) {
+            Assert.assertSame(obs, received.get(l));
+            Assert.assertArrayEquals(expected.get(l).getBetasWithBeta0(), results.get(l).getBetasWithBeta0(), 1e-10);
+        }
+    }
+
+    @Test
+    public void testAlphaLambdaGrid() {
+        int numOfFeatures = 50;
+        SparseObservation[] obs = LRTestUtils.createTestData(1000, numOfFeatures, 0.1, 8, 16, 32, 64);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(obs, numOfFeatures);
+        double[] lambdaGrid = LRUtil.getLambdaGrid(5, 2, 5);
+        double[] alphaGrid = {1, 0.5, 0.1};
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LR lr = new LR(obs, numOfFeatures, null, 1, lambdaGrid, lambdaScaleFactors, 1e-8, 1000, trainer);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (boolean warmStart : new boolean[] {false, true}) {
+                List<? extends List<LRResult>> grid = lr
+                    .calculateBetas(alphaGrid, warmStart, false, new ForkJoinParallelExecutor(pool));
+                Assert.assertEquals(alphaGrid.length, grid.size());
+                for (int a = 0; a < alphaGrid.length; ++a) {
+                    List<LRResult> expected = new LR(obs, numOfFeatures, null, alphaGrid[a], lambdaGrid,
+                        lambdaScaleFactors, 1e-8, 1000, trainer).calculateBetas(warmStart);
+                    Assert.assertEquals(lambdaGrid.length, grid.get(a).size());
+                    for (int l = 0; l < lambdaGrid.length; ++l) {
+                        Assert.assertEquals(alphaGrid[a], grid.get(a).get(l).getAlpha(), 0);
+                        Assert.assertEquals(lambdaGrid[l], grid.get(a).get(l).getLambda(), 0);
+                        Assert.assertArrayEquals(expected.get(l).getBetasWithBeta0(),
+                            grid.get(a).get(l).getBetasWithBeta0(), 1e-12);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuadraticModelGradient() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(SparseDatasetTest.makeObservations());
+        double[] betas = {-0.5, 0, 0.1, 0, -0.2, 0, 0, 0.3, 0, 0, 0};
+        double[] gradient = LR.getQuadraticModelGradient(dataset, 30, betas, betas);
+        for (int j = 0; j < 10; ++j) {
+            // derivative of the log likelihood / W
+            double expected = 0;
+            for (int i = 0; i < dataset.getNumRows(); ++i) {
+                double xij = dataset.getObservation(i).getX().get(j);
+                expected += xij * (dataset.getY(i) - dataset.getWeight(i) * LRUtil.calcProb(dataset, i, betas));
+            }
+            Assert.assertEquals(expected / 30, gradient[j], 1e-12);
+        }
+    }
 }
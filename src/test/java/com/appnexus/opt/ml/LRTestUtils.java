@@ -59,6 +59,13 @@ public class LRTestUtils {
         return obs;
     }
 
+    /**
+     * @return data set of {@link #createTestData} with 20% of the features set per row and fixed seeds
+     */
+    static SparseDataset createTestDataset(int numOfObservations, int numOfFeatures) {
+        return SparseDataset.fromObservations(createTestData(numOfObservations, numOfFeatures, 0.2, 8, 16, 32, 64));
+    }
+
     public static double[] makeBetas(int numOfBetasWithBeta0, long betaSeed) {
         Random rn = new Random(betaSeed);
         double[] betas = new double[numOfBetasWithBeta0];
@@ -68,4 +75,19 @@ public class LRTestUtils {
         betas[0] = DEFAULT_BETA_0;
         return betas;
     }
+
+    /**
+     * @return betas minimizing the penalized log loss, from coordinate descent trainings iterated until the betas converge
+     */
+    static double[] trainToOptimum(SparseDataset dataset, int numOfFeatures, double alpha, double lambda,
+        double[] lambdaScaleFactors) {
+        double totalWeights = LR.getTotalWeights(dataset);
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        double[] betas = new double[numOfFeatures + 1];
+        for (int n = 0; n < 50; ++n) {
+            betas = trainer.trainNewBetasWithBeta0(dataset, totalWeights, betas, alpha, lambda, lambdaScaleFactors, 1e-10,
+                1000).getBetasWithBeta0();
+        }
+        return betas;
+    }
 }
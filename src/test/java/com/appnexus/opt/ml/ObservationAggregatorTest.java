@@ -0,0 +1,116 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ObservationAggregatorTest {
+
+    /**
+     * @return 400 rows drawn from 20 distinct feature vectors
+     */
+    private static SparseDataset makeDatasetWithDuplicates() {
+        Random rn = new Random(5);
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < 400; ++i) {
+            int pattern = rn.nextInt(20);
+            for (int j = 0; j < 10; ++j) {
+                if ((pattern >> (j % 5) & 1) == 1) {
+                    builder.addFeature(j + 10 * (pattern / 5), 1 + j % 3);
+                }
+            }
+            int weight = 1 + rn.nextInt(3);
+            builder.endRow(rn.nextInt(weight + 1), weight);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        SparseObservation[] observations = new SparseObservation[] {
+            CoordinateDescentTrainerTest.makeSparseObservation(new int[] {1, 3}, new double[] {1, 2}, 1, 2),
+            CoordinateDescentTrainerTest.makeSparseObservation(new int[] {1, 3}, new double[] {1, 3}, 0, 1),
+            CoordinateDescentTrainerTest.makeSparseObservation(new int[] {1, 3}, new double[] {1, 2}, 2, 5),
+            CoordinateDescentTrainerTest.makeSparseObservation(new int[] {}, new double[] {}, 1, 1),
+            CoordinateDescentTrainerTest.makeSparseObservation(new int[] {}, new double[] {}, 0, 4)};
+        SparseObservation[] aggregated = ObservationAggregator.aggregate(observations);
+        Assert.assertEquals(3, aggregated.length);
+        Assert.assertEquals(2.0, aggregated[0].getX().get(3), 0);
+        Assert.assertEquals(3.0, aggregated[0].getY(), 0);
+        Assert.assertEquals(7, aggregated[0].getWeight());
+        Assert.assertEquals(3.0, aggregated[1].getX().get(3), 0);
+        Assert.assertEquals(0.0, aggregated[1].getY(), 0);
+        Assert.assertEquals(1, aggregated[1].getWeight());
+        Assert.assertTrue(aggregated[2].getX().isEmpty());
+        Assert.assertEquals(1.0, aggregated[2].getY(), 0);
+        Assert.assertEquals(5, aggregated[2].getWeight());
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        SparseDataset dataset = makeDatasetWithDuplicates();
+        SparseDataset serial = ObservationAggregator.aggregate(dataset);
+        Assert.assertEquals(LR.getTotalWeights(dataset), LR.getTotalWeights(serial), 0);
+        Assert.assertEquals(LR.getTotalSuccesses(dataset), LR.getTotalSuccesses(serial), 0);
+
+        ExecutorService execPool = Executors.newFixedThreadPool(4);
+        try {
+            SparseDataset parallel = ObservationAggregator
+                .aggregate(dataset, new ExecutorCompletionService<>(execPool), 4);
+            Assert.assertEquals(serial.getNumRows(), parallel.getNumRows());
+            Assert.assertEquals(serial.getNnz(), parallel.getNnz());
+            for (int i = 0; i < serial.getNumRows(); ++i) {
+                Assert.assertEquals(serial.getY(i), parallel.getY(i), 0);
+                Assert.assertEquals(serial.getWeight(i), parallel.getWeight(i));
+                Assert.assertEquals(serial.getRowStart(i), parallel.getRowStart(i));
+            }
+            for (int k = 0; k < serial.getNnz(); ++k) {
+                Assert.assertEquals(serial.getIndex(k), parallel.getIndex(k));
+                Assert.assertEquals(serial.getValue(k), parallel.getValue(k), 0);
+            }
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+
+    @Test
+    public void testTrainingOnAggregatedRows() {
+        int numOfFeatures = 40;
+        SparseDataset dataset = makeDatasetWithDuplicates();
+        SparseDataset aggregated = ObservationAggregator.aggregate(dataset);
+        Assert.assertTrue(aggregated.getNumRows() <= 20);
+
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double[] betas = new double[numOfFeatures + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult expected = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, 1e-6, 100);
+        LRResult actual = trainer
+            .trainNewBetasWithBeta0(aggregated, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, 1e-6, 100);
+        Assert.assertArrayEquals(expected.getBetasWithBeta0(), actual.getBetasWithBeta0(), 1e-9);
+        Assert.assertEquals(LREvalUtil.getEntropy(dataset, expected.getBetasWithBeta0()),
+            LREvalUtil.getEntropy(aggregated, expected.getBetasWithBeta0()), 1e-9);
+    }
+}
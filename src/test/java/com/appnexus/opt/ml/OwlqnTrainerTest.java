@@ -0,0 +1,93 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class OwlqnTrainerTest {
+    private static final int NUM_OF_FEATURES = 20;
+
+    @Test
+    public void testConvergesToOptimum() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (double alpha : new double[] {0, 0.5, 1}) {
+                // large enough for the L1 penalty to zero about half of the features
+                double lambda = 0.6;
+                double[] expected = LRTestUtils.trainToOptimum(dataset, NUM_OF_FEATURES, alpha, lambda, lambdaScaleFactors);
+                OwlqnTrainer trainer = new OwlqnTrainer(new ForkJoinParallelExecutor(pool));
+                LRResult result = trainer.trainNewBetasWithBeta0(dataset, LR.getTotalWeights(dataset),
+                    new double[NUM_OF_FEATURES + 1], alpha, lambda, lambdaScaleFactors, 1e-10, 500);
+                Assert.assertTrue(result.getIteration() < 500);
+                Assert.assertArrayEquals(expected, result.getBetasWithBeta0(), 1e-5);
+                for (int j = 1; j <= NUM_OF_FEATURES; ++j) {
+                    Assert.assertEquals(expected[j] == 0, result.getBetasWithBeta0()[j] == 0);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetadataAndListener() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(3000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[NUM_OF_FEATURES + 1];
+        OwlqnTrainer trainer = new OwlqnTrainer(new ForkJoinParallelExecutor(ForkJoinPool.commonPool()));
+        trainer.setHistorySize(5);
+        trainer.setTrainingMetricsPolicy(TrainingMetricsPolicy.EVERY_ITERATION);
+        LRResult result = trainer.trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 0.1, lambdaScaleFactors, 1e-8,
+            500);
+        Assert.assertEquals(result.getIteration(), result.getMetaDataList().size());
+        double previousObjective = Double.MAX_VALUE;
+        for (LRIterationMetadata iterationMetadata : result.getMetaDataList()) {
+            Assert.assertTrue(iterationMetadata.getObjective() <= previousObjective);
+            Assert.assertFalse(Double.isNaN(iterationMetadata.getTrainingEntropy()));
+            Assert.assertNull(iterationMetadata.getBetas());
+            previousObjective = iterationMetadata.getObjective();
+        }
+        Assert.assertEquals(LREvalUtil.getEntropy(dataset, result.getBetasWithBeta0()), result.getTrainingEntropy(),
+            1e-9);
+
+        List<LRIterationMetadata> delivered = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(1);
+        LRResult listened;
+        try {
+            OwlqnTrainer listenedTrainer = new OwlqnTrainer(new ForkJoinParallelExecutor(pool));
+            listenedTrainer.setHistorySize(5);
+            listenedTrainer.setIterationListener(delivered::add);
+            listened = listenedTrainer.trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 0.1, lambdaScaleFactors,
+                1e-8, 500);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertNull(listened.getMetaDataList());
+        Assert.assertEquals(listened.getIteration(), delivered.size());
+        // one task sums the rows in another order
+        Assert.assertArrayEquals(result.getBetasWithBeta0(), listened.getBetasWithBeta0(), 1e-6);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ShardCoordinatorTest {
+    private static final int NUM_OF_FEATURES = 30;
+    private static final int NUM_OF_STEPS = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * @return every numOfShards-th row of the data set, starting at row shard
+     */
+    private static SparseDataset makeShard(SparseDataset dataset, int shard, int numOfShards) {
+        int[] rows = new int[(dataset.getNumRows() - shard + numOfShards - 1) / numOfShards];
+        for (int r = 0; r < rows.length; ++r) {
+            rows[r] = shard + r * numOfShards;
+        }
+        return new RowSubsetSparseDataset(dataset, rows);
+    }
+
+    /**
+     * Train a few warm-started steps with the coordinator and with the multi-threaded trainer on all rows
+     */
+    private static void assertSameSteps(ShardCoordinator coordinator, SparseDataset dataset) throws IOException {
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        Assert.assertArrayEquals(lambdaScaleFactors, coordinator.getLambdaScaleFactors(NUM_OF_FEATURES), 1e-12);
+        CoordinateDescentTrainerMT trainer = new CoordinateDescentTrainerMT();
+        trainer.setCovarianceStorage(CovarianceStorage.SPARSE);
+        trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] expected = new double[NUM_OF_FEATURES + 1];
+        double[] actual = new double[NUM_OF_FEATURES + 1];
+        for (int step = 0; step < NUM_OF_STEPS; ++step) {
+            expected = trainer.trainNewBetasWithBeta0(dataset, totalWeights, expected, 0.5, 1e-3, lambdaScaleFactors,
+                1e-8, 200).getBetasWithBeta0();
+            actual = coordinator.trainNewBetasWithBeta0(actual, 0.5, 1e-3, lambdaScaleFactors, 1e-8, 200)
+                .getBetasWithBeta0();
+            Assert.assertArrayEquals(expected, actual, 1e-9);
+        }
+    }
+
+    /**
+     * Send a request with an invalid number of features, expect an error and the connection to be closed
+     */
+    private static void assertRefused(InetSocketAddress address, int command, int numOfFeatures) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(ShardWorker.PROTOCOL_MAGIC);
+            out.writeInt(ShardWorker.PROTOCOL_VERSION);
+            out.writeInt(command);
+            out.writeInt(numOfFeatures);
+            out.flush();
+            Assert.assertEquals(ShardWorker.STATUS_OK, in.readByte());
+            Assert.assertEquals(ShardWorker.STATUS_ERROR, in.readByte());
+            Assert.assertTrue(in.readUTF().contains("out of range"));
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testInProcessWorkers() throws Exception {
+        SparseDataset dataset = LRTestUtils.createTestDataset(2000, NUM_OF_FEATURES);
+        ExecutorService execPool = Executors.newFixedThreadPool(3);
+        List<Future<?>> served = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int s = 0; s < 3; ++s) {
+                ShardWorker worker = new ShardWorker(makeShard(dataset, s, 3), new ForkJoinParallelExecutor());
+                addresses.add(worker.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+                served.add(execPool.submit(() -> {
+                    try (ShardWorker closing = worker) {
+                        closing.serve();
+                    }
+                    return null;
+                }));
+            }
+            // malformed requests are refused without stopping the worker
+            assertRefused(addresses.get(0), ShardWorker.CMD_STATISTICS, -1);
+            assertRefused(addresses.get(0), ShardWorker.CMD_FEATURE_SUCCESSES, Integer.MAX_VALUE);
+            try (ShardCoordinator coordinator = new ShardCoordinator(addresses)) {
+                Assert.assertEquals(3, coordinator.getNumOfWorkers());
+                assertSameSteps(coordinator, dataset);
+
+                // too few features for the rows of the workers, the connections stay usable
+                try {
+                    coordinator.collectStatistics(new double[6]);
+                    Assert.fail();
+                } catch (IOException e) {
+                    Assert.assertTrue(e.getMessage().contains("failed"));
+                }
+                SufficientStatistics statistics = coordinator.collectStatistics(new double[NUM_OF_FEATURES + 1]);
+                Assert.assertEquals(dataset.getNumRows(), statistics.getNumRows());
+                Assert.assertEquals(LR.getTotalSuccesses(dataset), statistics.getTotalSuccesses(), 1e-9);
+                coordinator.shutdown();
+            }
+            for (Future<?> future : served) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            execPool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testWorkerProcesses() throws Exception {
+        SparseDataset dataset = LRTestUtils.createTestDataset(2000, NUM_OF_FEATURES);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int s = 0; s < 2; ++s) {
+                Path shardFile = this.temporaryFolder.newFile("shard" + s + ".bin").toPath();
+                SparseDatasetFile.write(makeShard(dataset, s, 2), NUM_OF_FEATURES, shardFile);
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardWorker.class.getName(), shardFile.toString()).redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+                processes.add(process);
+                BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                Assert.assertNotNull(line);
+                Assert.assertTrue(line, line.startsWith("listening on "));
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(line.substring("listening on ".length()))));
+            }
+            try (ShardCoordinator coordinator = new ShardCoordinator(addresses)) {
+                assertSameSteps(coordinator, dataset);
+                coordinator.shutdown();
+            }
+            for (Process process : processes) {
+                Assert.assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+                Assert.assertEquals(0, process.exitValue());
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testFeatureIndexOutOfRange() throws Exception {
+        ExecutorService execPool = Executors.newSingleThreadExecutor();
+        // replies to the handshake and to two FEATURE_SUCCESSES requests, the first with an index out of range
+        try (ServerSocket fake = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<?> served = execPool.submit(() -> {
+                try (Socket socket = fake.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    in.readInt();
+                    in.readInt();
+                    out.writeByte(ShardWorker.STATUS_OK);
+                    for (int request = 0; request < 2; ++request) {
+                        Assert.assertEquals(ShardWorker.CMD_FEATURE_SUCCESSES, in.readInt());
+                        Assert.assertEquals(4, in.readInt());
+                        out.writeByte(ShardWorker.STATUS_OK);
+                        out.writeDouble(10);
+                        out.writeInt(2);
+                        out.writeInt(1);
+                        out.writeDouble(2);
+                        out.writeInt(request == 0 ? 4 : 3);
+                        out.writeDouble(1);
+                        out.flush();
+                    }
+                }
+                return null;
+            });
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), fake.getLocalPort());
+            try (ShardCoordinator coordinator = new ShardCoordinator(Collections.singletonList(address))) {
+                try {
+                    coordinator.getLambdaScaleFactors(4);
+                    Assert.fail();
+                } catch (IOException e) {
+                    Assert.assertTrue(e.getMessage(), e.getMessage().contains("feature index 4 out of range"));
+                }
+                // the rest of the reply was read, so the next request gets its own reply
+                Assert.assertArrayEquals(new double[] {0.1, 0.2, 0.1, 0.1}, coordinator.getLambdaScaleFactors(4), 1e-12);
+            }
+            served.get(10, TimeUnit.SECONDS);
+        } finally {
+            execPool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testHungWorkerTimesOut() throws Exception {
+        // accepts connections and never replies
+        try (ServerSocket hung = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), hung.getLocalPort());
+            try {
+                new ShardCoordinator(Collections.singletonList(address), 200).close();
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains(String.valueOf(hung.getLocalPort())));
+            }
+        }
+    }
+}
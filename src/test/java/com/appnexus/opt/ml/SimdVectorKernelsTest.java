@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the Vector API kernels of the Java 17 section of the jar. The class is compiled from src/main/java17 into
+ * META-INF/versions/17, which the Java 8 test sources cannot refer to, so it is loaded by name. Runs only in the simd-kernels test
+ * execution of the java17 profile, which adds that directory to the class path and enables the incubating module
+ */
+public class SimdVectorKernelsTest {
+
+    private static IVectorKernels newSimdKernels() throws ReflectiveOperationException {
+        return (IVectorKernels) Class.forName("com.appnexus.opt.ml.SimdVectorKernels").getDeclaredConstructor()
+            .newInstance();
+    }
+
+    @Test
+    public void testKernelsMatchLoops() throws Exception {
+        VectorKernelsTest.assertKernelsMatchLoops(newSimdKernels());
+    }
+
+    @Test
+    public void testKernelsMatchScalarKernels() throws Exception {
+        IVectorKernels simd = newSimdKernels();
+        IVectorKernels scalar = new ScalarVectorKernels();
+        Random random = new Random(11);
+        // every length up to a few vectors of the widest lanes, at every offset within a vector
+        for (int length = 0; length <= 40; ++length) {
+            for (int offset = 0; offset < 8; ++offset) {
+                double[] a = new double[offset + length + 3];
+                double[] b = new double[offset + length + 3];
+                for (int i = 0; i < a.length; ++i) {
+                    a[i] = random.nextGaussian();
+                    b[i] = random.nextGaussian();
+                }
+                int otherOffset = (offset * 3 + 1) % 4;
+                Assert.assertEquals(scalar.dot(a, offset, b, otherOffset, length),
+                    simd.dot(a, offset, b, otherOffset, length), 1e-12);
+
+                double[] expected = b.clone();
+                scalar.addScaled(0.75, a, offset, expected, otherOffset, length);
+                double[] actual = b.clone();
+                simd.addScaled(0.75, a, offset, actual, otherOffset, length);
+                Assert.assertArrayEquals(expected, actual, 1e-15);
+
+                double[] ragged = Arrays.copyOf(a, offset + length);
+                expected = ragged.clone();
+                scalar.divide(expected, -2.5);
+                actual = ragged.clone();
+                simd.divide(actual, -2.5);
+                Assert.assertArrayEquals(expected, actual, 0);
+
+                double[] other = Arrays.copyOf(b, ragged.length);
+                Assert.assertEquals(scalar.sumAbs(ragged), simd.sumAbs(ragged), 1e-12);
+                Assert.assertEquals(scalar.maxAbsDifference(ragged, other), simd.maxAbsDifference(ragged, other), 0);
+            }
+        }
+    }
+}
@@ -79,6 +79,64 @@ public class SparseArrayTest {
         testSparseArrayEquality(itSparseArray, itActualEntries);
     }
 
+    @Test
+    public void testIndexedAccess() {
+        SparseArray sparseArray = new SparseArray();
+        sparseArray.set(7, 3);
+        sparseArray.set(2, 1);
+        sparseArray.set(5, 2);
+        Assert.assertEquals(3, sparseArray.nnz());
+        Assert.assertEquals(2, sparseArray.indexAt(0));
+        Assert.assertEquals(5, sparseArray.indexAt(1));
+        Assert.assertEquals(7, sparseArray.indexAt(2));
+        Assert.assertEquals(1, sparseArray.valueAt(0), 1e-10);
+        Assert.assertEquals(2, sparseArray.valueAt(1), 1e-10);
+        Assert.assertEquals(3, sparseArray.valueAt(2), 1e-10);
+    }
+
+    @Test
+    public void testGetAndSetManyEntries() {
+        SparseArray sparseArray = new SparseArray();
+        for (int i = 99; i >= 0; i -= 3) {
+            sparseArray.set(i, i + 0.5);
+        }
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals((99 - i) % 3 == 0 ? i + 0.5 : 0.0, sparseArray.get(i), 1e-10);
+        }
+        sparseArray.remove(51);
+        Assert.assertEquals(0.0, sparseArray.get(51), 1e-10);
+        Assert.assertEquals(33, sparseArray.nnz());
+        for (int k = 1; k < sparseArray.nnz(); ++k) {
+            Assert.assertTrue(sparseArray.indexAt(k - 1) < sparseArray.indexAt(k));
+        }
+    }
+
+    @Test
+    public void testGetAfterUnorderedAppend() {
+        SparseArray sparseArray = new SparseArray();
+        sparseArray.append(5, 1);
+        sparseArray.append(2, 2);
+        Assert.assertEquals(1, sparseArray.get(5), 1e-10);
+        Assert.assertEquals(2, sparseArray.get(2), 1e-10);
+        sparseArray.set(2, 3);
+        Assert.assertEquals(3, sparseArray.get(2), 1e-10);
+        Assert.assertEquals(2, sparseArray.nnz());
+    }
+
+    @Test
+    public void testBinary() {
+        SparseArray sparseArray = new SparseArray();
+        sparseArray.set(4, 1);
+        sparseArray.append(9, 1);
+        Assert.assertTrue(sparseArray.isBinary());
+        Assert.assertEquals(1, sparseArray.valueAt(1), 1e-10);
+        sparseArray.set(2, 0.5);
+        Assert.assertFalse(sparseArray.isBinary());
+        Assert.assertEquals(0.5, sparseArray.get(2), 1e-10);
+        Assert.assertEquals(1, sparseArray.get(4), 1e-10);
+        Assert.assertEquals(1, sparseArray.get(9), 1e-10);
+    }
+
     private void testSparseArrayEquality(Iterator<SparseArray.Entry> itSparseArray,
         Iterator<SparseArray.Entry> itActualEntries) {
         while (itSparseArray.hasNext()) {
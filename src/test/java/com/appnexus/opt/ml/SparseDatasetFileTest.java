@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class SparseDatasetFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void assertSameDataset(SparseDataset expected, SparseDataset actual) {
+        Assert.assertEquals(expected.getNumRows(), actual.getNumRows());
+        Assert.assertEquals(expected.getNnz(), actual.getNnz());
+        Assert.assertEquals(expected.isBinary(), actual.isBinary());
+        for (int i = 0; i < expected.getNumRows(); ++i) {
+            Assert.assertEquals(expected.getRowNnz(i), actual.getRowNnz(i));
+            Assert.assertEquals(expected.getY(i), actual.getY(i), 1e-12);
+            Assert.assertEquals(expected.getWeight(i), actual.getWeight(i));
+            for (int k = 0; k < expected.getRowNnz(i); ++k) {
+                Assert.assertEquals(expected.getIndex(expected.getRowStart(i) + k),
+                    actual.getIndex(actual.getRowStart(i) + k));
+                Assert.assertEquals(expected.getValue(expected.getRowStart(i) + k),
+                    actual.getValue(actual.getRowStart(i) + k), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAndMap() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(SparseDatasetTest.makeObservations());
+        Path file = temporaryFolder.newFile("dataset.bin").toPath();
+        SparseDatasetFile.write(dataset, 10, file);
+        MappedSparseDataset mapped = SparseDatasetFile.map(file);
+        Assert.assertEquals(10, mapped.getNumOfFeatures());
+        assertSameDataset(dataset, mapped);
+    }
+
+    @Test
+    public void testConvertFromTsv() throws Exception {
+        Path tsv = temporaryFolder.newFile("observations.tsv").toPath();
+        Files.write(tsv, Arrays.asList("6\t2\t0.0\t(1,1.0)\t(5,1.0)", "6\t3\t1.0", "6\t1\t1.0\t(0,1.0)\t(2,1.0)\t(4,1.0)"),
+            StandardCharsets.UTF_8);
+        Path file = temporaryFolder.newFile("observations.bin").toPath();
+        SparseDatasetFile.convertFromTsv(tsv, file);
+        MappedSparseDataset mapped = SparseDatasetFile.map(file);
+        SparseDataset expected = new SparseDataset.Builder().addFeature(1, 1).addFeature(5, 1).endRow(0, 2).endRow(1, 3)
+            .addFeature(0, 1).addFeature(2, 1).addFeature(4, 1).endRow(1, 1).build();
+        Assert.assertEquals(6, mapped.getNumOfFeatures());
+        Assert.assertTrue(mapped.isBinary());
+        assertSameDataset(expected, mapped);
+    }
+
+    @Test
+    public void testTrainOnMappedDataset() throws Exception {
+        int numOfFeatures = 40;
+        SparseObservation[] obs = LRTestUtils.createTestData(200, numOfFeatures, 0.1, 8, 16, 32, 64);
+        SparseDataset dataset = SparseDataset.fromObservations(obs);
+        Path file = temporaryFolder.newFile("generated.bin").toPath();
+        SparseDatasetFile.write(dataset, numOfFeatures, file);
+        MappedSparseDataset mapped = SparseDatasetFile.map(file);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, numOfFeatures);
+        double totalWeights = LR.getTotalWeights(dataset);
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult fromArrays = trainer.trainNewBetasWithBeta0(dataset, totalWeights, new double[numOfFeatures + 1], 1,
+            1e-3, lambdaScaleFactors, 1e-6, 100);
+        LRResult fromFile = trainer.trainNewBetasWithBeta0(mapped, totalWeights, new double[numOfFeatures + 1], 1, 1e-3,
+            lambdaScaleFactors, 1e-6, 100);
+        Assert.assertArrayEquals(fromArrays.getBetasWithBeta0(), fromFile.getBetasWithBeta0(), 1e-12);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMapRejectsOtherFiles() throws Exception {
+        Path file = temporaryFolder.newFile("not-a-dataset.bin").toPath();
+        Files.write(file, new byte[SparseDatasetFile.HEADER_BYTES]);
+        SparseDatasetFile.map(file);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SparseDatasetTest {
+
+    static SparseObservation[] makeObservations() throws Exception {
+        int[] xi1 = {1, 2, 3, 4};
+        double[] xv1 = {1, 2, 3, 4};
+        SparseObservation so1 = LRUtilTest.makeTjSparseObservation(xi1, xv1, 5, 10);
+        int[] xi2 = {6, 7, 8, 9};
+        double[] xv2 = {6, 7, 8, 9};
+        SparseObservation so2 = LRUtilTest.makeTjSparseObservation(xi2, xv2, 5, 10);
+        int[] xi3 = {3, 4, 5, 6, 7};
+        double[] xv3 = {3, 4, 5, 6, 7};
+        SparseObservation so3 = LRUtilTest.makeTjSparseObservation(xi3, xv3, 0, 10);
+        return new SparseObservation[] {so1, so2, so3};
+    }
+
+    @Test
+    public void testFromObservations() throws Exception {
+        SparseObservation[] soArr = makeObservations();
+        SparseDataset dataset = SparseDataset.fromObservations(soArr);
+        Assert.assertEquals(3, dataset.getNumRows());
+        Assert.assertEquals(13, dataset.getNnz());
+        Assert.assertEquals(0, dataset.getRowStart(0));
+        Assert.assertEquals(4, dataset.getRowEnd(0));
+        Assert.assertEquals(4, dataset.getRowStart(1));
+        Assert.assertEquals(5, dataset.getRowNnz(2));
+        Assert.assertEquals(6, dataset.getIndex(4));
+        Assert.assertEquals(6, dataset.getValue(4), 1e-10);
+        Assert.assertEquals(5, dataset.getY(1), 1e-10);
+        Assert.assertEquals(10, dataset.getWeight(2));
+    }
+
+    @Test
+    public void testToObservations() throws Exception {
+        SparseObservation[] soArr = makeObservations();
+        SparseObservation[] roundTrip = SparseDataset.fromObservations(soArr).toObservations();
+        Assert.assertEquals(soArr.length, roundTrip.length);
+        for (int i = 0; i < soArr.length; ++i) {
+            Assert.assertEquals(soArr[i].toString(), roundTrip[i].toString());
+        }
+    }
+
+    @Test
+    public void testBuilder() {
+        SparseDataset dataset = new SparseDataset.Builder(1, 1).addFeature(3, 1.5).addFeature(4, 0).endRow(1, 2)
+            .endRow(0, 1).addFeature(0, 2).endRow(2, 3).build();
+        Assert.assertEquals(3, dataset.getNumRows());
+        Assert.assertEquals(2, dataset.getNnz());
+        Assert.assertEquals(1, dataset.getRowNnz(0));
+        Assert.assertEquals(0, dataset.getRowNnz(1));
+        Assert.assertEquals(0, dataset.getIndex(dataset.getRowStart(2)));
+        Assert.assertEquals(3, dataset.getWeight(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidArrays() {
+        new ArraySparseDataset(new int[] {0, 1}, new int[] {1, 2}, new double[] {1, 2}, new double[] {0},
+            new int[] {1});
+    }
+
+    @Test
+    public void testBinaryDetection() throws Exception {
+        Assert.assertFalse(SparseDataset.fromObservations(makeObservations()).isBinary());
+        SparseDataset dataset = new SparseDataset.Builder().addFeature(3, 1).addFeature(5, 1).endRow(1, 2)
+            .addFeature(0, 1).endRow(0, 1).build();
+        Assert.assertTrue(dataset.isBinary());
+        Assert.assertEquals(1, dataset.getValue(2), 1e-10);
+        Assert.assertEquals(5, dataset.getIndex(1));
+    }
+
+    @Test
+    public void testColumnIndex() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(makeObservations());
+        SparseColumnIndex columnIndex = dataset.getColumnIndex(10);
+        Assert.assertSame(columnIndex, dataset.getColumnIndex(10));
+        Assert.assertEquals(10, columnIndex.getNumOfFeatures());
+        Assert.assertFalse(columnIndex.isBinary());
+        Assert.assertEquals(0, columnIndex.getColumnEnd(0) - columnIndex.getColumnStart(0));
+        // feature 3 occurs in rows 0 and 2 with value 3
+        Assert.assertEquals(2, columnIndex.getColumnEnd(3) - columnIndex.getColumnStart(3));
+        Assert.assertEquals(0, columnIndex.getRow(columnIndex.getColumnStart(3)));
+        Assert.assertEquals(2, columnIndex.getRow(columnIndex.getColumnStart(3) + 1));
+        Assert.assertEquals(3.0, columnIndex.getValue(columnIndex.getColumnStart(3)), 0);
+        int nnz = 0;
+        for (int j = 0; j < 10; ++j) {
+            for (int p = columnIndex.getColumnStart(j); p < columnIndex.getColumnEnd(j); ++p) {
+                Assert.assertEquals(columnIndex.getValue(p), dataset.getObservation(columnIndex.getRow(p)).getX().get(j), 0);
+                ++nnz;
+            }
+        }
+        Assert.assertEquals(dataset.getNnz(), nnz);
+    }
+
+    @Test
+    public void testCumulativeRowCost() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(makeObservations());
+        long[] cost = dataset.getCumulativeRowCost(false);
+        long[] squaredCost = dataset.getCumulativeRowCost(true);
+        Assert.assertEquals(dataset.getNumRows() + 1, cost.length);
+        Assert.assertEquals(0, cost[0]);
+        Assert.assertEquals(dataset.getNumRows() + dataset.getNnz(), cost[dataset.getNumRows()]);
+        for (int i = 0; i < dataset.getNumRows(); ++i) {
+            long nnz = dataset.getRowNnz(i);
+            Assert.assertEquals(1 + nnz, cost[i + 1] - cost[i]);
+            Assert.assertEquals(1 + nnz + nnz * nnz, squaredCost[i + 1] - squaredCost[i]);
+        }
+    }
+
+    @Test
+    public void testRowSubset() throws Exception {
+        SparseObservation[] observations = makeObservations();
+        SparseDataset dataset = SparseDataset.fromObservations(observations);
+        int[] rows = {2, 0};
+        SparseDataset subset = new RowSubsetSparseDataset(dataset, rows);
+        SparseDataset copy = SparseDataset.fromObservations(new SparseObservation[] {observations[2], observations[0]});
+        Assert.assertEquals(copy.getNumRows(), subset.getNumRows());
+        Assert.assertEquals(copy.getNnz(), subset.getNnz());
+        for (int i = 0; i < subset.getNumRows(); ++i) {
+            Assert.assertEquals(copy.getRowNnz(i), subset.getRowNnz(i));
+            for (int k = 0; k < copy.getRowNnz(i); ++k) {
+                Assert.assertEquals(copy.getIndex(copy.getRowStart(i) + k), subset.getIndex(subset.getRowStart(i) + k));
+                Assert.assertEquals(copy.getValue(copy.getRowStart(i) + k), subset.getValue(subset.getRowStart(i) + k), 0);
+            }
+            Assert.assertEquals(copy.getY(i), subset.getY(i), 0);
+            Assert.assertEquals(copy.getWeight(i), subset.getWeight(i));
+        }
+        SparseColumnIndex expected = copy.getColumnIndex(10);
+        SparseColumnIndex actual = subset.getColumnIndex(10);
+        for (int j = 0; j < 10; ++j) {
+            Assert.assertEquals(expected.getColumnEnd(j), actual.getColumnEnd(j));
+            for (int p = expected.getColumnStart(j); p < expected.getColumnEnd(j); ++p) {
+                Assert.assertEquals(expected.getRow(p), actual.getRow(p));
+                Assert.assertEquals(expected.getValue(p), actual.getValue(p), 0);
+            }
+        }
+    }
+}
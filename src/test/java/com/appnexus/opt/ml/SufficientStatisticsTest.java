@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.ForkJoinParallelExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+public class SufficientStatisticsTest {
+    private static final int NUM_OF_FEATURES = 30;
+
+    private static double[] makeStartBetas() {
+        double[] betas = new double[NUM_OF_FEATURES + 1];
+        betas[0] = -2;
+        betas[4] = 0.3;
+        betas[7] = -0.2;
+        return betas;
+    }
+
+    private static SufficientStatistics roundTrip(SufficientStatistics statistics) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        statistics.writeTo(new DataOutputStream(bytes));
+        return SufficientStatistics.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testShardsMatchTrainingOnRows() throws Exception {
+        SparseDataset dataset = LRTestUtils.createTestDataset(2000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double[] startBetas = makeStartBetas();
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setCovarianceStorage(CovarianceStorage.SPARSE);
+        trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+        LRResult expected = trainer.trainNewBetasWithBeta0(dataset, LR.getTotalWeights(dataset), startBetas, 0.5, 1e-3,
+            lambdaScaleFactors, 1e-8, 200);
+
+        // three shards accumulated and shipped separately, merged in a different order
+        int[] shardEnds = {0, 700, 1300, dataset.getNumRows()};
+        SufficientStatistics[] shards = new SufficientStatistics[3];
+        for (int s = 0; s < shards.length; ++s) {
+            SufficientStatistics shard = new SufficientStatistics(NUM_OF_FEATURES, startBetas);
+            shard.addRows(dataset, shardEnds[s], shardEnds[s + 1]);
+            shards[s] = roundTrip(shard);
+        }
+        SufficientStatistics merged = shards[2];
+        merged.merge(shards[0]);
+        merged.merge(shards[1]);
+        Assert.assertEquals(dataset.getNumRows(), merged.getNumRows());
+        Assert.assertEquals(LR.getTotalWeights(dataset), merged.getTotalWeights(), 1e-9);
+        Assert.assertEquals(LR.getTotalSuccesses(dataset), merged.getTotalSuccesses(), 1e-9);
+        Assert.assertArrayEquals(startBetas, merged.getBetasWithBeta0(), 0);
+
+        LRResult result = trainer.trainNewBetasWithBeta0(merged, 0.5, 1e-3, lambdaScaleFactors, 1e-8, 200);
+        Assert.assertEquals(CoordinateDescentMode.COVARIANCE, result.getCoordinateDescentMode());
+        Assert.assertTrue(Double.isNaN(result.getTrainingEntropy()));
+        Assert.assertArrayEquals(expected.getBetasWithBeta0(), result.getBetasWithBeta0(), 1e-9);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            SufficientStatistics parallel = SufficientStatistics
+                .fromDataset(dataset, NUM_OF_FEATURES, startBetas, new ForkJoinParallelExecutor(pool));
+            Assert.assertArrayEquals(expected.getBetasWithBeta0(),
+                trainer.trainNewBetasWithBeta0(parallel, 0.5, 1e-3, lambdaScaleFactors, 1e-8, 200).getBetasWithBeta0(),
+                1e-9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuadraticObjective() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(2000, NUM_OF_FEATURES);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        trainer.setTrainingMetricsPolicy(TrainingMetricsPolicy.QUADRATIC_OBJECTIVE);
+        LRResult result = trainer.trainNewBetasWithBeta0(
+            SufficientStatistics.fromDataset(dataset, NUM_OF_FEATURES, makeStartBetas()), 1, 1e-3, lambdaScaleFactors,
+            1e-8, 200);
+        double previousObjective = Double.MAX_VALUE;
+        for (LRIterationMetadata iterationMetadata : result.getMetaDataList()) {
+            Assert.assertTrue(iterationMetadata.getQuadraticObjective() <= previousObjective + 1e-12);
+            previousObjective = iterationMetadata.getQuadraticObjective();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeAtDifferentBetas() {
+        SparseDataset dataset = LRTestUtils.createTestDataset(2000, NUM_OF_FEATURES);
+        SufficientStatistics statistics = SufficientStatistics.fromDataset(dataset, NUM_OF_FEATURES, makeStartBetas());
+        statistics.merge(SufficientStatistics.fromDataset(dataset, NUM_OF_FEATURES, new double[NUM_OF_FEATURES + 1]));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadNotStatistics() throws Exception {
+        SufficientStatistics.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8})));
+    }
+}
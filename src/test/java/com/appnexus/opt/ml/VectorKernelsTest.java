@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class VectorKernelsTest {
+
+    @Test
+    public void testKernelsMatchLoops() {
+        assertKernelsMatchLoops(VectorKernels.get());
+    }
+
+    /**
+     * Compare kernels with plain loops, on lengths around the common vector widths and on offsets into longer arrays
+     *
+     * @param kernels kernels to check
+     */
+    static void assertKernelsMatchLoops(IVectorKernels kernels) {
+        Random random = new Random(3);
+        // lengths around the common vector widths, to cover the tails
+        for (int length : new int[] {0, 1, 3, 4, 7, 8, 9, 17, 100}) {
+            double[] a = new double[length + 5];
+            double[] b = new double[length + 5];
+            for (int i = 0; i < a.length; ++i) {
+                a[i] = random.nextGaussian();
+                b[i] = random.nextGaussian();
+            }
+
+            double dot = 0;
+            for (int i = 0; i < length; ++i) {
+                dot += a[2 + i] * b[5 + i];
+            }
+            Assert.assertEquals(dot, kernels.dot(a, 2, b, 5, length), 1e-12);
+
+            double[] expected = b.clone();
+            for (int i = 0; i < length; ++i) {
+                expected[1 + i] += -1.5 * a[3 + i];
+            }
+            double[] actual = b.clone();
+            kernels.addScaled(-1.5, a, 3, actual, 1, length);
+            Assert.assertArrayEquals(expected, actual, 1e-12);
+
+            expected = a.clone();
+            for (int i = 0; i < expected.length; ++i) {
+                expected[i] /= 3.5;
+            }
+            actual = a.clone();
+            kernels.divide(actual, 3.5);
+            Assert.assertArrayEquals(expected, actual, 1e-15);
+
+            double sumAbs = 0;
+            double maxAbsDifference = 0;
+            for (int i = 0; i < a.length; ++i) {
+                sumAbs += Math.abs(a[i]);
+                maxAbsDifference = Math.max(maxAbsDifference, Math.abs(a[i] - b[i]));
+            }
+            Assert.assertEquals(sumAbs, kernels.sumAbs(a), 1e-12);
+            Assert.assertEquals(maxAbsDifference, kernels.maxAbsDifference(a, b), 0);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *    Copyright 2018 APPNEXUS INC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.appnexus.opt.ml;
+
+import com.appnexus.opt.concurrent.DatasetRange;
+import com.appnexus.opt.concurrent.MultiThreadingUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class WeightedCovarianceMatrixTest {
+    private static final int NUM_OF_FEATURES = 40;
+
+    private static SparseDataset makeDataset(boolean binary, long seed) {
+        Random rn = new Random(seed);
+        SparseDataset.Builder builder = new SparseDataset.Builder();
+        for (int i = 0; i < 300; ++i) {
+            for (int j = 0; j < NUM_OF_FEATURES; ++j) {
+                if (rn.nextDouble() < 0.1) {
+                    builder.addFeature(j, binary ? 1 : rn.nextDouble() * 4 - 2);
+                }
+            }
+            int weight = 1 + rn.nextInt(20);
+            builder.endRow(rn.nextInt(weight + 1), weight);
+        }
+        return builder.build();
+    }
+
+    private static double[] makeMi(int numRows) {
+        double[] mi = new double[numRows];
+        for (int i = 0; i < mi.length; ++i) {
+            mi[i] = 0.25 + i % 5;
+        }
+        return mi;
+    }
+
+    private static void assertSameMatrix(IWeightedCovarianceMatrix expected, IWeightedCovarianceMatrix actual) {
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        double[] vector = new double[expected.getSize()];
+        for (int k = 0; k < vector.length; ++k) {
+            vector[k] = Math.sin(k + 1);
+        }
+        for (int j = 0; j < expected.getSize(); ++j) {
+            for (int k = 0; k < expected.getSize(); ++k) {
+                Assert.assertEquals(expected.get(j, k), actual.get(j, k), 1e-9);
+            }
+            Assert.assertEquals(expected.dotRow(j, vector), actual.dotRow(j, vector), 1e-9);
+            double[] expectedTarget = vector.clone();
+            double[] actualTarget = vector.clone();
+            expected.addScaledRow(j, -1.5, expectedTarget);
+            actual.addScaledRow(j, -1.5, actualTarget);
+            Assert.assertArrayEquals(expectedTarget, actualTarget, 1e-9);
+            // the same row added in column ranges that split it around and at j
+            actualTarget = vector.clone();
+            int[] splits = {0, j / 2, j, Math.min(j + 1, vector.length), vector.length};
+            for (int s = 0; s + 1 < splits.length; ++s) {
+                actual.addScaledRow(j, -1.5, actualTarget, splits[s], splits[s + 1]);
+            }
+            Assert.assertArrayEquals(expectedTarget, actualTarget, 1e-9);
+        }
+    }
+
+    @Test
+    public void testStoragesMatchDense() {
+        for (boolean binary : new boolean[] {false, true}) {
+            SparseDataset dataset = makeDataset(binary, 7);
+            Assert.assertEquals(binary, dataset.isBinary());
+            double[] mi = makeMi(dataset.getNumRows());
+            IWeightedCovarianceMatrix dense = CoordinateDescentTrainer
+                .getWeightedCovarianceMatrix(CovarianceStorage.DENSE, NUM_OF_FEATURES + 1, dataset, mi);
+            for (CovarianceStorage storage : CovarianceStorage.values()) {
+                // accumulate in two halves and merge, the way the multi threaded trainer does
+                IWeightedCovarianceMatrix first = storage.create(NUM_OF_FEATURES + 1);
+                IWeightedCovarianceMatrix second = storage.create(NUM_OF_FEATURES + 1);
+                first.addRows(dataset, 0, 100, mi);
+                second.addRows(dataset, 100, dataset.getNumRows(), mi);
+                first.addAll(second);
+                first.compact();
+                assertSameMatrix(dense, first);
+            }
+        }
+    }
+
+    @Test
+    public void testComputeRowsMatchesAddRows() {
+        for (boolean binary : new boolean[] {false, true}) {
+            SparseDataset dataset = makeDataset(binary, 17);
+            double[] mi = makeMi(dataset.getNumRows());
+            IWeightedCovarianceMatrix dense = CoordinateDescentTrainer
+                .getWeightedCovarianceMatrix(CovarianceStorage.DENSE, NUM_OF_FEATURES + 1, dataset, mi);
+            SparseColumnIndex columnIndex = dataset.getColumnIndex(NUM_OF_FEATURES);
+            ExecutorService execPool = Executors.newFixedThreadPool(3);
+            try {
+                CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(
+                    new ExecutorCompletionService<>(execPool), 3);
+                for (CovarianceStorage storage : CovarianceStorage.values()) {
+                    IWeightedCovarianceMatrix computed = storage.create(NUM_OF_FEATURES + 1);
+                    computed.computeRows(dataset, columnIndex, 0, 1, mi);
+                    computed.computeRows(dataset, columnIndex, 1, 20, mi);
+                    computed.computeRows(dataset, columnIndex, 20, NUM_OF_FEATURES + 1, mi);
+                    computed.compact();
+                    assertSameMatrix(dense, computed);
+
+                    trainerMT.setCovarianceConstruction(CovarianceConstruction.OWNER_COMPUTES);
+                    assertSameMatrix(dense,
+                        trainerMT.getWeightedCovarianceMatrix(storage, NUM_OF_FEATURES + 1, dataset, mi));
+                    trainerMT.setCovarianceConstruction(CovarianceConstruction.ROW_RANGES);
+                    assertSameMatrix(dense,
+                        trainerMT.getWeightedCovarianceMatrix(storage, NUM_OF_FEATURES + 1, dataset, mi));
+                }
+            } finally {
+                MultiThreadingUtil.closeExecutorPool(execPool);
+            }
+        }
+    }
+
+    @Test
+    public void testSparseComputeRowsReusesScratch() {
+        SparseDataset dataset = makeDataset(false, 23);
+        double[] mi = makeMi(dataset.getNumRows());
+        IWeightedCovarianceMatrix dense = CoordinateDescentTrainer
+            .getWeightedCovarianceMatrix(CovarianceStorage.DENSE, NUM_OF_FEATURES + 1, dataset, mi);
+        SparseColumnIndex columnIndex = dataset.getColumnIndex(NUM_OF_FEATURES);
+        // a wider matrix first leaves a larger scratch on this thread, then every IRLS step reuses it
+        new SparseWeightedCovarianceMatrix(2 * NUM_OF_FEATURES + 1)
+            .computeRows(dataset, columnIndex, 0, NUM_OF_FEATURES + 1, mi);
+        for (int step = 0; step < 3; ++step) {
+            SparseWeightedCovarianceMatrix computed = new SparseWeightedCovarianceMatrix(NUM_OF_FEATURES + 1);
+            computed.computeRows(dataset, columnIndex, 0, 7, mi);
+            computed.computeRows(dataset, columnIndex, 7, NUM_OF_FEATURES + 1, mi);
+            computed.compact();
+            assertSameMatrix(dense, computed);
+        }
+    }
+
+    @Test
+    public void testSplitIntoBalancedRanges() {
+        long[] cumulativeCost = {0, 100, 101, 102, 103, 203};
+        List<DatasetRange> ranges = MultiThreadingUtil.splitIntoBalancedRanges(cumulativeCost, 3);
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).getStartIdx());
+        Assert.assertEquals(5, ranges.get(2).getEndIdx());
+        for (int r = 1; r < ranges.size(); ++r) {
+            Assert.assertEquals(ranges.get(r - 1).getEndIdx(), ranges.get(r).getStartIdx());
+        }
+        // the two expensive items end up in different ranges
+        Assert.assertTrue(ranges.get(0).getEndIdx() <= 4);
+        Assert.assertTrue(ranges.get(2).getStartIdx() >= 1);
+    }
+
+    @Test
+    public void testSparseOnlyStoresCoOccurringPairs() throws Exception {
+        SparseDataset dataset = SparseDataset.fromObservations(SparseDatasetTest.makeObservations());
+        SparseWeightedCovarianceMatrix sparse = new SparseWeightedCovarianceMatrix(11);
+        sparse.addRows(dataset, 0, dataset.getNumRows(), makeMi(dataset.getNumRows()));
+        try {
+            sparse.get(0, 1);
+            Assert.fail("reading before compact() should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        int numOfPairs = sparse.getNumOfPairs();
+        sparse.compact();
+        IWeightedCovarianceMatrix dense = CoordinateDescentTrainer
+            .getWeightedCovarianceMatrix(CovarianceStorage.DENSE, 11, dataset, makeMi(dataset.getNumRows()));
+        int nnz = 0;
+        for (int j = 0; j < 11; ++j) {
+            for (int k = 0; k < 11; ++k) {
+                nnz += dense.get(j, k) != 0 ? 1 : 0;
+            }
+        }
+        Assert.assertEquals(nnz, sparse.getNnz());
+        // the diagonal is not stored
+        Assert.assertEquals(nnz / 2, numOfPairs);
+        assertSameMatrix(dense, sparse);
+    }
+
+    @Test
+    public void testIncrementalMatchesRecompute() {
+        SparseDataset dataset = makeDataset(true, 13);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[NUM_OF_FEATURES + 1];
+        for (CovarianceStorage storage : CovarianceStorage.values()) {
+            for (boolean activeSetIteration : new boolean[] {false, true}) {
+                CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+                trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+                trainer.setCovarianceStorage(storage);
+                trainer.setActiveSetIteration(activeSetIteration);
+                trainer.setBetasUpdateStrategy(BetasUpdateStrategy.RECOMPUTE);
+                LRResult expected = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, 1e-8, 200);
+                trainer.setBetasUpdateStrategy(BetasUpdateStrategy.INCREMENTAL);
+                LRResult actual = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 1, 1e-3, lambdaScaleFactors, 1e-8, 200);
+                Assert.assertEquals(expected.getIteration(), actual.getIteration());
+                Assert.assertArrayEquals(expected.getBetasWithBeta0(), actual.getBetasWithBeta0(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testTrainingMatchesDense() {
+        SparseDataset dataset = makeDataset(false, 11);
+        double[] lambdaScaleFactors = LRUtil.generateLambdaScaleFactors(dataset, NUM_OF_FEATURES);
+        double totalWeights = LR.getTotalWeights(dataset);
+        double[] betas = new double[NUM_OF_FEATURES + 1];
+        CoordinateDescentTrainer trainer = new CoordinateDescentTrainer();
+        LRResult expected = trainer
+            .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.5, 1e-3, lambdaScaleFactors, 1e-6, 100);
+
+        ExecutorService execPool = Executors.newFixedThreadPool(3);
+        CoordinateDescentTrainerMT trainerMT = new CoordinateDescentTrainerMT(
+            new ExecutorCompletionService<>(execPool), 3);
+        try {
+            trainer.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+            trainerMT.setCoordinateDescentMode(CoordinateDescentMode.COVARIANCE);
+            for (CovarianceStorage storage : CovarianceStorage.values()) {
+                trainer.setCovarianceStorage(storage);
+                trainerMT.setCovarianceStorage(storage);
+                LRResult actual = trainer
+                    .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.5, 1e-3, lambdaScaleFactors, 1e-6, 100);
+                Assert.assertArrayEquals(expected.getBetasWithBeta0(), actual.getBetasWithBeta0(), 1e-9);
+                for (CovarianceConstruction construction : CovarianceConstruction.values()) {
+                    trainerMT.setCovarianceConstruction(construction);
+                    LRResult actualMT = trainerMT
+                        .trainNewBetasWithBeta0(dataset, totalWeights, betas, 0.5, 1e-3, lambdaScaleFactors, 1e-6,
+                            100);
+                    Assert.assertArrayEquals(expected.getBetasWithBeta0(), actualMT.getBetasWithBeta0(), 1e-9);
+                }
+            }
+        } finally {
+            MultiThreadingUtil.closeExecutorPool(execPool);
+        }
+    }
+}